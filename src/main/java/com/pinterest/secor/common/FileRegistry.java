@@ -17,6 +17,7 @@
 package com.pinterest.secor.common;
 
 import com.pinterest.secor.io.FileWriter;
+import com.pinterest.secor.uploader.UploadManager;
 import com.pinterest.secor.util.FileUtil;
 import com.pinterest.secor.util.ReflectionUtil;
 import com.pinterest.secor.util.StatsUtil;
@@ -30,7 +31,8 @@ import java.util.*;
 
 /**
  * FileRegistry keeps track of local log files currently being appended to and the associated
- * writers.
+ * writers.  Methods are synchronized so that the uploader can process topic partitions in
+ * parallel.
  *
  * @author Pawel Garbacki (pawel@pinterest.com)
  */
@@ -41,6 +43,9 @@ public class FileRegistry {
     private HashMap<TopicPartition, HashSet<LogFilePath>> mFiles;
     private HashMap<LogFilePath, FileWriter> mWriters;
     private HashMap<LogFilePath, Long> mCreationTimes;
+    // Read without locking on every write.
+    private volatile long mWriterDeletionCount;
+    private UploadManager mUploadManager;
 
     public FileRegistry(SecorConfig mConfig) {
         this.mConfig = mConfig;
@@ -49,11 +54,20 @@ public class FileRegistry {
         mCreationTimes = new HashMap<LogFilePath, Long>();
     }
 
+    /**
+     * Let the upload manager decorate new writers and learn about files deleted without being
+     * uploaded.
+     * @param uploadManager The upload manager of the files in this registry.
+     */
+    public synchronized void setUploadManager(UploadManager uploadManager) {
+        mUploadManager = uploadManager;
+    }
+
     /**
      * Get all topic partitions.
      * @return Collection of all registered topic partitions.
      */
-    public Collection<TopicPartition> getTopicPartitions() {
+    public synchronized Collection<TopicPartition> getTopicPartitions() {
         Set<TopicPartition> topicPartitions = mFiles.keySet();
         if (topicPartitions == null) {
             return new HashSet<TopicPartition>();
@@ -67,7 +81,7 @@ public class FileRegistry {
      * @param topicPartition The topic partition to retrieve paths for.
      * @return Collection of file paths in the given topic partition.
      */
-    public Collection<LogFilePath> getPaths(TopicPartition topicPartition) {
+    public synchronized Collection<LogFilePath> getPaths(TopicPartition topicPartition) {
         HashSet<LogFilePath> logFilePaths = mFiles.get(topicPartition);
         if (logFilePaths == null) {
             return new HashSet<LogFilePath>();
@@ -80,7 +94,7 @@ public class FileRegistry {
      * @param path The path to retrieve writer for.
      * @return Writer for a given path or null if no writer has been created yet.
      */
-    public FileWriter getWriter(LogFilePath path)
+    public synchronized FileWriter getWriter(LogFilePath path)
             throws Exception {
         return mWriters.get(path);
     }
@@ -92,7 +106,7 @@ public class FileRegistry {
      * @return Writer for a given path.
      * @throws Exception 
      */
-    public FileWriter getOrCreateWriter(LogFilePath path, CompressionCodec codec)
+    public synchronized FileWriter getOrCreateWriter(LogFilePath path, CompressionCodec codec)
             throws Exception {
         FileWriter writer = mWriters.get(path);
         if (writer == null) {
@@ -110,6 +124,9 @@ public class FileRegistry {
                 files.add(path);
             }
             writer = ReflectionUtil.createFileWriter(mConfig.getFileReaderWriterFactory(), path, codec, mConfig);
+            if (mUploadManager != null) {
+                writer = mUploadManager.decorateWriter(path, writer);
+            }
             mWriters.put(path, writer);
             mCreationTimes.put(path, System.currentTimeMillis() / 1000L);
             LOG.debug("created writer for path {}", path.getLogFilePath());
@@ -127,7 +144,7 @@ public class FileRegistry {
      * @param path The path to delete.
      * @throws IOException
      */
-    public void deletePath(LogFilePath path) throws IOException {
+    public synchronized void deletePath(LogFilePath path) throws IOException {
         TopicPartition topicPartition = new TopicPartition(path.getTopic(),
                                                            path.getKafkaPartition());
         HashSet<LogFilePath> paths = mFiles.get(topicPartition);
@@ -140,6 +157,10 @@ public class FileRegistry {
                                  topicPartition.getPartition());
         }
         deleteWriter(path);
+        mCreationTimes.remove(path);
+        if (mUploadManager != null) {
+            mUploadManager.discard(path);
+        }
         FileUtil.delete(path.getLogFilePath());
         FileUtil.delete(path.getLogFileCrcPath());
     }
@@ -149,7 +170,7 @@ public class FileRegistry {
      * @param topicPartition The topic partition to remove.
      * @throws IOException
      */
-    public void deleteTopicPartition(TopicPartition topicPartition) throws IOException {
+    public synchronized void deleteTopicPartition(TopicPartition topicPartition) throws IOException {
         HashSet<LogFilePath> paths = mFiles.get(topicPartition);
         if (paths == null) {
             return;
@@ -160,11 +181,59 @@ public class FileRegistry {
         }
     }
 
+    /**
+     * Close all writers in a given topic partition and stop tracking its paths.  Underlying files
+     * are not removed.  Used to hand finished files over to a background uploader while new files
+     * are written for the same topic partition.
+     * @param topicPartition The topic partition to seal.
+     * @return Paths that were sealed.
+     * @throws IOException
+     */
+    public synchronized Collection<LogFilePath> sealTopicPartition(TopicPartition topicPartition)
+            throws IOException {
+        HashSet<LogFilePath> paths = mFiles.remove(topicPartition);
+        if (paths == null) {
+            return new HashSet<LogFilePath>();
+        }
+        for (LogFilePath path : paths) {
+            // Writers are already gone if the files were closed for an upload that failed.
+            if (mWriters.containsKey(path)) {
+                deleteWriter(path);
+            }
+            mCreationTimes.remove(path);
+        }
+        StatsUtil.clearLabel("secor.size." + topicPartition.getTopic() + "." +
+                             topicPartition.getPartition());
+        StatsUtil.clearLabel("secor.modification_age_sec." + topicPartition.getTopic() + "." +
+                             topicPartition.getPartition());
+        return paths;
+    }
+
+    /**
+     * Start tracking an existing, closed file.  Used to take back files of a sealed topic
+     * partition whose upload was abandoned.  The file counts as created now so that the age
+     * policy picks it up again.
+     * @param path The path to track.
+     */
+    public synchronized void addPath(LogFilePath path) {
+        TopicPartition topicPartition = new TopicPartition(path.getTopic(),
+                                                           path.getKafkaPartition());
+        HashSet<LogFilePath> files = mFiles.get(topicPartition);
+        if (files == null) {
+            files = new HashSet<LogFilePath>();
+            mFiles.put(topicPartition, files);
+        }
+        files.add(path);
+        if (!mCreationTimes.containsKey(path)) {
+            mCreationTimes.put(path, System.currentTimeMillis() / 1000L);
+        }
+    }
+
     /**
      * Delete writer for a given topic partition.  Underlying file is not removed.
      * @param path The path to remove the writer for.
      */
-    public void deleteWriter(LogFilePath path) throws IOException {
+    public synchronized void deleteWriter(LogFilePath path) throws IOException {
         FileWriter writer = mWriters.get(path);
         if (writer == null) {
             LOG.warn("No writer found for path {}", path.getLogFilePath());
@@ -173,14 +242,24 @@ public class FileRegistry {
             writer.close();
             mWriters.remove(path);
             mCreationTimes.remove(path);
+            mWriterDeletionCount++;
         }
     }
 
+    /**
+     * Get the number of writers deleted so far.  Callers caching writers returned by
+     * getOrCreateWriter must check them against getWriter once this count changes.
+     * @return Number of writers deleted since the registry was created.
+     */
+    public long getWriterDeletionCount() {
+        return mWriterDeletionCount;
+    }
+
     /**
      * Delete all writers in a given topic partition.  Underlying files are not removed.
      * @param topicPartition The topic partition to remove the writers for.
      */
-    public void deleteWriters(TopicPartition topicPartition) throws IOException {
+    public synchronized void deleteWriters(TopicPartition topicPartition) throws IOException {
         HashSet<LogFilePath> paths = mFiles.get(topicPartition);
         if (paths == null) {
             LOG.warn("No paths found for topic {} partition {}", topicPartition.getTopic(), topicPartition.getPartition());
@@ -198,7 +277,7 @@ public class FileRegistry {
      *     not contain any files.
      * @throws IOException
      */
-    public long getSize(TopicPartition topicPartition) throws IOException {
+    public synchronized long getSize(TopicPartition topicPartition) throws IOException {
         Collection<LogFilePath> paths = getPaths(topicPartition);
         long result = 0;
         for (LogFilePath path : paths) {
@@ -219,7 +298,7 @@ public class FileRegistry {
      *     does not contain any files.
      * @throws IOException
      */
-    public long getModificationAgeSec(TopicPartition topicPartition) throws IOException {
+    public synchronized long getModificationAgeSec(TopicPartition topicPartition) throws IOException {
         long now = System.currentTimeMillis() / 1000L;
         long result = Long.MAX_VALUE;
         Collection<LogFilePath> paths = getPaths(topicPartition);
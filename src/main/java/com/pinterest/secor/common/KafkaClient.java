@@ -20,6 +20,8 @@ import com.google.common.net.HostAndPort;
 import com.pinterest.secor.message.Message;
 import kafka.api.FetchRequestBuilder;
 import kafka.api.PartitionOffsetRequestInfo;
+import kafka.common.ErrorMapping;
+import kafka.common.NotLeaderForPartitionException;
 import kafka.common.TopicAndPartition;
 import kafka.javaapi.FetchResponse;
 import kafka.javaapi.OffsetRequest;
@@ -30,105 +32,254 @@ import kafka.javaapi.TopicMetadataRequest;
 import kafka.javaapi.TopicMetadataResponse;
 import kafka.javaapi.consumer.SimpleConsumer;
 import kafka.message.MessageAndOffset;
-import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Kafka client encapsulates the logic interacting with Kafka brokers.
  *
+ * The batch methods resolve the leaders of all requested topic partitions with a single metadata
+ * request, send one offset request and as few fetch requests as secor.kafka.client.fetch.max.bytes
+ * allows per leader, and talk to the leaders in parallel.
+ * Connections to brokers are pooled and partition leaders are cached across calls.  A cached
+ * leader is dropped when its broker reports that it no longer leads the partition or when the
+ * broker cannot be reached.
+ *
  * @author Pawel Garbacki (pawel@pinterest.com)
  */
 public class KafkaClient {
     private static final Logger LOG = LoggerFactory.getLogger(KafkaClient.class);
 
+    private static final String CLIENT_NAME = "secorClient";
+
     private SecorConfig mConfig;
     private ZookeeperConnector mZookeeperConnector;
+    private ExecutorService mExecutor;
+    // SimpleConsumer serializes requests internally so a single connection per broker is shared
+    // by all threads.
+    private final ConcurrentHashMap<HostAndPort, SimpleConsumer> mConsumers =
+            new ConcurrentHashMap<HostAndPort, SimpleConsumer>();
+    private final ConcurrentHashMap<TopicPartition, HostAndPort> mLeaders =
+            new ConcurrentHashMap<TopicPartition, HostAndPort>();
 
     public KafkaClient(SecorConfig config) {
+        this(config, new ZookeeperConnector(config));
+    }
+
+    // For testing use only.
+    public KafkaClient(SecorConfig config, ZookeeperConnector zookeeperConnector) {
         mConfig = config;
-        mZookeeperConnector = new ZookeeperConnector(mConfig);
+        mZookeeperConnector = zookeeperConnector;
     }
 
-    private HostAndPort findLeader(TopicPartition topicPartition) {
-        SimpleConsumer consumer = null;
-        try {
-            LOG.debug("looking up leader for topic {} partition {}", topicPartition.getTopic(), topicPartition.getPartition());
-            consumer = createConsumer(
-                mConfig.getKafkaSeedBrokerHost(),
-                mConfig.getKafkaSeedBrokerPort(),
-                "leaderLookup");
-            List<String> topics = new ArrayList<String>();
-            topics.add(topicPartition.getTopic());
-            TopicMetadataRequest request = new TopicMetadataRequest(topics);
-            TopicMetadataResponse response = consumer.send(request);
-
-            List<TopicMetadata> metaData = response.topicsMetadata();
-            for (TopicMetadata item : metaData) {
-                for (PartitionMetadata part : item.partitionsMetadata()) {
-                    if (part.partitionId() == topicPartition.getPartition()) {
-                        return HostAndPort.fromParts(part.leader().host(), part.leader().port());
-                    }
+    /**
+     * Offset lookup run against the leader of a group of topic partitions.
+     */
+    private interface OffsetLookup {
+        /**
+         * @return Offsets of the messages to fetch.  Topic partitions without a message to fetch
+         *     are left out.
+         */
+        Map<TopicPartition, Long> getOffsets(SimpleConsumer consumer,
+                                             List<TopicPartition> topicPartitions);
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            int threads = Math.max(1, mConfig.getKafkaClientThreads());
+            mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "secor-kafka-client-" + mThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        return mExecutor;
+    }
+
+    private SimpleConsumer getConsumer(HostAndPort broker) {
+        SimpleConsumer consumer = mConsumers.get(broker);
+        if (consumer == null) {
+            // Consumers connect lazily so creating one that loses the race is cheap.
+            SimpleConsumer newConsumer = createConsumer(broker.getHostText(), broker.getPort(),
+                                                        CLIENT_NAME);
+            consumer = mConsumers.putIfAbsent(broker, newConsumer);
+            if (consumer == null) {
+                consumer = newConsumer;
+            } else {
+                newConsumer.close();
             }
-        } finally {
-            if (consumer != null) {
-                consumer.close();
+        }
+        return consumer;
+    }
+
+    private void closeConsumer(HostAndPort broker) {
+        SimpleConsumer consumer = mConsumers.remove(broker);
+        if (consumer != null) {
+            consumer.close();
+        }
+    }
+
+    private List<TopicMetadata> getTopicMetadata(Collection<String> topics) {
+        HostAndPort seedBroker = HostAndPort.fromParts(mConfig.getKafkaSeedBrokerHost(),
+                                                       mConfig.getKafkaSeedBrokerPort());
+        try {
+            TopicMetadataRequest request = new TopicMetadataRequest(
+                new ArrayList<String>(topics));
+            TopicMetadataResponse response = getConsumer(seedBroker).send(request);
+            return response.topicsMetadata();
+        } catch (RuntimeException e) {
+            closeConsumer(seedBroker);
+            throw e;
+        } catch (Exception e) {
+            // Scala code may throw undeclared checked exceptions, e.g. ClosedChannelException.
+            closeConsumer(seedBroker);
+            throw new RuntimeException("Failed to get metadata of topics " + topics, e);
+        }
+    }
+
+    private Map<TopicPartition, HostAndPort> findLeaders(Collection<String> topics) {
+        LOG.debug("looking up leaders for topics {}", topics);
+        Map<TopicPartition, HostAndPort> leaders = new HashMap<TopicPartition, HostAndPort>();
+        for (TopicMetadata item : getTopicMetadata(topics)) {
+            for (PartitionMetadata part : item.partitionsMetadata()) {
+                TopicPartition topicPartition = new TopicPartition(item.topic(),
+                                                                   part.partitionId());
+                if (part.leader() == null) {
+                    LOG.warn("no leader for topic {} partition {}", item.topic(),
+                             part.partitionId());
+                    mLeaders.remove(topicPartition);
+                    continue;
+                }
+                HostAndPort leader = HostAndPort.fromParts(part.leader().host(),
+                                                           part.leader().port());
+                leaders.put(topicPartition, leader);
+                mLeaders.put(topicPartition, leader);
             }
         }
-        return null;
+        return leaders;
+    }
+
+    private HostAndPort findLeader(TopicPartition topicPartition) {
+        HostAndPort leader = mLeaders.get(topicPartition);
+        if (leader == null) {
+            LOG.debug("looking up leader for topic {} partition {}", topicPartition.getTopic(), topicPartition.getPartition());
+            leader = findLeaders(Collections.singletonList(topicPartition.getTopic())).get(
+                topicPartition);
+        }
+        return leader;
+    }
+
+    private void checkErrorCode(TopicPartition topicPartition, short errorCode, String what) {
+        if (errorCode == ErrorMapping.NoError()) {
+            return;
+        }
+        String message = "Error fetching " + what + " for topic " + topicPartition.getTopic() +
+                " partition " + topicPartition.getPartition() + ". Reason: " + errorCode;
+        if (errorCode == ErrorMapping.NotLeaderForPartitionCode() ||
+                errorCode == ErrorMapping.UnknownTopicOrPartitionCode()) {
+            mLeaders.remove(topicPartition);
+            throw new NotLeaderForPartitionException(message);
+        }
+        throw new RuntimeException(message);
     }
 
     private static String getClientName(TopicPartition topicPartition) {
-        return "secorClient_" + topicPartition.getTopic() + "_" + topicPartition.getPartition();
+        return CLIENT_NAME + "_" + topicPartition.getTopic() + "_" + topicPartition.getPartition();
     }
 
-    private long findLastOffset(TopicPartition topicPartition, SimpleConsumer consumer) {
-        TopicAndPartition topicAndPartition = new TopicAndPartition(topicPartition.getTopic(),
-                topicPartition.getPartition());
+    private Map<TopicPartition, Long> findLastOffsets(List<TopicPartition> topicPartitions,
+                                                      SimpleConsumer consumer) {
         Map<TopicAndPartition, PartitionOffsetRequestInfo> requestInfo =
                 new HashMap<TopicAndPartition, PartitionOffsetRequestInfo>();
-        requestInfo.put(topicAndPartition, new PartitionOffsetRequestInfo(
-                kafka.api.OffsetRequest.LatestTime(), 1));
-        final String clientName = getClientName(topicPartition);
+        for (TopicPartition topicPartition : topicPartitions) {
+            TopicAndPartition topicAndPartition = new TopicAndPartition(topicPartition.getTopic(),
+                    topicPartition.getPartition());
+            requestInfo.put(topicAndPartition, new PartitionOffsetRequestInfo(
+                    kafka.api.OffsetRequest.LatestTime(), 1));
+        }
         OffsetRequest request = new OffsetRequest(requestInfo,
                                                   kafka.api.OffsetRequest.CurrentVersion(),
-                                                  clientName);
+                                                  CLIENT_NAME);
         OffsetResponse response = consumer.getOffsetsBefore(request);
 
-        if (response.hasError()) {
-            throw new RuntimeException("Error fetching offset data. Reason: " +
-                    response.errorCode(topicPartition.getTopic(), topicPartition.getPartition()));
+        Map<TopicPartition, Long> lastOffsets = new HashMap<TopicPartition, Long>();
+        for (TopicPartition topicPartition : topicPartitions) {
+            checkErrorCode(topicPartition, response.errorCode(topicPartition.getTopic(),
+                    topicPartition.getPartition()), "offset data");
+            long[] offsets = response.offsets(topicPartition.getTopic(),
+                    topicPartition.getPartition());
+            lastOffsets.put(topicPartition, offsets[0] - 1);
         }
-        long[] offsets = response.offsets(topicPartition.getTopic(),
-                topicPartition.getPartition());
-        return offsets[0] - 1;
+        return lastOffsets;
     }
 
-    private Message getMessage(TopicPartition topicPartition, long offset,
-                               SimpleConsumer consumer) {
-        LOG.debug("fetching message topic {} partition {} offset {}",
-                topicPartition.getTopic(), topicPartition.getPartition(), offset);
+    private Map<TopicPartition, Message> getMessages(Map<TopicPartition, Long> offsets,
+                                                     SimpleConsumer consumer) {
+        // Every partition of a request may return a message of the max size.
         final int MAX_MESSAGE_SIZE_BYTES = mConfig.getMaxMessageSizeBytes();
-        final String clientName = getClientName(topicPartition);
-        kafka.api.FetchRequest request = new FetchRequestBuilder().clientId(clientName)
-                .addFetch(topicPartition.getTopic(), topicPartition.getPartition(), offset,
-                          MAX_MESSAGE_SIZE_BYTES)
-                .build();
-        FetchResponse response = consumer.fetch(request);
-        if (response.hasError()) {
-            consumer.close();
-            throw new RuntimeException("Error fetching offset data. Reason: " +
-                    response.errorCode(topicPartition.getTopic(), topicPartition.getPartition()));
+        final int partitionsPerRequest = Math.max(1,
+                mConfig.getKafkaClientFetchMaxBytes() / Math.max(1, MAX_MESSAGE_SIZE_BYTES));
+        Map<TopicPartition, Message> messages = new HashMap<TopicPartition, Message>();
+        List<Map.Entry<TopicPartition, Long>> entries =
+                new ArrayList<Map.Entry<TopicPartition, Long>>(offsets.entrySet());
+        for (int start = 0; start < entries.size(); start += partitionsPerRequest) {
+            List<Map.Entry<TopicPartition, Long>> chunk = entries.subList(start,
+                    Math.min(entries.size(), start + partitionsPerRequest));
+            FetchRequestBuilder builder = new FetchRequestBuilder().clientId(CLIENT_NAME);
+            for (Map.Entry<TopicPartition, Long> entry : chunk) {
+                TopicPartition topicPartition = entry.getKey();
+                LOG.debug("fetching message topic {} partition {} offset {}",
+                        topicPartition.getTopic(), topicPartition.getPartition(),
+                        entry.getValue());
+                builder.addFetch(topicPartition.getTopic(), topicPartition.getPartition(),
+                                 entry.getValue(), MAX_MESSAGE_SIZE_BYTES);
+            }
+            FetchResponse response = consumer.fetch(builder.build());
+            for (Map.Entry<TopicPartition, Long> entry : chunk) {
+                addMessage(entry.getKey(), entry.getValue(), response, messages);
+            }
         }
-        MessageAndOffset messageAndOffset = response.messageSet(
-                topicPartition.getTopic(), topicPartition.getPartition()).iterator().next();
+        return messages;
+    }
+
+    private void addMessage(TopicPartition topicPartition, long offset, FetchResponse response,
+                            Map<TopicPartition, Message> messages) {
+        checkErrorCode(topicPartition, response.errorCode(topicPartition.getTopic(),
+                topicPartition.getPartition()), "message");
+        Iterator<MessageAndOffset> iterator = response.messageSet(
+                topicPartition.getTopic(), topicPartition.getPartition()).iterator();
+        if (!iterator.hasNext()) {
+            // E.g. the message was removed by retention, or is larger than the max size.
+            LOG.warn("no message found for topic {} partition {} offset {}",
+                     topicPartition.getTopic(), topicPartition.getPartition(), offset);
+            return;
+        }
+        MessageAndOffset messageAndOffset = iterator.next();
         byte[] keyBytes = null;
         if (messageAndOffset.message().hasKey()) {
             ByteBuffer key = messageAndOffset.message().key();
@@ -141,12 +292,117 @@ public class KafkaClient {
             payloadBytes = new byte[payload.limit()];
             payload.get(payloadBytes);
         }
-        return new Message(topicPartition.getTopic(), topicPartition.getPartition(),
-                messageAndOffset.offset(), keyBytes, payloadBytes);
+        messages.put(topicPartition, new Message(topicPartition.getTopic(),
+                topicPartition.getPartition(), messageAndOffset.offset(), keyBytes,
+                payloadBytes));
+    }
+
+    private Map<HostAndPort, List<TopicPartition>> groupByLeader(
+            Collection<TopicPartition> topicPartitions) {
+        Set<String> uncachedTopics = new LinkedHashSet<String>();
+        for (TopicPartition topicPartition : topicPartitions) {
+            if (!mLeaders.containsKey(topicPartition)) {
+                uncachedTopics.add(topicPartition.getTopic());
+            }
+        }
+        Map<TopicPartition, HostAndPort> foundLeaders = Collections.emptyMap();
+        if (!uncachedTopics.isEmpty()) {
+            foundLeaders = findLeaders(uncachedTopics);
+        }
+        Map<HostAndPort, List<TopicPartition>> groups =
+                new HashMap<HostAndPort, List<TopicPartition>>();
+        for (TopicPartition topicPartition : topicPartitions) {
+            HostAndPort leader = mLeaders.get(topicPartition);
+            if (leader == null) {
+                leader = foundLeaders.get(topicPartition);
+            }
+            if (leader == null) {
+                throw new RuntimeException("No leader found for topic " +
+                        topicPartition.getTopic() + " partition " +
+                        topicPartition.getPartition());
+            }
+            List<TopicPartition> group = groups.get(leader);
+            if (group == null) {
+                group = new ArrayList<TopicPartition>();
+                groups.put(leader, group);
+            }
+            group.add(topicPartition);
+        }
+        return groups;
+    }
+
+    private Map<TopicPartition, Message> fetchFromLeaders(
+            Collection<TopicPartition> topicPartitions, OffsetLookup offsetLookup)
+            throws Exception {
+        try {
+            return fetchFromLeadersOnce(topicPartitions, offsetLookup);
+        } catch (NotLeaderForPartitionException e) {
+            // Stale leaders were dropped from the cache, the retry looks them up again.
+            LOG.info("partition leadership changed, retrying", e);
+            return fetchFromLeadersOnce(topicPartitions, offsetLookup);
+        }
+    }
+
+    private Map<TopicPartition, Message> fetchFromLeadersOnce(
+            Collection<TopicPartition> topicPartitions, final OffsetLookup offsetLookup)
+            throws Exception {
+        Map<TopicPartition, Message> messages = new HashMap<TopicPartition, Message>();
+        if (topicPartitions.isEmpty()) {
+            return messages;
+        }
+        Map<HostAndPort, List<TopicPartition>> groups = groupByLeader(topicPartitions);
+        List<Future<Map<TopicPartition, Message>>> futures =
+                new ArrayList<Future<Map<TopicPartition, Message>>>(groups.size());
+        for (Map.Entry<HostAndPort, List<TopicPartition>> group : groups.entrySet()) {
+            final HostAndPort leader = group.getKey();
+            final List<TopicPartition> leaderTopicPartitions = group.getValue();
+            futures.add(getExecutor().submit(new Callable<Map<TopicPartition, Message>>() {
+                @Override
+                public Map<TopicPartition, Message> call() throws Exception {
+                    LOG.debug("fetching {} topic partitions from leader {}",
+                              leaderTopicPartitions.size(), leader);
+                    try {
+                        SimpleConsumer consumer = getConsumer(leader);
+                        Map<TopicPartition, Long> offsets = offsetLookup.getOffsets(consumer,
+                                leaderTopicPartitions);
+                        if (offsets.isEmpty()) {
+                            return Collections.emptyMap();
+                        }
+                        return getMessages(offsets, consumer);
+                    } catch (NotLeaderForPartitionException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        // The broker may be gone, do not reuse its connection or leadership.
+                        closeConsumer(leader);
+                        for (TopicPartition topicPartition : leaderTopicPartitions) {
+                            mLeaders.remove(topicPartition, leader);
+                        }
+                        throw e;
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<Map<TopicPartition, Message>> future : futures) {
+                messages.putAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            for (Future<Map<TopicPartition, Message>> future : futures) {
+                // Do not interrupt, that would close connections shared with other calls.
+                future.cancel(false);
+            }
+        }
+        return messages;
     }
 
-    private SimpleConsumer createConsumer(String host, int port, String clientName) {
-        return new SimpleConsumer(host, port, 100000, 64 * 1024, clientName);
+    protected SimpleConsumer createConsumer(String host, int port, String clientName) {
+        return new SimpleConsumer(host, port, mConfig.getKafkaClientSocketTimeoutMs(),
+                                  mConfig.getKafkaClientBufferSizeBytes(), clientName);
     }
 
     public SimpleConsumer createConsumer(TopicPartition topicPartition) {
@@ -157,58 +413,106 @@ public class KafkaClient {
     }
 
     public int getNumPartitions(String topic) {
-        SimpleConsumer consumer = null;
-        try {
-            consumer = createConsumer(
-                mConfig.getKafkaSeedBrokerHost(),
-                mConfig.getKafkaSeedBrokerPort(),
-                "partitionLookup");
-            List<String> topics = new ArrayList<String>();
-            topics.add(topic);
-            TopicMetadataRequest request = new TopicMetadataRequest(topics);
-            TopicMetadataResponse response = consumer.send(request);
-            if (response.topicsMetadata().size() != 1) {
-                throw new RuntimeException("Expected one metadata for topic " + topic + " found " +
-                    response.topicsMetadata().size());
-            }
-            TopicMetadata topicMetadata = response.topicsMetadata().get(0);
-            return topicMetadata.partitionsMetadata().size();
-        } finally {
-            if (consumer != null) {
-                consumer.close();
-            }
+        List<TopicMetadata> topicsMetadata = getTopicMetadata(Collections.singletonList(topic));
+        if (topicsMetadata.size() != 1) {
+            throw new RuntimeException("Expected one metadata for topic " + topic + " found " +
+                topicsMetadata.size());
         }
+        TopicMetadata topicMetadata = topicsMetadata.get(0);
+        return topicMetadata.partitionsMetadata().size();
     }
 
-    public Message getLastMessage(TopicPartition topicPartition) throws TException {
-        SimpleConsumer consumer = null;
-        try {
-            consumer = createConsumer(topicPartition);
-            long lastOffset = findLastOffset(topicPartition, consumer);
-            if (lastOffset < 1) {
-                return null;
+    /**
+     * Get the number of partitions of many topics with a single metadata request.
+     * @param topics Topics to look up.
+     * @return Map from topic to its number of partitions.
+     */
+    public Map<String, Integer> getNumPartitions(Collection<String> topics) {
+        Map<String, Integer> numPartitions = new HashMap<String, Integer>();
+        if (topics.isEmpty()) {
+            return numPartitions;
+        }
+        for (TopicMetadata topicMetadata : getTopicMetadata(topics)) {
+            numPartitions.put(topicMetadata.topic(), topicMetadata.partitionsMetadata().size());
+        }
+        return numPartitions;
+    }
+
+    /**
+     * Get the last messages of many topic partitions.
+     * @param topicPartitions Topic partitions to look up.
+     * @return Map from topic partition to its last message.  Topic partitions without messages
+     *     are left out.
+     */
+    public Map<TopicPartition, Message> getLastMessages(
+            Collection<TopicPartition> topicPartitions) throws Exception {
+        return fetchFromLeaders(topicPartitions, new OffsetLookup() {
+            @Override
+            public Map<TopicPartition, Long> getOffsets(SimpleConsumer consumer,
+                                                        List<TopicPartition> topicPartitions) {
+                Map<TopicPartition, Long> offsets = findLastOffsets(topicPartitions, consumer);
+                Map<TopicPartition, Long> result = new HashMap<TopicPartition, Long>();
+                for (Map.Entry<TopicPartition, Long> entry : offsets.entrySet()) {
+                    if (entry.getValue() >= 1) {
+                        result.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                return result;
             }
-            return getMessage(topicPartition, lastOffset, consumer);
-        } finally {
-            if (consumer != null) {
-                consumer.close();
+        });
+    }
+
+    /**
+     * Get the last committed messages of many topic partitions.
+     * @param topicPartitions Topic partitions to look up.
+     * @return Map from topic partition to its last committed message.  Topic partitions without
+     *     committed messages are left out.
+     */
+    public Map<TopicPartition, Message> getCommittedMessages(
+            Collection<TopicPartition> topicPartitions) throws Exception {
+        final Map<TopicPartition, Long> committedOffsets = new HashMap<TopicPartition, Long>();
+        for (TopicPartition topicPartition : topicPartitions) {
+            long committedOffset =
+                mZookeeperConnector.getCommittedOffsetCount(topicPartition) - 1;
+            if (committedOffset >= 0) {
+                committedOffsets.put(topicPartition, committedOffset);
             }
         }
+        return fetchFromLeaders(committedOffsets.keySet(), new OffsetLookup() {
+            @Override
+            public Map<TopicPartition, Long> getOffsets(SimpleConsumer consumer,
+                                                        List<TopicPartition> topicPartitions) {
+                Map<TopicPartition, Long> offsets = new HashMap<TopicPartition, Long>();
+                for (TopicPartition topicPartition : topicPartitions) {
+                    offsets.put(topicPartition, committedOffsets.get(topicPartition));
+                }
+                return offsets;
+            }
+        });
+    }
+
+    public Message getLastMessage(TopicPartition topicPartition) throws Exception {
+        return getLastMessages(Collections.singletonList(topicPartition)).get(topicPartition);
     }
 
     public Message getCommittedMessage(TopicPartition topicPartition) throws Exception {
-        SimpleConsumer consumer = null;
-        try {
-            long committedOffset = mZookeeperConnector.getCommittedOffsetCount(topicPartition) - 1;
-            if (committedOffset < 0) {
-                return null;
-            }
-            consumer = createConsumer(topicPartition);
-            return getMessage(topicPartition, committedOffset, consumer);
-        } finally {
-            if (consumer != null) {
-                consumer.close();
+        return getCommittedMessages(Collections.singletonList(topicPartition)).get(
+            topicPartition);
+    }
+
+    /**
+     * Close pooled broker connections.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+                mExecutor = null;
             }
         }
+        for (HostAndPort broker : mConsumers.keySet()) {
+            closeConsumer(broker);
+        }
+        mLeaders.clear();
     }
 }
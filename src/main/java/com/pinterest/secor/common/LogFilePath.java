@@ -17,9 +17,6 @@
 package com.pinterest.secor.common;
 
 import com.pinterest.secor.message.ParsedMessage;
-import org.apache.commons.lang.StringUtils;
-
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -50,6 +47,15 @@ public class LogFilePath {
     private final long mOffset;
     private final String mExtension;
 
+    // Rendered paths are computed on first use.  Strings are immutable so racing threads at worst
+    // render the same value twice.
+    private String mLogFileParentDir;
+    private String mLogFileDir;
+    private String mLogFileBasename;
+    private String mLogFilePath;
+    private String mLogFileCrcPath;
+    private int mHashCode;
+
     public LogFilePath(String prefix, int generation, long lastCommittedOffset,
                        ParsedMessage message, String extension) {
         mPrefix = prefix;
@@ -72,14 +78,6 @@ public class LogFilePath {
         mExtension = extension;
     }
 
-    private static String[] subArray(String[] array, int startIndex, int endIndex) {
-        String[] result = new String[endIndex - startIndex + 1];
-        for (int i = startIndex; i <= endIndex; ++i) {
-            result[i - startIndex] = array[i];
-        }
-        return result;
-    }
-
     public LogFilePath(String prefix, String path) {
         assert path.startsWith(prefix): path + ".startsWith(" + prefix + ")";
 
@@ -89,77 +87,122 @@ public class LogFilePath {
         if (!prefix.endsWith("/")) {
             prefixLength++;
         }
-        String suffix = path.substring(prefixLength);
-        String[] pathElements = suffix.split("/");
+        // The path is scanned in place rather than split to keep parsing cheap for tools that
+        // process large listings.
+        int end = path.length();
+        while (end > prefixLength && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        int topicEnd = path.indexOf('/', prefixLength);
+        int basenameStart = path.lastIndexOf('/', end - 1);
         // Suffix should contain a topic, at least one partition, and the basename.
-        assert pathElements.length >= 3: Arrays.toString(pathElements) + ".length >= 3";
+        assert topicEnd >= 0 && topicEnd < basenameStart: path;
 
-        mTopic = pathElements[0];
-        mPartitions = subArray(pathElements, 1, pathElements.length - 2);
+        mTopic = path.substring(prefixLength, topicEnd);
+        int numPartitions = 0;
+        for (int i = topicEnd; i < basenameStart; i = path.indexOf('/', i + 1)) {
+            numPartitions++;
+        }
+        mPartitions = new String[numPartitions];
+        int partitionStart = topicEnd + 1;
+        for (int i = 0; i < numPartitions; ++i) {
+            int partitionEnd = path.indexOf('/', partitionStart);
+            mPartitions[i] = path.substring(partitionStart, partitionEnd);
+            partitionStart = partitionEnd + 1;
+        }
 
         // Parse basename.
-        String basename = pathElements[pathElements.length - 1];
-        // Remove extension.
-        int lastIndexOf = basename.lastIndexOf('.');
-        if (lastIndexOf >= 0) {
-            mExtension = basename.substring(lastIndexOf, basename.length());
-            basename = basename.substring(0, lastIndexOf);
+        int extensionStart = path.lastIndexOf('.', end - 1);
+        if (extensionStart > basenameStart) {
+            mExtension = path.substring(extensionStart, end);
         } else {
             mExtension = "";
+            extensionStart = end;
         }
-        String[] basenameElements = basename.split("_");
-        assert basenameElements.length == 3: Integer.toString(basenameElements.length) + " == 3";
-        mGeneration = Integer.parseInt(basenameElements[0]);
-        mKafkaPartition = Integer.parseInt(basenameElements[1]);
-        mOffset = Long.parseLong(basenameElements[2]);
+        int generationEnd = path.indexOf('_', basenameStart + 1);
+        int kafkaPartitionEnd = path.indexOf('_', generationEnd + 1);
+        assert generationEnd > 0 && generationEnd < extensionStart &&
+               kafkaPartitionEnd > 0 && kafkaPartitionEnd < extensionStart: path;
+        int offsetEnd = path.indexOf('_', kafkaPartitionEnd + 1);
+        if (offsetEnd < 0 || offsetEnd > extensionStart) {
+            offsetEnd = extensionStart;
+        }
+        mGeneration = Integer.parseInt(path.substring(basenameStart + 1, generationEnd));
+        mKafkaPartition = Integer.parseInt(path.substring(generationEnd + 1, kafkaPartitionEnd));
+        mOffset = Long.parseLong(path.substring(kafkaPartitionEnd + 1, offsetEnd));
     }
 
     public LogFilePath withPrefix(String prefix) {
         return new LogFilePath(prefix, mTopic, mPartitions, mGeneration, mKafkaPartition, mOffset, mExtension);
     }
 
+    private static StringBuilder append(StringBuilder builder, String element) {
+        // Match StringUtils.join which renders null elements as empty strings.
+        return element == null ? builder : builder.append(element);
+    }
+
     public String getLogFileParentDir() {
-        ArrayList<String> elements = new ArrayList<String>();
-        elements.add(mPrefix);
-        elements.add(mTopic);
-        return StringUtils.join(elements, "/");
+        String parentDir = mLogFileParentDir;
+        if (parentDir == null) {
+            StringBuilder builder = new StringBuilder();
+            append(builder, mPrefix).append('/');
+            parentDir = append(builder, mTopic).toString();
+            mLogFileParentDir = parentDir;
+        }
+        return parentDir;
     }
 
     public String getLogFileDir() {
-        ArrayList<String> elements = new ArrayList<String>();
-        elements.add(getLogFileParentDir());
-        for (String partition : mPartitions) {
-            elements.add(partition);
+        String dir = mLogFileDir;
+        if (dir == null) {
+            StringBuilder builder = new StringBuilder(getLogFileParentDir());
+            for (String partition : mPartitions) {
+                append(builder.append('/'), partition);
+            }
+            dir = builder.toString();
+            mLogFileDir = dir;
         }
-        return StringUtils.join(elements, "/");
+        return dir;
     }
 
     private String getLogFileBasename() {
-        ArrayList<String> basenameElements = new ArrayList<String>();
-        basenameElements.add(Integer.toString(mGeneration));
-        basenameElements.add(Integer.toString(mKafkaPartition));
-        basenameElements.add(String.format("%020d", mOffset));
-        return StringUtils.join(basenameElements, "_");
+        String basename = mLogFileBasename;
+        if (basename == null) {
+            StringBuilder builder = new StringBuilder(32);
+            builder.append(mGeneration).append('_').append(mKafkaPartition).append('_');
+            if (mOffset >= 0) {
+                String offset = Long.toString(mOffset);
+                for (int i = offset.length(); i < 20; ++i) {
+                    builder.append('0');
+                }
+                builder.append(offset);
+            } else {
+                builder.append(String.format("%020d", mOffset));
+            }
+            basename = builder.toString();
+            mLogFileBasename = basename;
+        }
+        return basename;
     }
 
     public String getLogFilePath() {
-        String basename = getLogFileBasename();
-
-        ArrayList<String> pathElements = new ArrayList<String>();
-        pathElements.add(getLogFileDir());
-        pathElements.add(basename);
-
-        return StringUtils.join(pathElements, "/") + mExtension;
+        String path = mLogFilePath;
+        if (path == null) {
+            StringBuilder builder = new StringBuilder(getLogFileDir());
+            builder.append('/').append(getLogFileBasename());
+            path = append(builder, mExtension).toString();
+            mLogFilePath = path;
+        }
+        return path;
     }
 
     public String getLogFileCrcPath() {
-        String basename = "." + getLogFileBasename() + ".crc";
-
-        ArrayList<String> pathElements = new ArrayList<String>();
-        pathElements.add(getLogFileDir());
-        pathElements.add(basename);
-
-        return StringUtils.join(pathElements, "/");
+        String crcPath = mLogFileCrcPath;
+        if (crcPath == null) {
+            crcPath = getLogFileDir() + "/." + getLogFileBasename() + ".crc";
+            mLogFileCrcPath = crcPath;
+        }
+        return crcPath;
     }
 
     public String getTopic() {
@@ -205,12 +248,16 @@ public class LogFilePath {
 
     @Override
     public int hashCode() {
+        if (mHashCode != 0) {
+            return mHashCode;
+        }
         int result = mPrefix != null ? mPrefix.hashCode() : 0;
         result = 31 * result + (mTopic != null ? mTopic.hashCode() : 0);
         result = 31 * result + (mPartitions != null ? Arrays.hashCode(mPartitions) : 0);
         result = 31 * result + mGeneration;
         result = 31 * result + mKafkaPartition;
         result = 31 * result + (int) (mOffset ^ (mOffset >>> 32));
+        mHashCode = result;
         return result;
     }
 
@@ -19,38 +19,112 @@ package com.pinterest.secor.common;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Offset tracker stores offset related metadata.
  *
+ * Offsets are kept in primitive arrays indexed by ids handed out by a topic partition registry.
+ * Callers on the per-message path should resolve the id once and use the id-based accessors to
+ * avoid allocating, hashing, and boxing.
+ *
  * @author Pawel Garbacki (pawel@pinterest.com)
  */
 public class OffsetTracker {
     private static final Logger LOG = LoggerFactory.getLogger(OffsetTracker.class);
 
-    private HashMap<TopicPartition, Long> mLastSeenOffset;
-    private HashMap<TopicPartition, Long> mFirstSeendOffset;
-    private HashMap<TopicPartition, Long> mCommittedOffsetCount;
+    private static final long NO_LAST_SEEN_OFFSET = -2L;
+    private static final long NO_FIRST_SEEN_OFFSET = Long.MIN_VALUE;
+    private static final long NO_COMMITTED_OFFSET_COUNT = -1L;
+
+    // Offsets of all topic partitions.  When new topic partitions show up the arrays are copied
+    // into bigger ones and published as a whole, never resized in place.
+    private static class Offsets {
+        private final AtomicLongArray mLastSeenOffset;
+        private final AtomicLongArray mFirstSeendOffset;
+        private final AtomicLongArray mCommittedOffsetCount;
+
+        private Offsets(int length) {
+            mLastSeenOffset = new AtomicLongArray(length);
+            mFirstSeendOffset = new AtomicLongArray(length);
+            mCommittedOffsetCount = new AtomicLongArray(length);
+        }
+
+        private int length() {
+            return mLastSeenOffset.length();
+        }
+    }
+
+    private final TopicPartitionRegistry mTopicPartitions;
+    // Read without locking.  Uploader threads commit offsets while the consumer thread records
+    // seen offsets, so all writes, including the copying of the arrays, hold the lock of this
+    // tracker.  Otherwise a write could land in arrays that have just been copied and be lost.
+    private volatile Offsets mOffsets;
 
     public OffsetTracker() {
-        mLastSeenOffset = new HashMap<TopicPartition, Long>();
-        mCommittedOffsetCount = new HashMap<TopicPartition, Long>();
-        mFirstSeendOffset = new HashMap<TopicPartition, Long>();
+        this(new TopicPartitionRegistry());
     }
 
-    public long getLastSeenOffset(TopicPartition topicPartition) {
-        Long offset = mLastSeenOffset.get(topicPartition);
-        if (offset == null) {
-            return -2;
+    public OffsetTracker(TopicPartitionRegistry topicPartitions) {
+        mTopicPartitions = topicPartitions;
+        mOffsets = new Offsets(0);
+    }
+
+    public TopicPartitionRegistry getTopicPartitionRegistry() {
+        return mTopicPartitions;
+    }
+
+    public int getTopicPartitionId(String topic, int partition) {
+        return mTopicPartitions.getId(topic, partition);
+    }
+
+    // Must be called with the lock held.
+    private Offsets ensureCapacity(int id) {
+        Offsets offsets = mOffsets;
+        if (id < offsets.length()) {
+            return offsets;
+        }
+        int oldLength = offsets.length();
+        int length = Math.max(id + 1, oldLength * 2);
+        Offsets newOffsets = new Offsets(length);
+        for (int i = 0; i < length; ++i) {
+            if (i < oldLength) {
+                newOffsets.mLastSeenOffset.set(i, offsets.mLastSeenOffset.get(i));
+                newOffsets.mFirstSeendOffset.set(i, offsets.mFirstSeendOffset.get(i));
+                newOffsets.mCommittedOffsetCount.set(i, offsets.mCommittedOffsetCount.get(i));
+            } else {
+                newOffsets.mLastSeenOffset.set(i, NO_LAST_SEEN_OFFSET);
+                newOffsets.mFirstSeendOffset.set(i, NO_FIRST_SEEN_OFFSET);
+                newOffsets.mCommittedOffsetCount.set(i, NO_COMMITTED_OFFSET_COUNT);
+            }
         }
-        return offset.longValue();
+        mOffsets = newOffsets;
+        return newOffsets;
     }
 
-    public long setLastSeenOffset(TopicPartition topicPartition, long offset) {
-        long lastSeenOffset = getLastSeenOffset(topicPartition);
-        mLastSeenOffset.put(topicPartition, offset);
+    public long getLastSeenOffset(int topicPartitionId) {
+        Offsets offsets = mOffsets;
+        if (topicPartitionId >= offsets.length()) {
+            return NO_LAST_SEEN_OFFSET;
+        }
+        return offsets.mLastSeenOffset.get(topicPartitionId);
+    }
+
+    public long getLastSeenOffset(TopicPartition topicPartition) {
+        return getLastSeenOffset(mTopicPartitions.getId(topicPartition));
+    }
+
+    public long setLastSeenOffset(int topicPartitionId, long offset) {
+        long lastSeenOffset;
+        synchronized (this) {
+            Offsets offsets = ensureCapacity(topicPartitionId);
+            lastSeenOffset = offsets.mLastSeenOffset.getAndSet(topicPartitionId, offset);
+            if (offsets.mFirstSeendOffset.get(topicPartitionId) == NO_FIRST_SEEN_OFFSET) {
+                offsets.mFirstSeendOffset.set(topicPartitionId, offset);
+            }
+        }
         if (lastSeenOffset + 1 != offset) {
+            TopicPartition topicPartition = mTopicPartitions.getTopicPartition(topicPartitionId);
             if (lastSeenOffset >= 0) {
                 LOG.warn("offset for topic {} partition {} changed from {} to {}",
                         topicPartition.getTopic(),topicPartition.getPartition(),lastSeenOffset, offset);
@@ -59,37 +133,67 @@ public class OffsetTracker {
                         topicPartition.getTopic(),topicPartition.getPartition(),offset);
             }
         }
-        if (mFirstSeendOffset.get(topicPartition) == null) {
-            mFirstSeendOffset.put(topicPartition, offset);
-        }
         return lastSeenOffset;
     }
 
-    public long getTrueCommittedOffsetCount(TopicPartition topicPartition) {
-        Long committedOffsetCount = mCommittedOffsetCount.get(topicPartition);
-        if (committedOffsetCount == null) {
-            return -1L;
+    public long setLastSeenOffset(TopicPartition topicPartition, long offset) {
+        return setLastSeenOffset(mTopicPartitions.getId(topicPartition), offset);
+    }
+
+    public long getTrueCommittedOffsetCount(int topicPartitionId) {
+        Offsets offsets = mOffsets;
+        if (topicPartitionId >= offsets.length()) {
+            return NO_COMMITTED_OFFSET_COUNT;
         }
-        return committedOffsetCount;
+        return offsets.mCommittedOffsetCount.get(topicPartitionId);
     }
 
-    public long getAdjustedCommittedOffsetCount(TopicPartition topicPartition) {
-        long trueCommittedOffsetCount = getTrueCommittedOffsetCount(topicPartition);
-        if (trueCommittedOffsetCount == -1L) {
-            Long firstSeenOffset = mFirstSeendOffset.get(topicPartition);
-            if (firstSeenOffset != null) {
+    public long getTrueCommittedOffsetCount(TopicPartition topicPartition) {
+        return getTrueCommittedOffsetCount(mTopicPartitions.getId(topicPartition));
+    }
+
+    public long getAdjustedCommittedOffsetCount(int topicPartitionId) {
+        Offsets offsets = mOffsets;
+        if (topicPartitionId >= offsets.length()) {
+            return NO_COMMITTED_OFFSET_COUNT;
+        }
+        long trueCommittedOffsetCount = offsets.mCommittedOffsetCount.get(topicPartitionId);
+        if (trueCommittedOffsetCount == NO_COMMITTED_OFFSET_COUNT) {
+            long firstSeenOffset = offsets.mFirstSeendOffset.get(topicPartitionId);
+            if (firstSeenOffset != NO_FIRST_SEEN_OFFSET) {
                 return firstSeenOffset;
             }
         }
         return trueCommittedOffsetCount;
     }
 
-    public long setCommittedOffsetCount(TopicPartition topicPartition, long count) {
-        long trueCommittedOffsetCount = getTrueCommittedOffsetCount(topicPartition);
+    public long getAdjustedCommittedOffsetCount(TopicPartition topicPartition) {
+        return getAdjustedCommittedOffsetCount(mTopicPartitions.getId(topicPartition));
+    }
+
+    public synchronized long setCommittedOffsetCount(int topicPartitionId, long count) {
+        Offsets offsets = ensureCapacity(topicPartitionId);
+        long trueCommittedOffsetCount = offsets.mCommittedOffsetCount.get(topicPartitionId);
         // Committed offsets should never go back.
         assert trueCommittedOffsetCount <= count: Long.toString(trueCommittedOffsetCount) +
                 " <= " + count;
-        mCommittedOffsetCount.put(topicPartition, count);
+        offsets.mCommittedOffsetCount.set(topicPartitionId, count);
         return trueCommittedOffsetCount;
     }
+
+    public long setCommittedOffsetCount(TopicPartition topicPartition, long count) {
+        return setCommittedOffsetCount(mTopicPartitions.getId(topicPartition), count);
+    }
+
+    /**
+     * Set the committed offset count even if it goes back.  Used to undo a local commit whose
+     * files could not be uploaded.
+     */
+    public synchronized void resetCommittedOffsetCount(int topicPartitionId, long count) {
+        ensureCapacity(topicPartitionId).mCommittedOffsetCount.set(topicPartitionId, count);
+    }
+
+    public void resetCommittedOffsetCount(TopicPartition topicPartition, long count) {
+        resetCommittedOffsetCount(mTopicPartitions.getId(topicPartition), count);
+    }
 }
@@ -151,6 +151,30 @@ public class SecorConfig {
         return getInt("secor.messages.per.second");
     }
 
+    public boolean getConsumerPipelineEnabled() {
+        return getBoolean("secor.consumer.pipeline.enabled", false);
+    }
+
+    public int getConsumerPipelineParserThreads() {
+        return getInt("secor.consumer.pipeline.parser.threads", 4);
+    }
+
+    public int getConsumerPipelineQueueSize() {
+        return getInt("secor.consumer.pipeline.queue.size", 1000);
+    }
+
+    public int getConsumerReadBatchSize() {
+        return getInt("secor.consumer.read.batch.size", 1);
+    }
+
+    public long getConsumerReadBatchTimeoutMs() {
+        return getLong("secor.consumer.read.batch.timeout.ms", 1000L);
+    }
+
+    public boolean getConsumerReuseMessages() {
+        return getBoolean("secor.consumer.reuse.messages", false);
+    }
+
     public String getS3FileSystem() { return getString("secor.s3.filesystem"); }
 
     public boolean getSeparateContainersForTopics() {
@@ -221,6 +245,46 @@ public class SecorConfig {
         return getString("secor.upload.manager.class");
     }
 
+    public int getUploadParallelism() {
+        return getInt("secor.upload.parallelism", 1);
+    }
+
+    public boolean getUploadAsync() {
+        return getBoolean("secor.upload.async", false);
+    }
+
+    public boolean getUploadBatchCommit() {
+        return getBoolean("secor.upload.batch.commit", false);
+    }
+
+    public int getUploadThreads() {
+        return getInt("secor.upload.threads", 64);
+    }
+
+    public int getUploadQueueSize() {
+        return getInt("secor.upload.queue.size", 1024);
+    }
+
+    public int getUploadRetryMaxAttempts() {
+        return getInt("secor.upload.retry.max.attempts", 5);
+    }
+
+    public long getUploadRetryInitialBackoffMs() {
+        return getLong("secor.upload.retry.initial.backoff.ms", 1000L);
+    }
+
+    public long getUploadRetryMaxBackoffMs() {
+        return getLong("secor.upload.retry.max.backoff.ms", 30000L);
+    }
+
+    public int getUploadCircuitBreakerFailures() {
+        return getInt("secor.upload.circuit.breaker.failures", 20);
+    }
+
+    public long getUploadCircuitBreakerResetSeconds() {
+        return getLong("secor.upload.circuit.breaker.reset.seconds", 60L);
+    }
+
     public String getMessageTransformerClass(){
     	return getString("secor.message.transformer.class");
     }
@@ -229,6 +293,10 @@ public class SecorConfig {
         return getInt("secor.topic_partition.forget.seconds");
     }
 
+    public int getTopicPartitionSweepSeconds() {
+        return getInt("secor.topic_partition.sweep.seconds", 10);
+    }
+
     public int getLocalLogDeleteAgeHours() {
         return getInt("secor.local.log.delete.age.hours");
     }
@@ -289,6 +357,30 @@ public class SecorConfig {
         return getString("aws.sse.customer.key");
     }
 
+    public boolean getAwsClientPathStyleAccess() {
+        return getBoolean("aws.client.pathstyleaccess", false);
+    }
+
+    public int getAwsS3MaxConnections() {
+        return getInt("aws.s3.max.connections", 50);
+    }
+
+    public boolean getAwsS3MultipartEnabled() {
+        return getBoolean("aws.s3.multipart.enabled", false);
+    }
+
+    public long getAwsS3MultipartPartSizeBytes() {
+        return getLong("aws.s3.multipart.part.size.bytes", 64L * 1024L * 1024L);
+    }
+
+    public int getAwsS3MultipartPartConcurrency() {
+        return getInt("aws.s3.multipart.part.concurrency", 4);
+    }
+
+    public boolean getAwsS3StreamingUploadEnabled() {
+        return getBoolean("aws.s3.streaming.upload.enabled", false);
+    }
+
     public String getSwiftTenant() {
         return getString("swift.tenant");
     }
@@ -325,6 +417,15 @@ public class SecorConfig {
         return getString("qubole.api.token");
     }
 
+    public String getHiveMetastoreClientClass() {
+        return getString("secor.hive.metastore.client.class",
+                         "com.pinterest.secor.parser.QuboleClient");
+    }
+
+    public int getHivePartitionsPerStatement() {
+        return getInt("secor.hive.partitions.per.statement", 100);
+    }
+
     public String getTsdbHostport() {
         return getString("tsdb.hostport");
     }
@@ -369,6 +470,22 @@ public class SecorConfig {
         return getInt("secor.finalizer.lookback.periods", 10);
     }
 
+    public int getFileListingThreads() {
+        return getInt("secor.file.listing.threads", 16);
+    }
+
+    public String[] getFileListingFlatSchemes() {
+        return getStringArray("secor.file.listing.flat.schemes");
+    }
+
+    public int getFinalizerTopicThreads() {
+        return getInt("secor.finalizer.topic.threads", 8);
+    }
+
+    public int getFinalizerIoThreads() {
+        return getInt("secor.finalizer.io.threads", 32);
+    }
+
     public String getHivePrefix() { 
         return getString("secor.hive.prefix"); 
     }
@@ -385,6 +502,22 @@ public class SecorConfig {
     public int getMaxMessageSizeBytes() {
         return getInt("secor.max.message.size.bytes");
     }
+
+    public int getKafkaClientThreads() {
+        return getInt("secor.kafka.client.threads", 16);
+    }
+
+    public int getKafkaClientFetchMaxBytes() {
+        return getInt("secor.kafka.client.fetch.max.bytes", 10 * 1024 * 1024);
+    }
+
+    public int getKafkaClientSocketTimeoutMs() {
+        return getInt("secor.kafka.client.socket.timeout.ms", 100000);
+    }
+
+    public int getKafkaClientBufferSizeBytes() {
+        return getInt("secor.kafka.client.buffer.size.bytes", 64 * 1024);
+    }
     
     public String getFileReaderWriterFactory() {
     	return getString("secor.file.reader.writer.factory");
@@ -398,6 +531,20 @@ public class SecorConfig {
         return getString("secor.zookeeper.path");
     }
 
+    public boolean getZookeeperLeaseEnabled() {
+        return getBoolean("secor.zookeeper.lease.enabled", false);
+    }
+
+    public long getZookeeperLeaseIdleSeconds() {
+        // Age-triggered uploads of a topic partition are up to a max file age plus a policy check
+        // apart, a lease released sooner would be taken anew by every such upload.
+        return getLong("secor.zookeeper.lease.idle.seconds", 2L * getMaxFileAgeSeconds());
+    }
+
+    public boolean getZookeeperOffsetCacheEnabled() {
+        return getBoolean("secor.zookeeper.offset.cache.enabled", false);
+    }
+
     public String getGsCredentialsPath() {
         return getString("secor.gs.credentials.path");
     }
@@ -494,6 +641,10 @@ public class SecorConfig {
         return mProperties.getLong(name);
     }
 
+    public long getLong(String name, long defaultValue) {
+        return mProperties.getLong(name, defaultValue);
+    }
+
     public String[] getStringArray(String name) {
         return mProperties.getStringArray(name);
     }
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Topic partition registry interns topic partitions and assigns them small, dense integer ids.
+ * Ids are stable for the lifetime of the registry and can be used to index arrays.
+ *
+ * Lookups of known topic partitions are lock-free and do not allocate.  Per-topic id arrays are
+ * copied on write so readers never observe a partially updated array.
+ */
+public class TopicPartitionRegistry {
+    private static final int NO_ID = -1;
+
+    private final ConcurrentHashMap<String, int[]> mTopicIds;
+    private volatile TopicPartition[] mTopicPartitions;
+    private int mSize;
+
+    public TopicPartitionRegistry() {
+        mTopicIds = new ConcurrentHashMap<String, int[]>();
+        mTopicPartitions = new TopicPartition[16];
+    }
+
+    /**
+     * Get the id of a topic partition, registering it if it has not been seen before.
+     * @param topic The topic name.
+     * @param partition The kafka partition number.
+     * @return Id of the topic partition.
+     */
+    public int getId(String topic, int partition) {
+        int[] ids = mTopicIds.get(topic);
+        if (ids != null && partition < ids.length && ids[partition] != NO_ID) {
+            return ids[partition];
+        }
+        return register(topic, partition);
+    }
+
+    public int getId(TopicPartition topicPartition) {
+        return getId(topicPartition.getTopic(), topicPartition.getPartition());
+    }
+
+    private synchronized int register(String topic, int partition) {
+        int[] ids = mTopicIds.get(topic);
+        if (ids != null && partition < ids.length && ids[partition] != NO_ID) {
+            return ids[partition];
+        }
+        int[] newIds;
+        if (ids == null) {
+            newIds = new int[partition + 1];
+            Arrays.fill(newIds, NO_ID);
+        } else {
+            newIds = Arrays.copyOf(ids, Math.max(ids.length, partition + 1));
+            Arrays.fill(newIds, ids.length, newIds.length, NO_ID);
+        }
+        int id = mSize++;
+        TopicPartition[] topicPartitions = mTopicPartitions;
+        if (id >= topicPartitions.length) {
+            topicPartitions = Arrays.copyOf(topicPartitions, topicPartitions.length * 2);
+        }
+        topicPartitions[id] = new TopicPartition(topic, partition);
+        mTopicPartitions = topicPartitions;
+        newIds[partition] = id;
+        mTopicIds.put(topic, newIds);
+        return id;
+    }
+
+    /**
+     * Get the topic partition with a given id.
+     * @param id Id returned by getId.
+     * @return The interned topic partition.
+     */
+    public TopicPartition getTopicPartition(int id) {
+        return mTopicPartitions[id];
+    }
+
+    // @return the number of registered topic partitions
+    public synchronized int size() {
+        return mSize;
+    }
+}
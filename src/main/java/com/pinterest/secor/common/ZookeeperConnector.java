@@ -26,15 +26,27 @@ import com.twitter.common.zookeeper.ZooKeeperClient;
 import org.apache.commons.lang.StringUtils;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ZookeeperConnector implements interactions with Zookeeper.
@@ -46,8 +58,47 @@ public class ZookeeperConnector {
 
     private SecorConfig mConfig;
     private ZooKeeperClient mZookeeperClient;
-    private HashMap<String, DistributedLock> mLocks;
+    private Map<String, DistributedLock> mLocks;
     private String mCommittedOffsetGroupPath;
+    // Nodes known to exist, so that their creation can be skipped.
+    private final Set<String> mExistingPaths =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Versions of committed offset nodes as of their last read or write by this connector.
+    private final Map<String, Integer> mOffsetVersions = new ConcurrentHashMap<String, Integer>();
+    // Committed offsets kept up to date by watches, see getCachedCommittedOffsetCount.
+    private final Map<String, Long> mCachedOffsets = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong mOffsetInvalidations = new AtomicLong();
+    // Leases held by this connector's session with the time they were last used.
+    private final Map<String, Long> mLeases = new ConcurrentHashMap<String, Long>();
+    private final Watcher mLeaseWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getPath() == null) {
+                // Leases are gone with an expired session.  Be conservative while disconnected,
+                // leases still owned by the session are taken back by tryAcquireLease.
+                if (event.getState() != Event.KeeperState.SyncConnected) {
+                    mLeases.clear();
+                }
+            } else if (event.getType() == Event.EventType.NodeDeleted) {
+                mLeases.remove(event.getPath());
+            }
+        }
+    };
+    private final Watcher mOffsetWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            mOffsetInvalidations.incrementAndGet();
+            if (event.getPath() == null) {
+                // Watches do not survive an expired session, and events may have been missed
+                // while disconnected.
+                if (event.getState() != Event.KeeperState.SyncConnected) {
+                    mCachedOffsets.clear();
+                }
+            } else {
+                mCachedOffsets.remove(event.getPath());
+            }
+        }
+    };
 
     protected ZookeeperConnector() {
     }
@@ -55,7 +106,8 @@ public class ZookeeperConnector {
     public ZookeeperConnector(SecorConfig config) {
         mConfig = config;
         mZookeeperClient = new ZooKeeperClient(Amount.of(1, Time.DAYS), getZookeeperAddresses());
-        mLocks = new HashMap<String, DistributedLock>();
+        // Locks of different topic partitions may be taken concurrently by parallel uploads.
+        mLocks = new ConcurrentHashMap<String, DistributedLock>();
     }
 
     private Iterable<InetSocketAddress> getZookeeperAddresses() {
@@ -86,6 +138,77 @@ public class ZookeeperConnector {
         mLocks.remove(lockPath);
     }
 
+    /**
+     * Try to take a lease on a path.  A lease is an ephemeral node owned by the zookeeper session
+     * of this connector.  Unlike a lock it is kept after use, so taking a lease that is already
+     * held is a local lookup.
+     * @param leasePath Path of the lease node.
+     * @return true if the lease is held by this connector, false if someone else holds it.
+     * @throws Exception
+     */
+    public boolean tryAcquireLease(String leasePath) throws Exception {
+        long now = System.currentTimeMillis();
+        if (mLeases.containsKey(leasePath)) {
+            mLeases.put(leasePath, now);
+            return true;
+        }
+        ZooKeeper zookeeper = mZookeeperClient.get();
+        createMissingParents(leasePath);
+        try {
+            zookeeper.create(leasePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+            LOG.info("acquired lease {}", leasePath);
+        } catch (KeeperException.NodeExistsException exception) {
+            Stat stat = zookeeper.exists(leasePath, false);
+            if (stat == null || stat.getEphemeralOwner() != zookeeper.getSessionId()) {
+                LOG.debug("lease {} is held by someone else", leasePath);
+                return false;
+            }
+        }
+        if (zookeeper.exists(leasePath, mLeaseWatcher) == null) {
+            return false;
+        }
+        mLeases.put(leasePath, now);
+        return true;
+    }
+
+    /**
+     * Give up a lease.  Does nothing if the lease is not held.
+     * @param leasePath Path of the lease node.
+     * @throws Exception
+     */
+    public void releaseLease(String leasePath) throws Exception {
+        if (mLeases.remove(leasePath) == null) {
+            return;
+        }
+        LOG.info("releasing lease {}", leasePath);
+        try {
+            mZookeeperClient.get().delete(leasePath, -1);
+        } catch (KeeperException.NoNodeException exception) {
+        }
+    }
+
+    /**
+     * @return Paths of the leases held by this connector.
+     */
+    public Set<String> getLeasePaths() {
+        return new HashSet<String>(mLeases.keySet());
+    }
+
+    /**
+     * Give up leases that have not been used since a given time.
+     * @param cutoffMillis Leases last used before this time are released.
+     * @throws Exception
+     */
+    public void releaseLeasesIdleSince(long cutoffMillis) throws Exception {
+        Iterator<Map.Entry<String, Long>> iterator = mLeases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getValue() < cutoffMillis) {
+                releaseLease(entry.getKey());
+            }
+        }
+    }
+
     protected String getCommittedOffsetGroupPath() {
         if (Strings.isNullOrEmpty(mCommittedOffsetGroupPath)) {
             String stripped = StringUtils.strip(mConfig.getKafkaZookeeperPath(), "/");
@@ -113,14 +236,53 @@ public class ZookeeperConnector {
         ZooKeeper zookeeper = mZookeeperClient.get();
         String offsetPath = getCommittedOffsetPartitionPath(topicPartition);
         try {
-            byte[] data = zookeeper.getData(offsetPath, false, null);
+            Stat stat = new Stat();
+            byte[] data = zookeeper.getData(offsetPath, false, stat);
+            mExistingPaths.add(offsetPath);
+            mOffsetVersions.put(offsetPath, stat.getVersion());
             return Long.parseLong(new String(data));
         } catch (KeeperException.NoNodeException exception) {
             LOG.warn("path {} does not exist in zookeeper", offsetPath);
+            mExistingPaths.remove(offsetPath);
+            mOffsetVersions.remove(offsetPath);
             return -1;
         }
     }
 
+    /**
+     * Get the committed offset count from a local cache.  Cached values are invalidated by
+     * zookeeper watches so they may lag behind for as long as it takes to deliver a watch event.
+     * Decisions that must not act on a stale value should use getCommittedOffsetCount.
+     * @param topicPartition The topic partition to get the offset count for.
+     * @return Committed offset count, or -1 if no offset has been committed.
+     * @throws Exception
+     */
+    public long getCachedCommittedOffsetCount(TopicPartition topicPartition) throws Exception {
+        String offsetPath = getCommittedOffsetPartitionPath(topicPartition);
+        Long cachedCount = mCachedOffsets.get(offsetPath);
+        if (cachedCount != null) {
+            return cachedCount;
+        }
+        ZooKeeper zookeeper = mZookeeperClient.get();
+        // A watch event arriving while the value is being read makes the value unsafe to cache.
+        long invalidations = mOffsetInvalidations.get();
+        long count;
+        try {
+            byte[] data = zookeeper.getData(offsetPath, mOffsetWatcher, null);
+            count = Long.parseLong(new String(data));
+        } catch (KeeperException.NoNodeException exception) {
+            // Watch for the creation of the node.
+            if (zookeeper.exists(offsetPath, mOffsetWatcher) != null) {
+                return getCommittedOffsetCount(topicPartition);
+            }
+            count = -1;
+        }
+        if (mOffsetInvalidations.get() == invalidations) {
+            mCachedOffsets.put(offsetPath, count);
+        }
+        return count;
+    }
+
     public List<Integer> getCommittedOffsetPartitions(String topic) throws Exception {
         ZooKeeper zookeeper = mZookeeperClient.get();
         String topicPath = getCommittedOffsetTopicPath(topic);
@@ -150,15 +312,23 @@ public class ZookeeperConnector {
     private void createMissingParents(String path) throws Exception {
         ZooKeeper zookeeper = mZookeeperClient.get();
         assert path.charAt(0) == '/': path + ".charAt(0) == '/'";
+        int end = path.lastIndexOf('/');
+        if (end <= 0 || mExistingPaths.contains(path.substring(0, end))) {
+            return;
+        }
         String[] elements = path.split("/");
         String prefix = "";
         for (int i = 1; i < elements.length - 1; ++i) {
             prefix += "/" + elements[i];
+            if (mExistingPaths.contains(prefix)) {
+                continue;
+            }
             try {
                 zookeeper.create(prefix, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
                 LOG.info("created path {}", prefix);
             } catch (KeeperException.NodeExistsException exception) {
             }
+            mExistingPaths.add(prefix);
         }
     }
 
@@ -172,10 +342,123 @@ public class ZookeeperConnector {
         try {
             LOG.info("setting zookeeper path {} value {}", offsetPath, count);
             // -1 matches any version
-            zookeeper.setData(offsetPath, data, -1);
+            Stat stat = zookeeper.setData(offsetPath, data, -1);
+            mOffsetVersions.put(offsetPath, stat.getVersion());
         } catch (KeeperException.NoNodeException exception) {
             zookeeper.create(offsetPath, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            mOffsetVersions.put(offsetPath, 0);
+        }
+        mExistingPaths.add(offsetPath);
+    }
+
+    /**
+     * Commit offsets of many topic partitions in a single transaction.
+     *
+     * Offset nodes read by getCommittedOffsetCount are only updated if they have not changed
+     * since.  If another process committed any of the offsets in the meantime, the remaining
+     * offsets are committed one by one with the same version checks.
+     * @param counts Committed offset counts keyed by topic partition.
+     * @return Topic partitions whose offsets were committed, the others were committed by another
+     *     process.
+     * @throws Exception
+     */
+    public Set<TopicPartition> setCommittedOffsetCounts(Map<TopicPartition, Long> counts)
+            throws Exception {
+        if (counts.isEmpty()) {
+            return Collections.emptySet();
+        }
+        ZooKeeper zookeeper = mZookeeperClient.get();
+        List<String> offsetPaths = new ArrayList<String>(counts.size());
+        // Expected versions of offset nodes, null for nodes to be created.
+        List<Integer> versions = new ArrayList<Integer>(counts.size());
+        List<Op> ops = new ArrayList<Op>(counts.size());
+        for (Map.Entry<TopicPartition, Long> entry : counts.entrySet()) {
+            String offsetPath = getCommittedOffsetPartitionPath(entry.getKey());
+            createMissingParents(offsetPath);
+            byte[] data = Long.toString(entry.getValue()).getBytes();
+            if (mExistingPaths.contains(offsetPath)) {
+                Integer version = mOffsetVersions.get(offsetPath);
+                version = version == null ? -1 : version;
+                ops.add(Op.setData(offsetPath, data, version));
+                versions.add(version);
+            } else {
+                ops.add(Op.create(offsetPath, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                  CreateMode.PERSISTENT));
+                versions.add(null);
+            }
+            offsetPaths.add(offsetPath);
         }
+        LOG.info("setting {} zookeeper offsets in one transaction", ops.size());
+        List<OpResult> results;
+        try {
+            results = zookeeper.multi(ops);
+        } catch (KeeperException.NoNodeException exception) {
+            return commitOneByOne(counts, offsetPaths, versions, exception);
+        } catch (KeeperException.NodeExistsException exception) {
+            return commitOneByOne(counts, offsetPaths, versions, exception);
+        } catch (KeeperException.BadVersionException exception) {
+            return commitOneByOne(counts, offsetPaths, versions, exception);
+        } catch (KeeperException exception) {
+            for (String offsetPath : offsetPaths) {
+                mOffsetVersions.remove(offsetPath);
+            }
+            throw exception;
+        }
+        for (int i = 0; i < results.size(); ++i) {
+            OpResult result = results.get(i);
+            String offsetPath = offsetPaths.get(i);
+            mExistingPaths.add(offsetPath);
+            if (result instanceof OpResult.SetDataResult) {
+                mOffsetVersions.put(offsetPath,
+                                    ((OpResult.SetDataResult) result).getStat().getVersion());
+            } else {
+                mOffsetVersions.put(offsetPath, 0);
+            }
+        }
+        return new HashSet<TopicPartition>(counts.keySet());
+    }
+
+    // A single conflicting offset failed the transaction, commit the others without it.
+    private Set<TopicPartition> commitOneByOne(Map<TopicPartition, Long> counts,
+                                               List<String> offsetPaths, List<Integer> versions,
+                                               KeeperException exception) throws Exception {
+        LOG.warn("transactional offset commit failed, committing offsets one by one", exception);
+        ZooKeeper zookeeper = mZookeeperClient.get();
+        Set<TopicPartition> committed = new HashSet<TopicPartition>();
+        int i = 0;
+        for (Map.Entry<TopicPartition, Long> entry : counts.entrySet()) {
+            String offsetPath = offsetPaths.get(i);
+            Integer version = versions.get(i);
+            ++i;
+            byte[] data = Long.toString(entry.getValue()).getBytes();
+            try {
+                if (version != null) {
+                    try {
+                        Stat stat = zookeeper.setData(offsetPath, data, version);
+                        mOffsetVersions.put(offsetPath, stat.getVersion());
+                        committed.add(entry.getKey());
+                        continue;
+                    } catch (KeeperException.NoNodeException noNodeException) {
+                        // Deleted since it was read, create it anew.
+                    }
+                }
+                zookeeper.create(offsetPath, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                 CreateMode.PERSISTENT);
+                mExistingPaths.add(offsetPath);
+                mOffsetVersions.put(offsetPath, 0);
+                committed.add(entry.getKey());
+            } catch (KeeperException.BadVersionException badVersionException) {
+                LOG.warn("offset {} was committed by someone else, not overwriting it",
+                         offsetPath);
+                mOffsetVersions.remove(offsetPath);
+            } catch (KeeperException.NodeExistsException nodeExistsException) {
+                LOG.warn("offset {} was committed by someone else, not overwriting it",
+                         offsetPath);
+                mExistingPaths.add(offsetPath);
+                mOffsetVersions.remove(offsetPath);
+            }
+        }
+        return committed;
     }
 
     public void deleteCommittedOffsetTopicCount(String topic) throws Exception {
@@ -186,6 +469,8 @@ public class ZookeeperConnector {
             String offsetPath = getCommittedOffsetPartitionPath(topicPartition);
             LOG.info("deleting path {}", offsetPath);
             zookeeper.delete(offsetPath, -1);
+            mExistingPaths.remove(offsetPath);
+            mOffsetVersions.remove(offsetPath);
         }
     }
 
@@ -195,9 +480,15 @@ public class ZookeeperConnector {
         ZooKeeper zookeeper = mZookeeperClient.get();
         LOG.info("deleting path {}", offsetPath);
         zookeeper.delete(offsetPath, -1);
+        mExistingPaths.remove(offsetPath);
+        mOffsetVersions.remove(offsetPath);
     }
 
     protected void setConfig(SecorConfig config) {
         this.mConfig = config;
     }
+
+    protected void setZookeeperClient(ZooKeeperClient zookeeperClient) {
+        this.mZookeeperClient = zookeeperClient;
+    }
 }
@@ -19,6 +19,7 @@ package com.pinterest.secor.consumer;
 import com.pinterest.secor.common.FileRegistry;
 import com.pinterest.secor.common.OffsetTracker;
 import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.common.TopicPartition;
 import com.pinterest.secor.message.Message;
 import com.pinterest.secor.message.ParsedMessage;
 import com.pinterest.secor.parser.MessageParser;
@@ -29,13 +30,19 @@ import com.pinterest.secor.reader.MessageReader;
 import com.pinterest.secor.util.ReflectionUtil;
 import com.pinterest.secor.writer.MessageWriter;
 
+import kafka.consumer.ConsumerThreadId;
 import kafka.consumer.ConsumerTimeoutException;
+import kafka.javaapi.consumer.ConsumerRebalanceListener;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.Thread;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Consumer is a top-level component coordinating reading, writing, and uploading Kafka log
@@ -58,6 +65,7 @@ public class Consumer extends Thread {
     private OffsetTracker mOffsetTracker;
     private MessageTransformer mMessageTransformer;
     private Uploader mUploader;
+    private ConsumerPipeline mPipeline;
     // TODO(pawel): we should keep a count per topic partition.
     private double mUnparsableMessages;
 
@@ -67,16 +75,59 @@ public class Consumer extends Thread {
 
     private void init() throws Exception {
         mOffsetTracker = new OffsetTracker();
-        mMessageReader = new MessageReader(mConfig, mOffsetTracker);
         FileRegistry fileRegistry = new FileRegistry(mConfig);
         UploadManager uploadManager = ReflectionUtil.createUploadManager(mConfig.getUploadManagerClass(), mConfig);
+        fileRegistry.setUploadManager(uploadManager);
 
         mUploader = ReflectionUtil.createUploader(mConfig.getUploaderClass());
         mUploader.init(mConfig, mOffsetTracker, fileRegistry, uploadManager);
+        // The uploader must exist before the reader since rebalances start with the reader.
+        mMessageReader = new MessageReader(mConfig, mOffsetTracker,
+                                           new UploaderRebalanceListener(mUploader));
         mMessageWriter = new MessageWriter(mConfig, mOffsetTracker, fileRegistry);
-        mMessageParser = ReflectionUtil.createMessageParser(mConfig.getMessageParserClass(), mConfig);
-        mMessageTransformer =  ReflectionUtil.createMessageTransformer(mConfig.getMessageTransformerClass(), mConfig);
         mUnparsableMessages = 0.;
+        if (mConfig.getConsumerPipelineEnabled()) {
+            // Pipeline workers create their own parsers and transformers.
+            mPipeline = new ConsumerPipeline(mConfig, mMessageReader);
+        } else {
+            mMessageParser = ReflectionUtil.createMessageParser(mConfig.getMessageParserClass(), mConfig);
+            mMessageTransformer =  ReflectionUtil.createMessageTransformer(mConfig.getMessageTransformerClass(), mConfig);
+        }
+    }
+
+    /**
+     * Tells the uploader which topic partitions this consumer owns after a rebalance, so that it
+     * can release leases of the others.
+     */
+    private static class UploaderRebalanceListener implements ConsumerRebalanceListener {
+        private final Uploader mUploader;
+
+        private UploaderRebalanceListener(Uploader uploader) {
+            mUploader = uploader;
+        }
+
+        @Override
+        public void beforeReleasingPartitions(Map<String, Set<Integer>> partitionOwnership) {
+        }
+
+        @Override
+        public void beforeStartingFetchers(String consumerId,
+                Map<String, Map<Integer, ConsumerThreadId>> globalPartitionAssignment) {
+            Set<TopicPartition> topicPartitions = new HashSet<TopicPartition>();
+            for (Map.Entry<String, Map<Integer, ConsumerThreadId>> topic :
+                    globalPartitionAssignment.entrySet()) {
+                for (Map.Entry<Integer, ConsumerThreadId> partition :
+                        topic.getValue().entrySet()) {
+                    if (consumerId.equals(partition.getValue().consumer())) {
+                        topicPartitions.add(new TopicPartition(topic.getKey(),
+                                                               partition.getKey()));
+                    }
+                }
+            }
+            LOG.info("consumer {} was assigned topic partitions {}", consumerId,
+                     topicPartitions);
+            mUploader.setAssignedTopicPartitions(topicPartitions);
+        }
     }
 
     @Override
@@ -93,20 +144,34 @@ public class Consumer extends Thread {
         long checkMessagesPerSecond = mConfig.getMessagesPerSecond();
         long nMessages = 0;
         long lastChecked = System.currentTimeMillis();
+        if (mPipeline != null) {
+            mPipeline.start();
+        }
         while (true) {
-            boolean hasMoreMessages = consumeNextMessage();
-            if (!hasMoreMessages) {
+            int consumedMessages = mPipeline != null ? consumeNextParsedMessage() :
+                consumeNextMessages();
+            if (consumedMessages < 0) {
                 break;
             }
 
             long now = System.currentTimeMillis();
-            if (nMessages++ % checkMessagesPerSecond == 0 ||
+            nMessages += consumedMessages;
+            if (nMessages >= checkMessagesPerSecond ||
                     (now - lastChecked) > checkEveryNSeconds * 1000) {
+                nMessages = 0;
                 lastChecked = now;
                 checkUploadPolicy();
             }
         }
+        if (mPipeline != null) {
+            mPipeline.shutdown();
+        }
         checkUploadPolicy();
+        try {
+            mUploader.waitForUploads();
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to upload files", e);
+        }
     }
 
     private void checkUploadPolicy() {
@@ -117,20 +182,29 @@ public class Consumer extends Thread {
         }
     }
 
-    // @return whether there are more messages left to consume
-    private boolean consumeNextMessage() {
-        Message rawMessage = null;
+    // @return the number of consumed messages or -1 if there are no more messages left to consume
+    private int consumeNextMessages() {
+        List<Message> rawMessages = null;
         try {
             boolean hasNext = mMessageReader.hasNext();
             if (!hasNext) {
-                return false;
+                return -1;
             }
-            rawMessage = mMessageReader.read();
+            rawMessages = mMessageReader.readBatch(mConfig.getConsumerReadBatchSize(),
+                                                   mConfig.getConsumerReadBatchTimeoutMs());
         } catch (ConsumerTimeoutException e) {
             // We wait for a new message with a timeout to periodically apply the upload policy
             // even if no messages are delivered.
             LOG.trace("Consumer timed out", e);
+            return 0;
         }
+        for (Message rawMessage : rawMessages) {
+            consumeMessage(rawMessage);
+        }
+        return rawMessages.size();
+    }
+
+    private void consumeMessage(Message rawMessage) {
         if (rawMessage != null) {
             // Before parsing, update the offset and remove any redundant data
             try {
@@ -145,23 +219,66 @@ public class Consumer extends Thread {
                 final double DECAY = 0.999;
                 mUnparsableMessages *= DECAY;
             } catch (Throwable e) {
-                mUnparsableMessages++;
-                final double MAX_UNPARSABLE_MESSAGES = 1000.;
-                if (mUnparsableMessages > MAX_UNPARSABLE_MESSAGES) {
-                    throw new RuntimeException("Failed to parse message " + rawMessage, e);
-                }
-                LOG.warn("Failed to parse message {}", rawMessage, e);
+                handleUnparsableMessage(rawMessage, e);
             }
 
             if (parsedMessage != null) {
-                try {
-                    mMessageWriter.write(parsedMessage);
-                } catch (Exception e) {
-                    throw new RuntimeException("Failed to write message " + parsedMessage, e);
-                }
+                writeMessage(parsedMessage);
             }
         }
-        return true;
+    }
+
+    // @return the number of consumed messages or -1 if there are no more messages left to consume
+    private int consumeNextParsedMessage() {
+        ConsumerPipeline.ParseResult result;
+        try {
+            result = mPipeline.poll(mConfig.getConsumerTimeoutMs());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for parsed messages", e);
+        }
+        if (result == null) {
+            // Either the pipeline timed out or it has been drained.
+            return mPipeline.isDone() ? -1 : 0;
+        }
+        Message rawMessage = result.getRawMessage();
+        // The committed offset may have moved forward while the message was in flight.
+        int topicPartitionId = mOffsetTracker.getTopicPartitionId(rawMessage.getTopic(),
+                                                                  rawMessage.getKafkaPartition());
+        if (rawMessage.getOffset() < mOffsetTracker.getTrueCommittedOffsetCount(topicPartitionId)) {
+            LOG.debug("skipping message {} because its offset precedes committed offset count",
+                    rawMessage);
+            return 1;
+        }
+        try {
+            mMessageWriter.adjustOffset(rawMessage);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to adjust offset.", e);
+        }
+        if (result.getParsedMessage() != null) {
+            final double DECAY = 0.999;
+            mUnparsableMessages *= DECAY;
+            writeMessage(result.getParsedMessage());
+        } else {
+            handleUnparsableMessage(rawMessage, result.getError());
+        }
+        return 1;
+    }
+
+    private void handleUnparsableMessage(Message rawMessage, Throwable e) {
+        mUnparsableMessages++;
+        final double MAX_UNPARSABLE_MESSAGES = 1000.;
+        if (mUnparsableMessages > MAX_UNPARSABLE_MESSAGES) {
+            throw new RuntimeException("Failed to parse message " + rawMessage, e);
+        }
+        LOG.warn("Failed to parse message {}", rawMessage, e);
+    }
+
+    private void writeMessage(ParsedMessage parsedMessage) {
+        try {
+            mMessageWriter.write(parsedMessage);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to write message " + parsedMessage, e);
+        }
     }
 
     /**
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.consumer;
+
+import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.message.Message;
+import com.pinterest.secor.message.ParsedMessage;
+import com.pinterest.secor.parser.MessageParser;
+import com.pinterest.secor.reader.MessageReader;
+import com.pinterest.secor.transformer.MessageTransformer;
+import com.pinterest.secor.util.ReflectionUtil;
+
+import kafka.consumer.ConsumerTimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumer pipeline decouples reading Kafka messages from parsing them.  A dedicated fetcher
+ * thread reads raw messages and hands them to a pool of parser threads.  Parse results are
+ * queued in the order in which messages were read so that the consumer thread, which owns the
+ * writer and the uploader, observes messages of every topic partition in offset order.
+ *
+ * Both the parser pool and the result queue are bounded.  A slow writer blocks the fetcher
+ * rather than letting unwritten messages pile up in memory.
+ *
+ * Parsers and transformers are not required to be thread-safe (e.g., the timestamp parsers use
+ * SimpleDateFormat) so each parser thread gets its own instances.
+ */
+public class ConsumerPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(ConsumerPipeline.class);
+
+    /**
+     * Outcome of transforming and parsing a single raw message.
+     */
+    public static class ParseResult {
+        private final Message mRawMessage;
+        private final ParsedMessage mParsedMessage;
+        private final Throwable mError;
+
+        public ParseResult(Message rawMessage, ParsedMessage parsedMessage, Throwable error) {
+            mRawMessage = rawMessage;
+            mParsedMessage = parsedMessage;
+            mError = error;
+        }
+
+        public Message getRawMessage() {
+            return mRawMessage;
+        }
+
+        // @return parsed message or null if parsing failed
+        public ParsedMessage getParsedMessage() {
+            return mParsedMessage;
+        }
+
+        public Throwable getError() {
+            return mError;
+        }
+    }
+
+    private static final Future<ParseResult> END_OF_STREAM = new FutureTask<ParseResult>(
+        new Callable<ParseResult>() {
+            @Override
+            public ParseResult call() {
+                return null;
+            }
+        });
+
+    private final SecorConfig mConfig;
+    private final MessageReader mMessageReader;
+    private final BlockingQueue<Future<ParseResult>> mResults;
+    private final ExecutorService mParserPool;
+    private final ThreadLocal<MessageParser> mMessageParser;
+    private final ThreadLocal<MessageTransformer> mMessageTransformer;
+    private final Thread mFetcher;
+    private volatile boolean mRunning;
+    private volatile Throwable mFetchError;
+    private boolean mDone;
+
+    public ConsumerPipeline(SecorConfig config, MessageReader messageReader) {
+        mConfig = config;
+        mMessageReader = messageReader;
+        final int queueSize = mConfig.getConsumerPipelineQueueSize();
+        final int parserThreads = mConfig.getConsumerPipelineParserThreads();
+        mResults = new ArrayBlockingQueue<Future<ParseResult>>(queueSize);
+        // When all parsers are busy and their queue is full, the fetcher parses the message
+        // itself which throttles reads from Kafka.
+        mParserPool = new ThreadPoolExecutor(parserThreads, parserThreads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        mMessageParser = new ThreadLocal<MessageParser>() {
+            @Override
+            protected MessageParser initialValue() {
+                try {
+                    return ReflectionUtil.createMessageParser(mConfig.getMessageParserClass(),
+                            mConfig);
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to create message parser", e);
+                }
+            }
+        };
+        mMessageTransformer = new ThreadLocal<MessageTransformer>() {
+            @Override
+            protected MessageTransformer initialValue() {
+                try {
+                    return ReflectionUtil.createMessageTransformer(
+                            mConfig.getMessageTransformerClass(), mConfig);
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to create message transformer", e);
+                }
+            }
+        };
+        mFetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fetch();
+            }
+        }, Thread.currentThread().getName() + "-fetcher");
+        mFetcher.setDaemon(true);
+    }
+
+    public void start() {
+        LOG.info("starting consumer pipeline with {} parser threads and queue size {}",
+                mConfig.getConsumerPipelineParserThreads(),
+                mConfig.getConsumerPipelineQueueSize());
+        mRunning = true;
+        mFetcher.start();
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        mFetcher.interrupt();
+        mParserPool.shutdownNow();
+    }
+
+    private ParseResult parse(Message rawMessage) {
+        try {
+            Message transformedMessage = mMessageTransformer.get().transform(rawMessage);
+            ParsedMessage parsedMessage = mMessageParser.get().parse(transformedMessage);
+            return new ParseResult(rawMessage, parsedMessage, null);
+        } catch (Throwable e) {
+            return new ParseResult(rawMessage, null, e);
+        }
+    }
+
+    private void fetch() {
+        try {
+            while (mRunning) {
+                try {
+                    if (!mMessageReader.hasNext()) {
+                        break;
+                    }
+                    List<Message> rawMessages = mMessageReader.readBatch(
+                            mConfig.getConsumerReadBatchSize(),
+                            mConfig.getConsumerReadBatchTimeoutMs());
+                    for (final Message rawMessage : rawMessages) {
+                        mResults.put(mParserPool.submit(new Callable<ParseResult>() {
+                            @Override
+                            public ParseResult call() {
+                                return parse(rawMessage);
+                            }
+                        }));
+                    }
+                } catch (ConsumerTimeoutException e) {
+                    LOG.trace("Consumer timed out", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.info("Fetcher interrupted");
+        } catch (Throwable e) {
+            mFetchError = e;
+        }
+        try {
+            mResults.put(END_OF_STREAM);
+        } catch (InterruptedException e) {
+            LOG.info("Fetcher interrupted");
+        }
+    }
+
+    /**
+     * Retrieve the next parse result in read order.
+     * @param timeoutMs How long to wait for the next result to become available.
+     * @return The next parse result or null if none is available within the timeout or the
+     *     pipeline is done.
+     */
+    public ParseResult poll(long timeoutMs) throws InterruptedException {
+        if (mDone) {
+            return null;
+        }
+        Future<ParseResult> result = mResults.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (result == null) {
+            return null;
+        }
+        if (result == END_OF_STREAM) {
+            mDone = true;
+            if (mFetchError != null) {
+                throw new RuntimeException("Failed to fetch messages", mFetchError);
+            }
+            return null;
+        }
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to parse message", e.getCause());
+        }
+    }
+
+    // @return whether the fetcher has stopped and all results have been consumed
+    public boolean isDone() {
+        return mDone;
+    }
+}
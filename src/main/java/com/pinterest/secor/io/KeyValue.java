@@ -25,9 +25,9 @@ package com.pinterest.secor.io;
  */
 public class KeyValue {
 	
-	private final long mOffset;
-	private final byte[] mKafkaKey;
-	private final byte[] mValue;
+	private long mOffset;
+	private byte[] mKafkaKey;
+	private byte[] mValue;
 
 	// constructor
 	public KeyValue(long offset, byte[] value) {
@@ -43,6 +43,13 @@ public class KeyValue {
 		this.mValue = value;
 	}
 
+	// reinitialize in place, used by writers that recycle the instance across messages
+	public void reset(long offset, byte[] kafkaKey, byte[] value) {
+		this.mOffset = offset;
+		this.mKafkaKey = kafkaKey;
+		this.mValue = value;
+	}
+
 	public long getOffset() {
 		return this.mOffset;
 	}
@@ -42,7 +42,11 @@ public class PartitionFinalizerMain {
             SecorConfig config = SecorConfig.load();
             FileUtil.configure(config);
             PartitionFinalizer partitionFinalizer = new PartitionFinalizer(config);
-            partitionFinalizer.finalizePartitions();
+            try {
+                partitionFinalizer.finalizePartitions();
+            } finally {
+                partitionFinalizer.close();
+            }
         } catch (Throwable t) {
             LOG.error("Partition finalizer failed", t);
             System.exit(1);
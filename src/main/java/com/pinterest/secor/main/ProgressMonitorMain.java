@@ -40,7 +40,11 @@ public class ProgressMonitorMain {
         try {
             SecorConfig config = SecorConfig.load();
             ProgressMonitor progressMonitor = new ProgressMonitor(config);
-            progressMonitor.exportStats();
+            try {
+                progressMonitor.exportStats();
+            } finally {
+                progressMonitor.close();
+            }
         } catch (Throwable t) {
             LOG.error("Progress monitor failed", t);
             System.exit(1);
@@ -49,6 +49,15 @@ public class Message {
     }
 
     public Message(String topic, int kafkaPartition, long offset, byte[] kafkaKey, byte[] payload) {
+        reset(topic, kafkaPartition, offset, kafkaKey, payload);
+    }
+
+    /**
+     * Reinitialize the message in place.  Consumers that recycle message instances call this
+     * instead of allocating a new message for every record.
+     */
+    public final void reset(String topic, int kafkaPartition, long offset, byte[] kafkaKey,
+                            byte[] payload) {
         mTopic = topic;
         mKafkaPartition = kafkaPartition;
         mOffset = offset;
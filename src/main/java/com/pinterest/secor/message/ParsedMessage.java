@@ -43,4 +43,8 @@ public class ParsedMessage extends Message {
     public String[] getPartitions() {
         return mPartitions;
     }
+
+    public void setPartitions(String[] partitions) {
+        mPartitions = partitions;
+    }
 }
@@ -26,9 +26,6 @@ import org.slf4j.LoggerFactory;
 import com.pinterest.secor.common.SecorConfig;
 import com.pinterest.secor.message.Message;
 
-import net.minidev.json.JSONObject;
-import net.minidev.json.JSONValue;
-
 /**
  * DateMessageParser extracts timestamp field (specified by 'message.timestamp.name') 
  *  and the date pattern (specified by 'message.timestamp.input.pattern')
@@ -57,11 +54,10 @@ public class DateMessageParser extends MessageParser {
 
     @Override
     public String[] extractPartitions(Message message) {
-        JSONObject jsonObject = (JSONObject) JSONValue.parse(message.getPayload());
+        Object fieldValue = getJsonFieldValue(message.getPayload(), false);
         String result[] = { defaultDate };
 
-        if (jsonObject != null) {
-            Object fieldValue = getJsonFieldValue(jsonObject);
+        if (fieldValue != INVALID_JSON) {
             if (fieldValue != null && inputPattern != null) {
                 try {
                     Date dateFormat = inputFormatter.parse(fieldValue.toString());
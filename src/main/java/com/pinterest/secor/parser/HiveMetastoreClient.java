@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.parser;
+
+import java.util.List;
+
+/**
+ * Hive metastore client registers partitions of finalized topics in Hive.
+ *
+ * Implementations must have a 1-parameter constructor accepting a SecorConfig and must be
+ * thread-safe.  See the secor.hive.metastore.client.class config option.
+ */
+public interface HiveMetastoreClient {
+    /**
+     * Add partitions to a table, skipping those that exist already.
+     * @param table Name of the Hive table.
+     * @param partitions Partition specs in the form of key1='value1',key2='value2'.
+     */
+    void addPartitions(String table, List<String> partitions) throws Exception;
+}
@@ -19,8 +19,6 @@ package com.pinterest.secor.parser;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-import net.minidev.json.JSONObject;
-import net.minidev.json.JSONValue;
 import javax.xml.bind.DatatypeConverter;
 
 import org.slf4j.Logger;
@@ -48,11 +46,10 @@ public class Iso8601MessageParser extends MessageParser {
 
     @Override
     public String[] extractPartitions(Message message) throws Exception {
-        JSONObject jsonObject = (JSONObject) JSONValue.parse(message.getPayload());
+        Object fieldValue = getJsonFieldValue(message.getPayload(), false);
         String result[] = { defaultDate };
 
-        if (jsonObject != null) {
-            Object fieldValue = getJsonFieldValue(jsonObject);
+        if (fieldValue != INVALID_JSON) {
             if (fieldValue == null) {
                 LOG.warn("Missing field value. Using default partition = {}", defaultDate);
             } else {
@@ -0,0 +1,290 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.parser;
+
+import java.nio.charset.Charset;
+
+/**
+ * JSON field extractor finds the value of a (possibly nested) field in a UTF-8 encoded JSON
+ * document by scanning the raw bytes.  Scanning stops at the first occurrence of the field so
+ * the rest of the document is neither parsed nor validated.
+ *
+ * Only the strict JSON subset needed to locate string and number values is understood.  Input
+ * outside of it, e.g. escaped characters in keys or in the value, a boolean value, or a malformed
+ * document, is reported as UNSUPPORTED so that callers can fall back to a full parser.
+ *
+ * Instances are not thread-safe.
+ */
+public class JsonFieldExtractor {
+    public static final int NOT_FOUND = 0;
+    public static final int STRING = 1;
+    public static final int NUMBER = 2;
+    public static final int UNSUPPORTED = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[][] mPath;
+    private byte[] mJson;
+    private int mPos;
+    private String mValue;
+    private boolean mEscaped;
+
+    /**
+     * @param path Field names from the outermost object to the field.
+     */
+    public JsonFieldExtractor(String[] path) {
+        mPath = new byte[path.length][];
+        for (int i = 0; i < path.length; ++i) {
+            mPath[i] = path[i].getBytes(UTF8);
+        }
+    }
+
+    /**
+     * Find the field in a JSON document.
+     * @param json UTF-8 encoded JSON document.
+     * @return NOT_FOUND if the field is missing or null, STRING or NUMBER if the field was found,
+     *     or UNSUPPORTED if the document could not be scanned.
+     */
+    public int find(byte[] json) {
+        mJson = json;
+        mPos = 0;
+        mValue = null;
+        try {
+            return findInObject(0);
+        } finally {
+            mJson = null;
+        }
+    }
+
+    /**
+     * @return Text of the value found by the last call to find.  Strings are unquoted, numbers
+     *     are returned as they appear in the document.
+     */
+    public String getValue() {
+        return mValue;
+    }
+
+    private int peek() {
+        return mPos < mJson.length ? mJson[mPos] : -1;
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mJson.length) {
+            byte c = mJson[mPos];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            mPos++;
+        }
+    }
+
+    private int findInObject(int depth) {
+        skipWhitespace();
+        if (peek() != '{') {
+            return UNSUPPORTED;
+        }
+        mPos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            return NOT_FOUND;
+        }
+        while (true) {
+            if (peek() != '"') {
+                return UNSUPPORTED;
+            }
+            int keyStart = ++mPos;
+            if (!skipStringBody() || mEscaped) {
+                return UNSUPPORTED;
+            }
+            boolean matches = regionEquals(keyStart, mPos - 1, mPath[depth]);
+            skipWhitespace();
+            if (peek() != ':') {
+                return UNSUPPORTED;
+            }
+            mPos++;
+            skipWhitespace();
+            if (matches) {
+                if (depth == mPath.length - 1) {
+                    return readValue();
+                }
+                return findInObject(depth + 1);
+            }
+            if (!skipValue()) {
+                return UNSUPPORTED;
+            }
+            skipWhitespace();
+            int c = peek();
+            if (c == '}') {
+                return NOT_FOUND;
+            }
+            if (c != ',') {
+                return UNSUPPORTED;
+            }
+            mPos++;
+            skipWhitespace();
+        }
+    }
+
+    private boolean regionEquals(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; ++i) {
+            if (mJson[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readValue() {
+        int c = peek();
+        if (c == '"') {
+            int start = ++mPos;
+            while (mPos < mJson.length) {
+                byte b = mJson[mPos];
+                if (b == '"') {
+                    mValue = new String(mJson, start, mPos - start, UTF8);
+                    return STRING;
+                }
+                if (b == '\\') {
+                    return UNSUPPORTED;
+                }
+                mPos++;
+            }
+            return UNSUPPORTED;
+        }
+        if (c == '-' || (c >= '0' && c <= '9')) {
+            int start = mPos;
+            while (mPos < mJson.length && isNumberChar(mJson[mPos])) {
+                mPos++;
+            }
+            // Malformed numbers such as a lone minus are left to the full parser.
+            if (!isNumber(mJson, start, mPos)) {
+                return UNSUPPORTED;
+            }
+            mValue = new String(mJson, start, mPos - start, UTF8);
+            return NUMBER;
+        }
+        if (c == 'n' && mPos + 4 <= mJson.length && mJson[mPos + 1] == 'u' &&
+                mJson[mPos + 2] == 'l' && mJson[mPos + 3] == 'l') {
+            return NOT_FOUND;
+        }
+        return UNSUPPORTED;
+    }
+
+    private static boolean isNumberChar(byte c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Check that json[start, end) matches -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+    private static boolean isNumber(byte[] json, int start, int end) {
+        int pos = start;
+        if (pos < end && json[pos] == '-') {
+            pos++;
+        }
+        if (pos == end || !isDigit(json[pos])) {
+            return false;
+        }
+        if (json[pos] == '0') {
+            pos++;
+        } else {
+            while (pos < end && isDigit(json[pos])) {
+                pos++;
+            }
+        }
+        if (pos < end && json[pos] == '.') {
+            pos++;
+            if (pos == end || !isDigit(json[pos])) {
+                return false;
+            }
+            while (pos < end && isDigit(json[pos])) {
+                pos++;
+            }
+        }
+        if (pos < end && (json[pos] == 'e' || json[pos] == 'E')) {
+            pos++;
+            if (pos < end && (json[pos] == '+' || json[pos] == '-')) {
+                pos++;
+            }
+            if (pos == end || !isDigit(json[pos])) {
+                return false;
+            }
+            while (pos < end && isDigit(json[pos])) {
+                pos++;
+            }
+        }
+        return pos == end;
+    }
+
+    // Skip to just past the closing quote of a string whose opening quote was consumed.
+    private boolean skipStringBody() {
+        mEscaped = false;
+        while (mPos < mJson.length) {
+            byte c = mJson[mPos++];
+            if (c == '"') {
+                return true;
+            }
+            if (c == '\\') {
+                mEscaped = true;
+                mPos++;
+            }
+        }
+        return false;
+    }
+
+    private boolean skipValue() {
+        int c = peek();
+        if (c == '"') {
+            mPos++;
+            return skipStringBody();
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (mPos < mJson.length) {
+                byte b = mJson[mPos++];
+                if (b == '"') {
+                    if (!skipStringBody()) {
+                        return false;
+                    }
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        // Number or literal.
+        int start = mPos;
+        while (mPos < mJson.length) {
+            byte b = mJson[mPos];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' ||
+                    b == '\r') {
+                break;
+            }
+            mPos++;
+        }
+        return mPos > start;
+    }
+}
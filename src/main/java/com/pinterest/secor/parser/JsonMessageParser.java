@@ -18,8 +18,6 @@ package com.pinterest.secor.parser;
 
 import com.pinterest.secor.common.SecorConfig;
 import com.pinterest.secor.message.Message;
-import net.minidev.json.JSONObject;
-import net.minidev.json.JSONValue;
 
 /**
  * JsonMessageParser extracts timestamp field (specified by 'message.timestamp.name')
@@ -35,9 +33,8 @@ public class JsonMessageParser extends TimestampedMessageParser {
 
     @Override
     public long extractTimestampMillis(final Message message) {
-        JSONObject jsonObject = (JSONObject) JSONValue.parse(message.getPayload());
-        if (jsonObject != null) {
-            Object fieldValue = getJsonFieldValue(jsonObject);
+        Object fieldValue = getJsonFieldValue(message.getPayload(), true);
+        if (fieldValue != INVALID_JSON) {
             if (fieldValue != null) {
                 return toMillis(Double.valueOf(fieldValue.toString()).longValue());
             }
@@ -37,7 +37,10 @@ import java.util.regex.Pattern;
 public abstract class MessageParser {
     protected SecorConfig mConfig;
     protected String[] mNestedFields;
+    private JsonFieldExtractor mJsonFieldExtractor;
     private static final Logger LOG = LoggerFactory.getLogger(MessageParser.class);
+    // Returned by getJsonFieldValue for payloads that are not JSON documents.
+    protected static final Object INVALID_JSON = new Object();
 
     public MessageParser(SecorConfig config) {
         mConfig = config;
@@ -48,10 +51,22 @@ public abstract class MessageParser {
             String separatorPattern = Pattern.quote(mConfig.getMessageTimestampNameSeparator());
             mNestedFields = mConfig.getMessageTimestampName().split(separatorPattern);
         }
+        if (mNestedFields != null) {
+            mJsonFieldExtractor = new JsonFieldExtractor(mNestedFields);
+        } else if (mConfig.getMessageTimestampName() != null) {
+            mJsonFieldExtractor = new JsonFieldExtractor(
+                new String[]{mConfig.getMessageTimestampName()});
+        }
     }
 
     public ParsedMessage parse(Message message) throws Exception {
         String[] partitions = extractPartitions(message);
+        if (message instanceof ParsedMessage) {
+            // Recycled instance handed out by the reader, attach partitions in place.
+            ParsedMessage parsedMessage = (ParsedMessage) message;
+            parsedMessage.setPartitions(partitions);
+            return parsedMessage;
+        }
         return new ParsedMessage(message.getTopic(), message.getKafkaPartition(),
                                  message.getOffset(), message.getKafkaKey(),
                                  message.getPayload(), partitions);
@@ -59,6 +74,43 @@ public abstract class MessageParser {
 
     public abstract String[] extractPartitions(Message payload) throws Exception;
     
+    /**
+     * Get the timestamp field value of a JSON payload.  The raw payload is scanned and scanning
+     * stops at the first occurrence of the field.  The whole document is parsed only if the
+     * payload cannot be scanned.
+     * @param payload UTF-8 encoded JSON document.
+     * @param rawNumbers If true, numeric values are returned as they appear in the document.
+     *     Otherwise they are returned as parsed by the JSON parser.
+     * @return The field value, null if the field is missing, or INVALID_JSON if the payload is
+     *     not a JSON document.
+     */
+    protected Object getJsonFieldValue(byte[] payload, boolean rawNumbers) {
+        if (mJsonFieldExtractor != null) {
+            switch (mJsonFieldExtractor.find(payload)) {
+                case JsonFieldExtractor.STRING:
+                    return mJsonFieldExtractor.getValue();
+                case JsonFieldExtractor.NUMBER:
+                    if (rawNumbers) {
+                        return mJsonFieldExtractor.getValue();
+                    }
+                    break;
+                case JsonFieldExtractor.NOT_FOUND:
+                    if (mNestedFields != null) {
+                        LOG.warn("Could not find key {} in message",
+                                 mConfig.getMessageTimestampName());
+                    }
+                    return null;
+                default:
+                    break;
+            }
+        }
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(payload);
+        if (jsonObject == null) {
+            return INVALID_JSON;
+        }
+        return getJsonFieldValue(jsonObject);
+    }
+
     public Object getJsonFieldValue(JSONObject jsonObject) {
         Object fieldValue = null;
         if (mNestedFields != null) {
@@ -19,6 +19,7 @@ package com.pinterest.secor.parser;
 import com.pinterest.secor.common.*;
 import com.pinterest.secor.message.Message;
 import com.pinterest.secor.util.CompressionUtil;
+import com.pinterest.secor.util.FileListingCache;
 import com.pinterest.secor.util.FileUtil;
 import com.pinterest.secor.util.ReflectionUtil;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -27,13 +28,26 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Partition finalizer writes _SUCCESS files to date partitions that very likely won't be receiving
  * any new messages. It also adds those partitions to Hive.
  *
+ * Topics are finalized concurrently by a pool of topic workers.  Existence checks run on a
+ * separate pool of IO threads.  The Hive partitions of a topic are registered in one batch, after
+ * which the _SUCCESS files of the topic are written oldest first.
+ *
  * @author Pawel Garbacki (pawel@pinterest.com)
  */
 public class PartitionFinalizer {
@@ -43,17 +57,35 @@ public class PartitionFinalizer {
     private final ZookeeperConnector mZookeeperConnector;
     private final TimestampedMessageParser mMessageParser;
     private final KafkaClient mKafkaClient;
-    private final QuboleClient mQuboleClient;
+    private final HiveMetastoreClient mHiveMetastoreClient;
     private final String mFileExtension;
     private final int mLookbackPeriods;
+    private final ExecutorService mTopicExecutor;
+    private final ExecutorService mIoExecutor;
+
+    private enum PartitionState {
+        MISSING,
+        UNFINALIZED,
+        FINALIZED
+    }
 
     public PartitionFinalizer(SecorConfig config) throws Exception {
+        this(config, new KafkaClient(config), new ZookeeperConnector(config),
+             (TimestampedMessageParser) ReflectionUtil.createMessageParser(
+                 config.getMessageParserClass(), config),
+             ReflectionUtil.createHiveMetastoreClient(config.getHiveMetastoreClientClass(), config));
+    }
+
+    // For testing use only.
+    public PartitionFinalizer(SecorConfig config, KafkaClient kafkaClient,
+                              ZookeeperConnector zookeeperConnector,
+                              TimestampedMessageParser messageParser,
+                              HiveMetastoreClient hiveMetastoreClient) throws Exception {
         mConfig = config;
-        mKafkaClient = new KafkaClient(mConfig);
-        mZookeeperConnector = new ZookeeperConnector(mConfig);
-        mMessageParser = (TimestampedMessageParser) ReflectionUtil.createMessageParser(
-          mConfig.getMessageParserClass(), mConfig);
-        mQuboleClient = new QuboleClient(mConfig);
+        mKafkaClient = kafkaClient;
+        mZookeeperConnector = zookeeperConnector;
+        mMessageParser = messageParser;
+        mHiveMetastoreClient = hiveMetastoreClient;
         if (mConfig.getFileExtension() != null && !mConfig.getFileExtension().isEmpty()) {
             mFileExtension = mConfig.getFileExtension();
         } else if (mConfig.getCompressionCodec() != null && !mConfig.getCompressionCodec().isEmpty()) {
@@ -64,16 +96,46 @@ public class PartitionFinalizer {
         }
         mLookbackPeriods = config.getFinalizerLookbackPeriods();
         LOG.info("Lookback periods: " + mLookbackPeriods);
+        mTopicExecutor = createExecutor(config.getFinalizerTopicThreads(),
+                                        "secor-finalizer-topic-");
+        mIoExecutor = createExecutor(config.getFinalizerIoThreads(), "secor-finalizer-io-");
+    }
+
+    private static ExecutorService createExecutor(int threads, final String namePrefix) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        namePrefix + mThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
     }
 
-    private String[] getFinalizedUptoPartitions(String topic) throws Exception {
-        final int numPartitions = mKafkaClient.getNumPartitions(topic);
-        List<Message> lastMessages = new ArrayList<Message>(numPartitions);
-        List<Message> committedMessages = new ArrayList<Message>(numPartitions);
+    private String[] getFinalizedUptoPartitions(String topic, int numPartitions,
+                                                Map<TopicPartition, Message> lastMessages,
+                                                Map<TopicPartition, Message> committedMessages)
+            throws Exception {
+        List<Message> topicLastMessages = new ArrayList<Message>(numPartitions);
+        List<Message> topicCommittedMessages = new ArrayList<Message>(numPartitions);
         for (int partition = 0; partition < numPartitions; ++partition) {
             TopicPartition topicPartition = new TopicPartition(topic, partition);
-            Message lastMessage = mKafkaClient.getLastMessage(topicPartition);
-            Message committedMessage = mKafkaClient.getCommittedMessage(topicPartition);
+            Message lastMessage = lastMessages.get(topicPartition);
+            Message committedMessage = committedMessages.get(topicPartition);
             if (lastMessage == null || committedMessage == null) {
                 // This will happen if no messages have been posted to the given topic partition.
                 LOG.error("For topic {} partition {}, lastMessage: {}, committed: {}",
@@ -81,45 +143,138 @@ public class PartitionFinalizer {
                     lastMessage, committedMessage);
                 continue;
             }
-            lastMessages.add(lastMessage);
-            committedMessages.add(committedMessage);
+            topicLastMessages.add(lastMessage);
+            topicCommittedMessages.add(committedMessage);
+        }
+        return mMessageParser.getFinalizedUptoPartitions(topicLastMessages,
+                                                         topicCommittedMessages);
+    }
+
+    private List<String[]> getLookbackPartitions(String[] uptoPartitions) throws Exception {
+        List<String[]> lookbackPartitions = new ArrayList<String[]>(mLookbackPeriods);
+        String[] previous = mMessageParser.getPreviousPartitions(uptoPartitions);
+        for (int i = 0; i < mLookbackPeriods; i++) {
+            lookbackPartitions.add(previous);
+            previous = mMessageParser.getPreviousPartitions(previous);
         }
-        return mMessageParser.getFinalizedUptoPartitions(lastMessages, committedMessages);
+        return lookbackPartitions;
     }
 
-    private void finalizePartitionsUpTo(String topic, String[] uptoPartitions) throws Exception {
+    private String getLogFileDir(String prefix, String topic, String[] partitions)
+            throws Exception {
+        LogFilePath logFilePath = new LogFilePath(prefix, topic, partitions,
+            mConfig.getGeneration(), 0, 0, mFileExtension);
+
+        if (FileUtil.s3PathPrefixIsAltered(logFilePath.getLogFilePath(), mConfig)) {
+            logFilePath = logFilePath.withPrefix(FileUtil.getS3AlternativePrefix(mConfig));
+        }
+        return logFilePath.getLogFileDir();
+    }
+
+    private String getHivePartition(String[] current) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < current.length; i++) {
+            String par = current[i];
+            // We expect the partition array in the form of key=value if
+            // they need to go through hive registration
+            String[] parts = par.split("=");
+            assert parts.length == 2 : "wrong partition format: " + par;
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(parts[0]);
+            sb.append("='");
+            sb.append(parts[1]);
+            sb.append("'");
+        }
+        LOG.info("Hive partition string: " + sb);
+        return sb.toString();
+    }
+
+    private String getHiveTableName(String topic) {
+        String hiveTableName = mConfig.getHiveTableName(topic);
+        LOG.info("Hive table name from config: {}", hiveTableName);
+        if (hiveTableName == null) {
+            String hivePrefix = null;
+            try {
+                hivePrefix = mConfig.getHivePrefix();
+                hiveTableName = hivePrefix + topic;
+                LOG.info("Hive table name from prefix: {}", hiveTableName);
+            } catch (RuntimeException ex) {
+                LOG.warn("HivePrefix is not defined.  Skip hive registration");
+            }
+        }
+        return hiveTableName;
+    }
+
+    private Future<PartitionState> submitCheck(final FileListingCache listingCache,
+                                               final String logFileDir) {
+        return mIoExecutor.submit(new Callable<PartitionState>() {
+            @Override
+            public PartitionState call() throws Exception {
+                if (!listingCache.exists(logFileDir)) {
+                    return PartitionState.MISSING;
+                }
+                // Listing the partition folder itself would enumerate its data files.
+                if (FileUtil.exists(logFileDir + "/_SUCCESS")) {
+                    return PartitionState.FINALIZED;
+                }
+                return PartitionState.UNFINALIZED;
+            }
+        });
+    }
+
+    private void finalizePartitionsUpTo(String topic, String[] uptoPartitions,
+                                        List<String[]> lookbackPartitions) throws Exception {
         String prefix = FileUtil.getPrefix(topic, mConfig);
         LOG.info("Finalize up to (but not include) {}, dim: {}",
             uptoPartitions, uptoPartitions.length);
 
-        String[] previous = mMessageParser.getPreviousPartitions(uptoPartitions);
+        // Check lookback partitions in parallel, newest first.  Only as many checks as there are IO
+        // threads are submitted ahead of the walk below so that stopping at the first partition
+        // which has been finalized already leaves the older partitions unchecked.  Partition
+        // folders are looked up in a non-recursive listing of their parent folder, shared by the
+        // sibling partitions in the lookback window.
+        FileListingCache listingCache = new FileListingCache();
+        List<String> logFileDirs = new ArrayList<String>(lookbackPartitions.size());
+        for (String[] partitions : lookbackPartitions) {
+            logFileDirs.add(getLogFileDir(prefix, topic, partitions));
+        }
+        List<Future<PartitionState>> states =
+            new ArrayList<Future<PartitionState>>(lookbackPartitions.size());
+        int window = Math.max(1, mConfig.getFinalizerIoThreads());
+        while (states.size() < Math.min(window, lookbackPartitions.size())) {
+            states.add(submitCheck(listingCache, logFileDirs.get(states.size())));
+        }
+
         Stack<String[]> toBeFinalized = new Stack<String[]>();
         // Walk backwards to collect all partitions which are previous to the upTo partition
         // Do not include the upTo partition
         // Stop at the first partition which already have the SUCCESS file
-        for (int i = 0; i < mLookbackPeriods; i++) {
-            LOG.info("Looking for partition: " + Arrays.toString(previous));
-            LogFilePath logFilePath = new LogFilePath(prefix, topic, previous,
-                mConfig.getGeneration(), 0, 0, mFileExtension);
-
-            if (FileUtil.s3PathPrefixIsAltered(logFilePath.getLogFilePath(), mConfig)) {
-                logFilePath = logFilePath.withPrefix(FileUtil.getS3AlternativePrefix(mConfig));
-            }
-
-            String logFileDir = logFilePath.getLogFileDir();
-            if (FileUtil.exists(logFileDir)) {
-                String successFilePath = logFileDir + "/_SUCCESS";
-                if (FileUtil.exists(successFilePath)) {
-                    LOG.info(
-                        "SuccessFile exist already, short circuit return. " + successFilePath);
+        try {
+            for (int i = 0; i < lookbackPartitions.size(); i++) {
+                String[] previous = lookbackPartitions.get(i);
+                LOG.info("Looking for partition: " + Arrays.toString(previous));
+                String logFileDir = logFileDirs.get(i);
+                PartitionState state = getResult(states.get(i));
+                if (state == PartitionState.FINALIZED) {
+                    LOG.info("SuccessFile exist already, short circuit return. " +
+                        logFileDir + "/_SUCCESS");
                     break;
+                } else if (state == PartitionState.UNFINALIZED) {
+                    LOG.info("Folder {} exists and ready to be finalized.", logFileDir);
+                    toBeFinalized.push(previous);
+                } else {
+                    LOG.info("Folder {} doesn't exist, skip", logFileDir);
+                }
+                if (states.size() < lookbackPartitions.size()) {
+                    states.add(submitCheck(listingCache, logFileDirs.get(states.size())));
                 }
-                LOG.info("Folder {} exists and ready to be finalized.", logFileDir);
-                toBeFinalized.push(previous);
-            } else {
-                LOG.info("Folder {} doesn't exist, skip", logFileDir);
             }
-            previous = mMessageParser.getPreviousPartitions(previous);
+        } finally {
+            for (Future<PartitionState> state : states) {
+                state.cancel(false);
+            }
         }
 
         LOG.info("To be finalized partitions: {}", toBeFinalized);
@@ -132,82 +287,118 @@ public class PartitionFinalizer {
         // Note we are deliberately walking backwards and then forwards to make sure we don't
         // end up in a situation that a later date partition is finalized and then the system
         // crashes (which creates unfinalized partition folders in between)
+        // All Hive partitions of the topic are registered in one batch before any SUCCESS file is
+        // written.
+        List<String[]> ordered = new ArrayList<String[]>(toBeFinalized.size());
+        List<String> hivePartitions = new ArrayList<String>(toBeFinalized.size());
         while (!toBeFinalized.isEmpty()) {
             String[] current = toBeFinalized.pop();
-            LOG.info("Finalizing partition: " + Arrays.toString(current));
+            ordered.add(current);
             // We only perform hive registration on the last dimension of the partition array
             // i.e. only do hive registration for the hourly folder, but not for the daily
             if (uptoPartitions.length == current.length) {
-                try {
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 0; i < current.length; i++) {
-                        String par = current[i];
-                        // We expect the partition array in the form of key=value if
-                        // they need to go through hive registration
-                        String[] parts = par.split("=");
-                        assert parts.length == 2 : "wrong partition format: " + par;
-                        if (i > 0) {
-                            sb.append(",");
-                        }
-                        sb.append(parts[0]);
-                        sb.append("='");
-                        sb.append(parts[1]);
-                        sb.append("'");
-                    }
-                    LOG.info("Hive partition string: " + sb);
-
-                    String hiveTableName = mConfig.getHiveTableName(topic);
-                    LOG.info("Hive table name from config: {}", hiveTableName);
-                    if (hiveTableName == null) {
-                        String hivePrefix = null;
-                        try {
-                            hivePrefix = mConfig.getHivePrefix();
-                            hiveTableName = hivePrefix + topic;
-                            LOG.info("Hive table name from prefix: {}", hiveTableName);
-                        } catch (RuntimeException ex) {
-                            LOG.warn("HivePrefix is not defined.  Skip hive registration");
-                        }
-                    }
-                    if (hiveTableName != null) {
-                        mQuboleClient.addPartition(hiveTableName, sb.toString());
-                    }
-                } catch (Exception e) {
-                    LOG.error("failed to finalize topic " + topic, e);
-                    continue;
+                hivePartitions.add(getHivePartition(current));
+            }
+        }
+        boolean registered = true;
+        if (!hivePartitions.isEmpty()) {
+            try {
+                String hiveTableName = getHiveTableName(topic);
+                if (hiveTableName != null) {
+                    mHiveMetastoreClient.addPartitions(hiveTableName, hivePartitions);
                 }
+            } catch (Exception e) {
+                LOG.error("failed to finalize topic " + topic, e);
+                registered = false;
             }
+        }
 
-            // Generate the SUCCESS file at the end
-            LogFilePath logFilePath = new LogFilePath(prefix, topic, current,
-                mConfig.getGeneration(), 0, 0, mFileExtension);
-
-            if (FileUtil.s3PathPrefixIsAltered(logFilePath.getLogFilePath(), mConfig)) {
-                logFilePath = logFilePath.withPrefix(FileUtil.getS3AlternativePrefix(mConfig));
-                LOG.info("Will finalize alternative s3 logFilePath {}", logFilePath);
+        for (String[] current : ordered) {
+            LOG.info("Finalizing partition: " + Arrays.toString(current));
+            if (!registered && uptoPartitions.length == current.length) {
+                continue;
             }
 
-            String logFileDir = logFilePath.getLogFileDir();
-            String successFilePath = logFileDir + "/_SUCCESS";
+            // Generate the SUCCESS file at the end
+            String successFilePath = getLogFileDir(prefix, topic, current) + "/_SUCCESS";
 
-            LOG.info("touching file {}", successFilePath);
-            FileUtil.touch(successFilePath);
+            touchSuccessFile(successFilePath);
         }
 
     }
 
+    protected void touchSuccessFile(String successFilePath) throws Exception {
+        LOG.info("touching file {}", successFilePath);
+        FileUtil.touch(successFilePath);
+    }
+
     public void finalizePartitions() throws Exception {
-        List<String> topics = mZookeeperConnector.getCommittedOffsetTopics();
-        for (String topic : topics) {
+        List<String> topics = new ArrayList<String>();
+        for (String topic : mZookeeperConnector.getCommittedOffsetTopics()) {
             if (!topic.matches(mConfig.getKafkaTopicFilter())) {
                 LOG.info("skipping topic {}", topic);
             } else {
-                LOG.info("finalizing topic {}", topic);
-                String[] partitions = getFinalizedUptoPartitions(topic);
-                LOG.info("finalized timestamp for topic {} is {}", topic , partitions);
-                if (partitions != null) {
-                    finalizePartitionsUpTo(topic, partitions);
+                topics.add(topic);
+            }
+        }
+
+        // Look up the messages of all topics at once so that each broker is asked only once.
+        Map<String, Integer> numPartitions = mKafkaClient.getNumPartitions(topics);
+        List<TopicPartition> topicPartitions = new ArrayList<TopicPartition>();
+        for (String topic : topics) {
+            if (!numPartitions.containsKey(topic)) {
+                numPartitions.put(topic, 0);
+            }
+            for (int partition = 0; partition < numPartitions.get(topic); ++partition) {
+                topicPartitions.add(new TopicPartition(topic, partition));
+            }
+        }
+        Map<TopicPartition, Message> lastMessages = mKafkaClient.getLastMessages(topicPartitions);
+        Map<TopicPartition, Message> committedMessages =
+            mKafkaClient.getCommittedMessages(topicPartitions);
+
+        Map<String, Future<Void>> topicFutures = new LinkedHashMap<String, Future<Void>>();
+        for (final String topic : topics) {
+            LOG.info("finalizing topic {}", topic);
+            final String[] partitions = getFinalizedUptoPartitions(topic,
+                numPartitions.get(topic), lastMessages, committedMessages);
+            LOG.info("finalized timestamp for topic {} is {}", topic , partitions);
+            if (partitions != null) {
+                // The message parser is not thread-safe so the lookback partitions are computed
+                // before the topic is handed to a worker.
+                final List<String[]> lookbackPartitions = getLookbackPartitions(partitions);
+                topicFutures.put(topic, mTopicExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        finalizePartitionsUpTo(topic, partitions, lookbackPartitions);
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        Exception failure = null;
+        for (Map.Entry<String, Future<Void>> entry : topicFutures.entrySet()) {
+            try {
+                getResult(entry.getValue());
+            } catch (Exception e) {
+                LOG.error("failed to finalize topic " + entry.getKey(), e);
+                if (failure == null) {
+                    failure = e;
                 }
             }
         }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stop the worker threads and close connections to Kafka brokers.
+     */
+    public void close() {
+        mTopicExecutor.shutdown();
+        mIoExecutor.shutdown();
+        mKafkaClient.close();
     }
 }
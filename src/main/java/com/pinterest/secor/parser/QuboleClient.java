@@ -19,22 +19,39 @@ package com.pinterest.secor.parser;
 import com.pinterest.secor.common.SecorConfig;
 import net.minidev.json.JSONObject;
 import net.minidev.json.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Qubole client encapsulates communication with a Qubole cluster.
  *
+ * Partitions of a table are added with multi-partition ALTER TABLE statements.  The statements
+ * are submitted together and their commands are polled with a growing interval.
+ *
  * @author Pawel Garbacki (pawel@pinterest.com)
  */
-public class QuboleClient {
+public class QuboleClient implements HiveMetastoreClient {
+    private static final Logger LOG = LoggerFactory.getLogger(QuboleClient.class);
+
+    private static final long MIN_POLL_INTERVAL_MILLIS = 500;
+    private static final long MAX_POLL_INTERVAL_MILLIS = 10000;
+
     private String mApiToken;
+    private int mMaxPartitionsPerStatement;
 
     public QuboleClient(SecorConfig config) {
         mApiToken = config.getQuboleApiToken();
+        mMaxPartitionsPerStatement = Math.max(1, config.getHivePartitionsPerStatement());
     }
 
     private Map makeRequest(URL url, String body) throws IOException {
@@ -85,7 +102,7 @@ public class QuboleClient {
         }
     }
 
-    private int query(String query) throws IOException {
+    protected int query(String query) throws IOException {
         URL url = new URL("https://api.qubole.com/api/v1.2/commands");
         JSONObject queryJson = new JSONObject();
         queryJson.put("query", query);
@@ -94,24 +111,69 @@ public class QuboleClient {
         return (Integer) response.get("id");
     }
 
-    private void waitForCompletion(int commandId) throws IOException, InterruptedException {
+    protected Map getCommand(int commandId) throws IOException {
         URL url = new URL("https://api.qubole.com/api/v1.2/commands/" + commandId);
+        return makeRequest(url, null);
+    }
+
+    private void waitForCompletion(List<Integer> commandIds) throws IOException,
+            InterruptedException {
+        Set<Integer> pending = new LinkedHashSet<Integer>(commandIds);
+        long pollIntervalMillis = MIN_POLL_INTERVAL_MILLIS;
         while (true) {
-            Map response = makeRequest(url, null);
-            if (response.get("status").equals("done")) {
+            Iterator<Integer> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                int commandId = iterator.next();
+                Map response = getCommand(commandId);
+                Object status = response.get("status");
+                if ("done".equals(status)) {
+                    iterator.remove();
+                } else if ("error".equals(status) || "cancelled".equals(status)) {
+                    throw new RuntimeException("command " + commandId + " ended with status " +
+                        status + " " + JSONObject.toJSONString(response));
+                }
+            }
+            if (pending.isEmpty()) {
                 return;
             }
-            System.out.println("waiting 3 seconds for results of query " + commandId +
-                               ". Current status " + response.get("status"));
-            Thread.sleep(3000);
+            LOG.info("waiting {} ms for results of queries {}", pollIntervalMillis, pending);
+            Thread.sleep(pollIntervalMillis);
+            pollIntervalMillis = Math.min(pollIntervalMillis * 2, MAX_POLL_INTERVAL_MILLIS);
         }
     }
 
     public void addPartition(String table, String partition) throws IOException,
             InterruptedException {
-        String queryStr = "ALTER TABLE " + table + " ADD IF NOT EXISTS PARTITION (" + partition +
-            ")";
-        int commandId = query(queryStr);
-        waitForCompletion(commandId);
+        List<String> partitions = new ArrayList<String>(1);
+        partitions.add(partition);
+        addPartitions(table, partitions);
+    }
+
+    @Override
+    public void addPartitions(String table, List<String> partitions) throws IOException,
+            InterruptedException {
+        List<Integer> commandIds = new ArrayList<Integer>();
+        for (String statement : getStatements(table, partitions)) {
+            commandIds.add(query(statement));
+        }
+        waitForCompletion(commandIds);
+    }
+
+    /**
+     * Build ALTER TABLE statements adding at most secor.hive.partitions.per.statement
+     * partitions each.
+     */
+    protected List<String> getStatements(String table, List<String> partitions) {
+        List<String> statements = new ArrayList<String>();
+        for (int start = 0; start < partitions.size(); start += mMaxPartitionsPerStatement) {
+            int end = Math.min(partitions.size(), start + mMaxPartitionsPerStatement);
+            StringBuilder queryStr = new StringBuilder("ALTER TABLE " + table +
+                " ADD IF NOT EXISTS");
+            for (String partition : partitions.subList(start, end)) {
+                queryStr.append(" PARTITION (").append(partition).append(")");
+            }
+            statements.add(queryStr.toString());
+        }
+        return statements;
     }
 }
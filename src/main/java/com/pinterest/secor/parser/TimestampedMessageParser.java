@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 public abstract class TimestampedMessageParser extends MessageParser implements Partitioner {
 
@@ -48,6 +49,16 @@ public abstract class TimestampedMessageParser extends MessageParser implements
     private final boolean mUsingHourly;
     private final boolean mUsingMinutely;
 
+    /*
+     * Partitions of recently seen timestamps, direct-mapped by time bucket.  A bucket spans the
+     * finest partition granularity that is not a day, so every timestamp in a bucket maps to the
+     * same partitions.  Cached arrays are shared and must not be modified by callers.
+     */
+    private static final int PARTITIONS_CACHE_SIZE = 64;
+    private final TimeZone mTimeZone;
+    private final long mBucketMillis;
+    private final long[] mCachedBucketStart;
+    private final String[][] mCachedPartitions;
 
     public TimestampedMessageParser(SecorConfig config) {
         super(config);
@@ -71,6 +82,11 @@ public abstract class TimestampedMessageParser extends MessageParser implements
         mDtHrMinFormatter.setTimeZone(config.getTimeZone());
         mMinFormatter = new SimpleDateFormat("mm");
         mMinFormatter.setTimeZone(config.getTimeZone());
+
+        mTimeZone = config.getTimeZone();
+        mBucketMillis = mUsingMinutely ? MINUTE_IN_MILLIS : HOUR_IN_MILLIS;
+        mCachedBucketStart = new long[PARTITIONS_CACHE_SIZE];
+        mCachedPartitions = new String[PARTITIONS_CACHE_SIZE][];
     }
 
     static boolean usingHourly(SecorConfig config) {
@@ -125,7 +141,37 @@ public abstract class TimestampedMessageParser extends MessageParser implements
     public String[] extractPartitions(Message message) throws Exception {
         // Date constructor takes milliseconds since epoch.
         long timestampMillis = extractTimestampMillis(message);
-        return generatePartitions(timestampMillis, mUsingHourly, mUsingMinutely);
+        return getCachedPartitions(timestampMillis);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long result = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            result--;
+        }
+        return result;
+    }
+
+    private String[] getCachedPartitions(long timestampMillis) throws Exception {
+        // Buckets are aligned to local time so bucket boundaries fall on local minute (or hour)
+        // boundaries.
+        int offset = mTimeZone.getOffset(timestampMillis);
+        long bucket = floorDiv(timestampMillis + offset, mBucketMillis);
+        long bucketStart = bucket * mBucketMillis - offset;
+        int index = (int) (bucket & (PARTITIONS_CACHE_SIZE - 1));
+        String[] partitions = mCachedPartitions[index];
+        if (partitions != null && mCachedBucketStart[index] == bucketStart) {
+            return partitions;
+        }
+        partitions = generatePartitions(timestampMillis, mUsingHourly, mUsingMinutely);
+        // A bucket that straddles a DST or other offset transition maps to more than one local
+        // time range, so it is not cached.
+        if (mTimeZone.getOffset(bucketStart) == offset &&
+                mTimeZone.getOffset(bucketStart + mBucketMillis - 1) == offset) {
+            mCachedBucketStart[index] = bucketStart;
+            mCachedPartitions[index] = partitions;
+        }
+        return partitions;
     }
 
     private long getFinalizedTimestampMillis(Message lastMessage,
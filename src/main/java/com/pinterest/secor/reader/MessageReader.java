@@ -20,26 +20,28 @@ import com.pinterest.secor.common.OffsetTracker;
 import com.pinterest.secor.common.SecorConfig;
 import com.pinterest.secor.common.TopicPartition;
 import com.pinterest.secor.message.Message;
+import com.pinterest.secor.message.ParsedMessage;
 import com.pinterest.secor.util.IdUtil;
 import com.pinterest.secor.util.RateLimitUtil;
 import com.pinterest.secor.util.StatsUtil;
 import kafka.consumer.Consumer;
 import kafka.consumer.ConsumerConfig;
 import kafka.consumer.ConsumerIterator;
+import kafka.consumer.ConsumerTimeoutException;
 import kafka.consumer.KafkaStream;
 import kafka.consumer.TopicFilter;
 import kafka.consumer.Whitelist;
 import kafka.consumer.Blacklist;
 import kafka.javaapi.consumer.ConsumerConnector;
+import kafka.javaapi.consumer.ConsumerRebalanceListener;
 import kafka.message.MessageAndMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -53,51 +55,117 @@ public class MessageReader {
     private SecorConfig mConfig;
     private OffsetTracker mOffsetTracker;
     private ConsumerConnector mConsumerConnector;
-    private ConsumerIterator mIterator;
-    private HashMap<TopicPartition, Long> mLastAccessTime;
-    private final int mTopicPartitionForgetSeconds;
+    private ConsumerIterator<byte[], byte[]> mIterator;
+    private TopicPartitionAccessTracker mLastAccessTime;
     private final int mCheckMessagesPerSecond;
     private int mNMessages;
+    // Rate limiter permits acquired ahead of reads but not used yet.
+    private int mPermits;
+    // Max time a poll of the Kafka iterator blocks, see getPollTimeoutMs.
+    private final int mPollTimeoutMs;
+    private final ArrayList<Message> mBatch;
+    private final boolean mReuseMessages;
+    private ParsedMessage[] mMessagePool;
 
     public MessageReader(SecorConfig config, OffsetTracker offsetTracker) throws
             UnknownHostException {
+        this(config, offsetTracker, (ConsumerRebalanceListener) null);
+    }
+
+    /**
+     * @param rebalanceListener If not null, notified of the topic partitions assigned to the
+     *     consumers of the group on every rebalance.
+     */
+    public MessageReader(SecorConfig config, OffsetTracker offsetTracker,
+                         ConsumerRebalanceListener rebalanceListener) throws
+            UnknownHostException {
+        this(config, offsetTracker, rebalanceListener, null);
+    }
+
+    // For testing use only.
+    protected MessageReader(SecorConfig config, OffsetTracker offsetTracker,
+                            ConsumerIterator<byte[], byte[]> iterator) throws
+            UnknownHostException {
+        this(config, offsetTracker, null, iterator);
+    }
+
+    private MessageReader(SecorConfig config, OffsetTracker offsetTracker,
+                          ConsumerRebalanceListener rebalanceListener,
+                          ConsumerIterator<byte[], byte[]> iterator) throws
+            UnknownHostException {
         mConfig = config;
         mOffsetTracker = offsetTracker;
+        mPollTimeoutMs = getPollTimeoutMs(config);
 
-        mConsumerConnector = Consumer.createJavaConsumerConnector(createConsumerConfig());
+        if (iterator == null) {
+            mConsumerConnector = Consumer.createJavaConsumerConnector(createConsumerConfig());
+            if (rebalanceListener != null) {
+                // Must be registered before the streams are created.
+                mConsumerConnector.setConsumerRebalanceListener(rebalanceListener);
+            }
 
-        if (!mConfig.getKafkaTopicBlacklist().isEmpty() && !mConfig.getKafkaTopicFilter().isEmpty()) {
-            throw new RuntimeException("Topic filter and blacklist cannot be both specified.");
+            if (!mConfig.getKafkaTopicBlacklist().isEmpty() && !mConfig.getKafkaTopicFilter().isEmpty()) {
+                throw new RuntimeException("Topic filter and blacklist cannot be both specified.");
+            }
+            TopicFilter topicFilter = !mConfig.getKafkaTopicBlacklist().isEmpty()? new Blacklist(mConfig.getKafkaTopicBlacklist()):
+                    new Whitelist(mConfig.getKafkaTopicFilter());
+            LOG.debug("Use TopicFilter {}({})", topicFilter.getClass(), topicFilter);
+            List<KafkaStream<byte[], byte[]>> streams =
+                mConsumerConnector.createMessageStreamsByFilter(topicFilter);
+            KafkaStream<byte[], byte[]> stream = streams.get(0);
+            iterator = stream.iterator();
         }
-        TopicFilter topicFilter = !mConfig.getKafkaTopicBlacklist().isEmpty()? new Blacklist(mConfig.getKafkaTopicBlacklist()):
-                new Whitelist(mConfig.getKafkaTopicFilter());
-        LOG.debug("Use TopicFilter {}({})", topicFilter.getClass(), topicFilter);
-        List<KafkaStream<byte[], byte[]>> streams =
-            mConsumerConnector.createMessageStreamsByFilter(topicFilter);
-        KafkaStream<byte[], byte[]> stream = streams.get(0);
-        mIterator = stream.iterator();
-        mLastAccessTime = new HashMap<TopicPartition, Long>();
+        mIterator = iterator;
+        mLastAccessTime = new TopicPartitionAccessTracker(
+                mConfig.getTopicPartitionForgetSeconds(),
+                mConfig.getTopicPartitionSweepSeconds());
         StatsUtil.setLabel("secor.kafka.consumer.id", IdUtil.getConsumerId());
-        mTopicPartitionForgetSeconds = mConfig.getTopicPartitionForgetSeconds();
-        mCheckMessagesPerSecond = mConfig.getMessagesPerSecond() / mConfig.getConsumerThreads();
+        mCheckMessagesPerSecond = Math.max(1,
+                mConfig.getMessagesPerSecond() / mConfig.getConsumerThreads());
+        mBatch = new ArrayList<Message>();
+        if (mConfig.getConsumerReuseMessages() && mConfig.getConsumerPipelineEnabled()) {
+            LOG.warn("Message reuse is not supported by the consumer pipeline, disabling it");
+        }
+        mReuseMessages = mConfig.getConsumerReuseMessages() &&
+                         !mConfig.getConsumerPipelineEnabled();
+        mMessagePool = new ParsedMessage[0];
     }
 
-    private void updateAccessTime(TopicPartition topicPartition) {
-        long now = System.currentTimeMillis() / 1000L;
-        mLastAccessTime.put(topicPartition, now);
-        Iterator iterator = mLastAccessTime.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry pair = (Map.Entry) iterator.next();
-            long lastAccessTime = (Long) pair.getValue();
-            if (now - lastAccessTime > mTopicPartitionForgetSeconds) {
-                iterator.remove();
-            }
+    private Message createMessage(MessageAndMetadata<byte[], byte[]> kafkaMessage, int slot) {
+        if (!mReuseMessages) {
+            return new Message(kafkaMessage.topic(), kafkaMessage.partition(),
+                               kafkaMessage.offset(), kafkaMessage.key(),
+                               kafkaMessage.message());
         }
+        if (slot >= mMessagePool.length) {
+            mMessagePool = Arrays.copyOf(mMessagePool, Math.max(slot + 1,
+                                                                mMessagePool.length * 2));
+        }
+        // Pooled instances are parsed messages so that the parser can attach partitions in
+        // place.
+        ParsedMessage message = mMessagePool[slot];
+        if (message == null) {
+            message = new ParsedMessage(kafkaMessage.topic(), kafkaMessage.partition(),
+                                        kafkaMessage.offset(), kafkaMessage.key(),
+                                        kafkaMessage.message(), null);
+            mMessagePool[slot] = message;
+        } else {
+            message.reset(kafkaMessage.topic(), kafkaMessage.partition(), kafkaMessage.offset(),
+                          kafkaMessage.key(), kafkaMessage.message());
+            message.setPartitions(null);
+        }
+        return message;
+    }
+
+    private void updateAccessTime(int topicPartitionId) {
+        TopicPartition topicPartition =
+            mOffsetTracker.getTopicPartitionRegistry().getTopicPartition(topicPartitionId);
+        mLastAccessTime.touch(topicPartition, System.currentTimeMillis() / 1000L);
     }
 
     private void exportStats() {
         StringBuffer topicPartitions = new StringBuffer();
-        for (TopicPartition topicPartition : mLastAccessTime.keySet()) {
+        for (TopicPartition topicPartition : mLastAccessTime.getTopicPartitions()) {
             if (topicPartitions.length() > 0) {
                 topicPartitions.append(' ');
             }
@@ -119,7 +187,7 @@ public class MessageReader {
         // This option is required to make sure that messages are not lost for new topics and
         // topics whose number of partitions has changed.
         props.put("auto.offset.reset", "smallest");
-        props.put("consumer.timeout.ms", Integer.toString(mConfig.getConsumerTimeoutMs()));
+        props.put("consumer.timeout.ms", Integer.toString(mPollTimeoutMs));
         props.put("consumer.id", IdUtil.getConsumerId());
         // Properties required to upgrade from kafka 0.8.x to 0.9.x
         props.put("dual.commit.enabled", mConfig.getDualCommitEnabled());
@@ -151,8 +219,43 @@ public class MessageReader {
         return new ConsumerConfig(props);
     }
 
+    /**
+     * A read batch must not wait for kafka.consumer.timeout.ms once it holds messages, so with
+     * batching the iterator is polled with the batch timeout instead.  Waits for a first message
+     * poll repeatedly until kafka.consumer.timeout.ms elapses.
+     */
+    private static int getPollTimeoutMs(SecorConfig config) {
+        int consumerTimeoutMs = config.getConsumerTimeoutMs();
+        if (config.getConsumerReadBatchSize() <= 1) {
+            return consumerTimeoutMs;
+        }
+        long batchTimeoutMs = Math.max(1L, config.getConsumerReadBatchTimeoutMs());
+        if (consumerTimeoutMs >= 0 && consumerTimeoutMs <= batchTimeoutMs) {
+            return consumerTimeoutMs;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, batchTimeoutMs);
+    }
+
+    /**
+     * Wait for a message for up to kafka.consumer.timeout.ms.
+     * @throws ConsumerTimeoutException if no message arrived in time.
+     */
+    private boolean waitForNext() {
+        int consumerTimeoutMs = mConfig.getConsumerTimeoutMs();
+        long deadline = System.currentTimeMillis() + consumerTimeoutMs;
+        while (true) {
+            try {
+                return mIterator.hasNext();
+            } catch (ConsumerTimeoutException e) {
+                if (consumerTimeoutMs >= 0 && System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+            }
+        }
+    }
+
     public boolean hasNext() {
-        return mIterator.hasNext();
+        return waitForNext();
     }
 
     public Message read() {
@@ -162,14 +265,12 @@ public class MessageReader {
             RateLimitUtil.acquire(mCheckMessagesPerSecond);
         }
         MessageAndMetadata<byte[], byte[]> kafkaMessage = mIterator.next();
-        Message message = new Message(kafkaMessage.topic(), kafkaMessage.partition(),
-                                      kafkaMessage.offset(), kafkaMessage.key(),
-                                      kafkaMessage.message());
-        TopicPartition topicPartition = new TopicPartition(message.getTopic(),
-                                                           message.getKafkaPartition());
-        updateAccessTime(topicPartition);
+        Message message = createMessage(kafkaMessage, 0);
+        int topicPartitionId = mOffsetTracker.getTopicPartitionId(message.getTopic(),
+                                                                  message.getKafkaPartition());
+        updateAccessTime(topicPartitionId);
         // Skip already committed messages.
-        long committedOffsetCount = mOffsetTracker.getTrueCommittedOffsetCount(topicPartition);
+        long committedOffsetCount = mOffsetTracker.getTrueCommittedOffsetCount(topicPartitionId);
         LOG.debug("read message {}", message);
         if (mNMessages % mCheckMessagesPerSecond == 0) {
             exportStats();
@@ -181,4 +282,74 @@ public class MessageReader {
         }
         return message;
     }
+
+    /**
+     * Read a batch of messages.  Access time tracking and stats export are performed once per
+     * batch rather than once per message, and rate limiter permits are acquired ahead of the
+     * reads for up to a batch of messages at a time.  A batch never exceeds the per thread share
+     * of secor.messages.per.second.
+     *
+     * @param max The max number of messages to read from Kafka.
+     * @param timeoutMs Stop filling the batch once this much time has elapsed.  Waiting for a
+     *     message that does not arrive may take up to the batch timeout longer.
+     * @return Messages that have not been committed yet.  The returned list, and the messages in
+     *     it if message reuse is enabled, are recycled by subsequent calls.
+     * @throws ConsumerTimeoutException if no message arrived within the consumer timeout.
+     */
+    public List<Message> readBatch(int max, long timeoutMs) {
+        mBatch.clear();
+        max = Math.min(max, mCheckMessagesPerSecond);
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        int nRead = 0;
+        String lastTopic = null;
+        int lastPartition = -1;
+        long committedOffsetCount = -1;
+        try {
+            while (nRead < max && (nRead == 0 ? waitForNext() : mIterator.hasNext())) {
+                if (mPermits == 0) {
+                    // Unused permits are kept for the next batch.
+                    mPermits = max - nRead;
+                    RateLimitUtil.acquire(mPermits);
+                }
+                mPermits--;
+                MessageAndMetadata<byte[], byte[]> kafkaMessage = mIterator.next();
+                Message message = createMessage(kafkaMessage, mBatch.size());
+                nRead++;
+                // Consecutive messages usually come from the same topic partition so the
+                // offset tracker is consulted only when the topic partition changes.
+                if (message.getKafkaPartition() != lastPartition ||
+                        !message.getTopic().equals(lastTopic)) {
+                    lastTopic = message.getTopic();
+                    lastPartition = message.getKafkaPartition();
+                    int topicPartitionId = mOffsetTracker.getTopicPartitionId(lastTopic,
+                                                                              lastPartition);
+                    updateAccessTime(topicPartitionId);
+                    committedOffsetCount = mOffsetTracker.getTrueCommittedOffsetCount(
+                            topicPartitionId);
+                }
+                LOG.debug("read message {}", message);
+                if (message.getOffset() < committedOffsetCount) {
+                    LOG.debug("skipping message {} because its offset precedes committed " +
+                            "offset count {}", message, committedOffsetCount);
+                } else {
+                    mBatch.add(message);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+            }
+        } catch (ConsumerTimeoutException e) {
+            if (nRead == 0) {
+                throw e;
+            }
+        }
+        if (nRead > 0) {
+            mNMessages += nRead;
+            if (mNMessages >= mCheckMessagesPerSecond) {
+                mNMessages %= mCheckMessagesPerSecond;
+                exportStats();
+            }
+        }
+        return mBatch;
+    }
 }
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.reader;
+
+import com.pinterest.secor.common.TopicPartition;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Topic partition access tracker remembers topic partitions that have been accessed recently.
+ *
+ * Entries are kept in access order so the least recently accessed topic partitions are always at
+ * the head.  Expiry walks from the head and stops at the first entry that is still fresh, so its
+ * cost is proportional to the number of expired entries rather than the number of tracked topic
+ * partitions.  Expiry runs at most once per sweep interval.
+ */
+public class TopicPartitionAccessTracker {
+    private static class AccessTime {
+        private long mSeconds;
+    }
+
+    private final LinkedHashMap<TopicPartition, AccessTime> mLastAccessTime;
+    private final long mForgetSeconds;
+    private final long mSweepIntervalSeconds;
+    private long mNextSweepSeconds;
+
+    /**
+     * @param forgetSeconds How long a topic partition is remembered after it was last accessed.
+     * @param sweepIntervalSeconds How often expired topic partitions are removed.
+     */
+    public TopicPartitionAccessTracker(long forgetSeconds, long sweepIntervalSeconds) {
+        mLastAccessTime = new LinkedHashMap<TopicPartition, AccessTime>(16, 0.75f, true);
+        mForgetSeconds = forgetSeconds;
+        mSweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    public void touch(TopicPartition topicPartition, long nowSeconds) {
+        // In access-order mode get() moves the entry to the tail.
+        AccessTime accessTime = mLastAccessTime.get(topicPartition);
+        if (accessTime == null) {
+            accessTime = new AccessTime();
+            mLastAccessTime.put(topicPartition, accessTime);
+        }
+        accessTime.mSeconds = nowSeconds;
+        if (nowSeconds >= mNextSweepSeconds) {
+            sweep(nowSeconds);
+        }
+    }
+
+    /**
+     * Forget topic partitions that have not been accessed for longer than the forget period.
+     * @param nowSeconds Current time in seconds.
+     */
+    public void sweep(long nowSeconds) {
+        Iterator<AccessTime> iterator = mLastAccessTime.values().iterator();
+        while (iterator.hasNext()) {
+            if (nowSeconds - iterator.next().mSeconds <= mForgetSeconds) {
+                break;
+            }
+            iterator.remove();
+        }
+        mNextSweepSeconds = nowSeconds + mSweepIntervalSeconds;
+    }
+
+    /**
+     * Get recently accessed topic partitions, least recently accessed first.
+     * @return Read-only view of the tracked topic partitions.
+     */
+    public Set<TopicPartition> getTopicPartitions() {
+        return Collections.unmodifiableSet(mLastAccessTime.keySet());
+    }
+}
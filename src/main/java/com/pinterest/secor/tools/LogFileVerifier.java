@@ -25,6 +25,7 @@ import com.pinterest.secor.util.CompressionUtil;
 import com.pinterest.secor.util.FileUtil;
 import com.pinterest.secor.util.ReflectionUtil;
 
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.io.compress.CompressionCodec;
 
 import java.io.IOException;
@@ -53,29 +54,34 @@ public class LogFileVerifier {
     }
 
     private void populateTopicPartitionToOffsetToFiles() throws IOException {
-        String prefix = FileUtil.getPrefix(mTopic, mConfig);
+        final String prefix = FileUtil.getPrefix(mTopic, mConfig);
         String topicPrefix = getTopicPrefix();
-        String[] paths = FileUtil.listRecursively(topicPrefix);
-        for (String path : paths) {
-            if (!path.endsWith("/_SUCCESS")) {
-                LogFilePath logFilePath = new LogFilePath(prefix, path);
-                TopicPartition topicPartition = new TopicPartition(logFilePath.getTopic(),
-                    logFilePath.getKafkaPartition());
-                SortedMap<Long, HashSet<LogFilePath>> offsetToFiles =
-                    mTopicPartitionToOffsetToFiles.get(topicPartition);
-                if (offsetToFiles == null) {
-                    offsetToFiles = new TreeMap<Long, HashSet<LogFilePath>>();
-                    mTopicPartitionToOffsetToFiles.put(topicPartition, offsetToFiles);
+        FileUtil.walk(topicPrefix, new FileUtil.FileVisitor() {
+            @Override
+            public void visit(String path, FileStatus status) {
+                if (!status.isDirectory() && !path.endsWith("/_SUCCESS")) {
+                    addLogFilePath(new LogFilePath(prefix, path));
                 }
-                long offset = logFilePath.getOffset();
-                HashSet<LogFilePath> logFilePaths = offsetToFiles.get(offset);
-                if (logFilePaths == null) {
-                    logFilePaths = new HashSet<LogFilePath>();
-                    offsetToFiles.put(offset, logFilePaths);
-                }
-                logFilePaths.add(logFilePath);
             }
+        });
+    }
+
+    private synchronized void addLogFilePath(LogFilePath logFilePath) {
+        TopicPartition topicPartition = new TopicPartition(logFilePath.getTopic(),
+            logFilePath.getKafkaPartition());
+        SortedMap<Long, HashSet<LogFilePath>> offsetToFiles =
+            mTopicPartitionToOffsetToFiles.get(topicPartition);
+        if (offsetToFiles == null) {
+            offsetToFiles = new TreeMap<Long, HashSet<LogFilePath>>();
+            mTopicPartitionToOffsetToFiles.put(topicPartition, offsetToFiles);
+        }
+        long offset = logFilePath.getOffset();
+        HashSet<LogFilePath> logFilePaths = offsetToFiles.get(offset);
+        if (logFilePaths == null) {
+            logFilePaths = new HashSet<LogFilePath>();
+            offsetToFiles.put(offset, logFilePaths);
         }
+        logFilePaths.add(logFilePath);
     }
 
     private void filterOffsets(long fromOffset, long toOffset) {
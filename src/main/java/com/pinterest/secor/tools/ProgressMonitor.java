@@ -127,6 +127,13 @@ public class ProgressMonitor {
         makeRequest(stat.toString());
     }
 
+    /**
+     * Close connections to Kafka brokers.
+     */
+    public void close() {
+        mKafkaClient.close();
+    }
+
     public void exportStats() throws Exception {
         List<Stat> stats = getStats();
         LOG.info("Stats: {}", JSONArray.toJSONString(stats));
@@ -171,6 +178,9 @@ public class ProgressMonitor {
         List<String> topics = mZookeeperConnector.getCommittedOffsetTopics();
         List<Stat> stats = Lists.newArrayList();
 
+        // Look up the messages of all topic partitions at once so that each broker is asked only
+        // once.
+        List<TopicPartition> topicPartitions = Lists.newArrayList();
         for (String topic : topics) {
             if (topic.matches(mConfig.getMonitoringBlacklistTopics()) ||
                     !topic.matches(mConfig.getKafkaTopicFilter())) {
@@ -179,42 +189,50 @@ public class ProgressMonitor {
             }
             List<Integer> partitions = mZookeeperConnector.getCommittedOffsetPartitions(topic);
             for (Integer partition : partitions) {
-                TopicPartition topicPartition = new TopicPartition(topic, partition);
-                Message committedMessage = mKafkaClient.getCommittedMessage(topicPartition);
-                long committedOffset = - 1;
-                long committedTimestampMillis = -1;
-                if (committedMessage == null) {
-                    LOG.warn("no committed message found in topic {} partition {}", topic, partition);
-                } else {
-                    committedOffset = committedMessage.getOffset();
-                    committedTimestampMillis = getTimestamp(committedMessage);
-                }
-
-                Message lastMessage = mKafkaClient.getLastMessage(topicPartition);
-                if (lastMessage == null) {
-                    LOG.warn("no message found in topic {} partition {}", topic, partition);
-                } else {
-                    long lastOffset = lastMessage.getOffset();
-                    long lastTimestampMillis = getTimestamp(lastMessage);
-                    assert committedOffset <= lastOffset: Long.toString(committedOffset) + " <= " +
-                        lastOffset;
-
-                    long offsetLag = lastOffset - committedOffset;
-                    long timestampMillisLag = lastTimestampMillis - committedTimestampMillis;
-                    Map<String, String> tags = ImmutableMap.of(
-                            Stat.STAT_KEYS.TOPIC.getName(), topic,
-                            Stat.STAT_KEYS.PARTITION.getName(), Integer.toString(partition),
-                            Stat.STAT_KEYS.GROUP.getName(), mConfig.getKafkaGroup()
-                    );
-
-                    long timestamp = System.currentTimeMillis() / 1000;
-                    stats.add(Stat.createInstance(metricName("lag.offsets"), tags, Long.toString(offsetLag), timestamp));
-                    stats.add(Stat.createInstance(metricName("lag.seconds"), tags, Long.toString(timestampMillisLag / 1000), timestamp));
-
-                    LOG.debug("topic {} partition {} committed offset {} last offset {} committed timestamp {} last timestamp {}",
-                            topic, partition, committedOffset, lastOffset,
-                            (committedTimestampMillis / 1000), (lastTimestampMillis / 1000));
-                }
+                topicPartitions.add(new TopicPartition(topic, partition));
+            }
+        }
+        Map<TopicPartition, Message> committedMessages =
+            mKafkaClient.getCommittedMessages(topicPartitions);
+        Map<TopicPartition, Message> lastMessages = mKafkaClient.getLastMessages(topicPartitions);
+
+        for (TopicPartition topicPartition : topicPartitions) {
+            String topic = topicPartition.getTopic();
+            int partition = topicPartition.getPartition();
+            Message committedMessage = committedMessages.get(topicPartition);
+            long committedOffset = - 1;
+            long committedTimestampMillis = -1;
+            if (committedMessage == null) {
+                LOG.warn("no committed message found in topic {} partition {}", topic, partition);
+            } else {
+                committedOffset = committedMessage.getOffset();
+                committedTimestampMillis = getTimestamp(committedMessage);
+            }
+
+            Message lastMessage = lastMessages.get(topicPartition);
+            if (lastMessage == null) {
+                LOG.warn("no message found in topic {} partition {}", topic, partition);
+            } else {
+                long lastOffset = lastMessage.getOffset();
+                long lastTimestampMillis = getTimestamp(lastMessage);
+                assert committedOffset <= lastOffset: Long.toString(committedOffset) + " <= " +
+                    lastOffset;
+
+                long offsetLag = lastOffset - committedOffset;
+                long timestampMillisLag = lastTimestampMillis - committedTimestampMillis;
+                Map<String, String> tags = ImmutableMap.of(
+                        Stat.STAT_KEYS.TOPIC.getName(), topic,
+                        Stat.STAT_KEYS.PARTITION.getName(), Integer.toString(partition),
+                        Stat.STAT_KEYS.GROUP.getName(), mConfig.getKafkaGroup()
+                );
+
+                long timestamp = System.currentTimeMillis() / 1000;
+                stats.add(Stat.createInstance(metricName("lag.offsets"), tags, Long.toString(offsetLag), timestamp));
+                stats.add(Stat.createInstance(metricName("lag.seconds"), tags, Long.toString(timestampMillisLag / 1000), timestamp));
+
+                LOG.debug("topic {} partition {} committed offset {} last offset {} committed timestamp {} last timestamp {}",
+                        topic, partition, committedOffset, lastOffset,
+                        (committedTimestampMillis / 1000), (lastTimestampMillis / 1000));
             }
         }
 
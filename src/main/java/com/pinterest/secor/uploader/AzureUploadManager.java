@@ -15,8 +15,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
@@ -28,7 +26,6 @@ import java.util.concurrent.Future;
  */
 public class AzureUploadManager extends UploadManager {
     private static final Logger LOG = LoggerFactory.getLogger(AzureUploadManager.class);
-    private static final ExecutorService executor = Executors.newFixedThreadPool(256);
 
     private CloudBlobClient blobClient;
 
@@ -51,7 +48,7 @@ public class AzureUploadManager extends UploadManager {
         final File localFile = new File(localPath.getLogFilePath());
 
         LOG.info("uploading file {} to azure://{}/{}", localFile, azureContainer, azureKey);
-        final Future<?> f = executor.submit(new Runnable() {
+        final Future<?> f = schedule(localPath, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -26,8 +26,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.Collections;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
@@ -47,8 +45,6 @@ public class GsUploadManager extends UploadManager {
 
     private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
-    private static final ExecutorService executor = Executors.newFixedThreadPool(256);
-
     /**
      * Global instance of the Storage. The best practice is to make it a single
      * globally shared instance across your application.
@@ -76,7 +72,7 @@ public class GsUploadManager extends UploadManager {
         final StorageObject storageObject = new StorageObject().setName(gsKey);
         final FileContent storageContent = new FileContent(Files.probeContentType(localFile.toPath()), localFile);
 
-        final Future<?> f = executor.submit(new Runnable() {
+        final Future<?> f = schedule(localPath, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -19,9 +19,6 @@ package com.pinterest.secor.uploader;
 import com.pinterest.secor.common.*;
 import com.pinterest.secor.util.FileUtil;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,8 +34,6 @@ import java.util.concurrent.Future;
 public class HadoopS3UploadManager extends UploadManager {
     private static final Logger LOG = LoggerFactory.getLogger(HadoopS3UploadManager.class);
 
-    private static final ExecutorService executor = Executors.newFixedThreadPool(256);
-
     public HadoopS3UploadManager(SecorConfig config) {
         super(config);
     }
@@ -59,7 +54,7 @@ public class HadoopS3UploadManager extends UploadManager {
 
         LOG.info("uploading file {} to {}", localLogFilename, logFileName);
 
-        final Future<?> f = executor.submit(new Runnable() {
+        final Future<?> f = schedule(localPath, new Runnable() {
             @Override
             public void run() {
                 try {
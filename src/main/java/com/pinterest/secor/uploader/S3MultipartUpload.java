@@ -0,0 +1,301 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.SSECustomerKey;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.pinterest.secor.util.StatsUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads a local file to S3 as a multipart upload.
+ *
+ * Parts run on a pool shared by all uploads, which bounds the total number of connections, while
+ * a per-upload semaphore bounds the number of parts of a single file in flight.  A failed part is
+ * retried once right away.  Retries with backoff are left to the uploader retrying the whole
+ * file, so that no pool thread sleeps and attempts do not multiply across nested retries.
+ *
+ * A failed attempt keeps the upload id and the parts that have been uploaded, so calling the
+ * upload again only sends the missing parts.  The upload is only aborted by an explicit call to
+ * abort, once the caller gives up on the file.  Attempts of the same upload must not overlap.
+ */
+public class S3MultipartUpload implements Callable<CompleteMultipartUploadResult> {
+    private static final Logger LOG = LoggerFactory.getLogger(S3MultipartUpload.class);
+
+    private final AmazonS3 mClient;
+    private final InitiateMultipartUploadRequest mInitiateRequest;
+    private final SSECustomerKey mCustomerKey;
+    private final File mFile;
+    private final long mLength;
+    private final long mPartSize;
+    private final int mPartConcurrency;
+    private final ExecutorService mPartExecutor;
+
+    // Parts uploaded so far, only accessed by the running attempt.
+    private final PartETag[] mPartETags;
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private String mUploadId;
+    private boolean mRunning;
+    private boolean mAborted;
+
+    /**
+     * @param client S3 client.
+     * @param initiateRequest Request initiating the upload, including any encryption settings.
+     * @param customerKey Customer-provided encryption key that has to be passed with every part,
+     *     or null.
+     * @param file File to upload.
+     * @param partSize Size of all but the last part.
+     * @param partConcurrency Max number of parts of the file uploaded concurrently.
+     * @param partExecutor Pool running part uploads.
+     */
+    public S3MultipartUpload(AmazonS3 client, InitiateMultipartUploadRequest initiateRequest,
+                             SSECustomerKey customerKey, File file, long partSize,
+                             int partConcurrency, ExecutorService partExecutor) {
+        this(client, initiateRequest, customerKey, file, partSize, partConcurrency, partExecutor,
+             null, null);
+    }
+
+    /**
+     * Resume an upload that has already been initiated.
+     * @param uploadId Id of the initiated upload.
+     * @param partETags Tags of the uploaded parts in part number order, null for parts that
+     *     still have to be uploaded.
+     */
+    public S3MultipartUpload(AmazonS3 client, InitiateMultipartUploadRequest initiateRequest,
+                             SSECustomerKey customerKey, File file, long partSize,
+                             int partConcurrency, ExecutorService partExecutor, String uploadId,
+                             List<PartETag> partETags) {
+        mClient = client;
+        mInitiateRequest = initiateRequest;
+        mCustomerKey = customerKey;
+        mFile = file;
+        mLength = file.length();
+        mPartSize = partSize;
+        mPartConcurrency = partConcurrency;
+        mPartExecutor = partExecutor;
+        mUploadId = uploadId;
+        mPartETags = new PartETag[(int) ((mLength + partSize - 1) / partSize)];
+        if (partETags != null) {
+            for (int i = 0; i < partETags.size() && i < mPartETags.length; ++i) {
+                mPartETags[i] = partETags.get(i);
+            }
+        }
+    }
+
+    @Override
+    public CompleteMultipartUploadResult call() throws Exception {
+        String uploadId;
+        synchronized (mLock) {
+            if (mAborted) {
+                throw new IllegalStateException("multipart upload of file " + mFile +
+                                                " has been aborted");
+            }
+            if (mRunning) {
+                throw new IllegalStateException("multipart upload of file " + mFile +
+                                                " is already running");
+            }
+            mRunning = true;
+            uploadId = mUploadId;
+        }
+        boolean completed = false;
+        try {
+            CompleteMultipartUploadResult result = uploadParts(uploadId);
+            completed = true;
+            return result;
+        } finally {
+            String abortedUploadId = null;
+            synchronized (mLock) {
+                mRunning = false;
+                if (mAborted && !completed) {
+                    abortedUploadId = mUploadId;
+                }
+            }
+            if (abortedUploadId != null) {
+                abortUpload(abortedUploadId);
+            }
+        }
+    }
+
+    private CompleteMultipartUploadResult uploadParts(String uploadId) throws Exception {
+        final String bucket = mInitiateRequest.getBucketName();
+        final String key = mInitiateRequest.getKey();
+        if (mFile.length() != mLength) {
+            throw new IOException("file " + mFile + " changed from " + mLength + " to " +
+                                  mFile.length() + " bytes");
+        }
+        final long startMillis = System.currentTimeMillis();
+        if (uploadId == null) {
+            uploadId = mClient.initiateMultipartUpload(mInitiateRequest).getUploadId();
+            synchronized (mLock) {
+                mUploadId = uploadId;
+            }
+            LOG.debug("started multipart upload {} of file {} to s3://{}/{}", uploadId, mFile,
+                      bucket, key);
+        } else {
+            LOG.info("resuming multipart upload {} of file {} to s3://{}/{}", uploadId, mFile,
+                     bucket, key);
+        }
+        final Semaphore permits = new Semaphore(mPartConcurrency);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Integer> partIndexes = new ArrayList<Integer>();
+        List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+        long sentBytes = 0;
+        Exception failure = null;
+        for (int i = 0; i < mPartETags.length && !failed.get(); ++i) {
+            if (mPartETags[i] != null) {
+                continue;
+            }
+            long offset = i * mPartSize;
+            final long partSize = Math.min(mPartSize, mLength - offset);
+            final UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucket)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(i + 1)
+                .withFile(mFile)
+                .withFileOffset(offset)
+                .withPartSize(partSize)
+                .withLastPart(offset + partSize == mLength);
+            if (mCustomerKey != null) {
+                request.withSSECustomerKey(mCustomerKey);
+            }
+            permits.acquire();
+            try {
+                futures.add(mPartExecutor.submit(new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() throws Exception {
+                        try {
+                            PartETag partETag;
+                            try {
+                                partETag = mClient.uploadPart(request).getPartETag();
+                            } catch (Exception e) {
+                                LOG.warn("upload of part {} of file {} failed, retrying",
+                                         request.getPartNumber(), mFile, e);
+                                StatsUtil.incr("secor.s3.upload.part_retries");
+                                partETag = mClient.uploadPart(request).getPartETag();
+                            }
+                            StatsUtil.incr("secor.s3.upload.parts");
+                            StatsUtil.incr("secor.s3.upload.bytes", partSize);
+                            return partETag;
+                        } catch (Exception e) {
+                            failed.set(true);
+                            throw e;
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                failure = e;
+                break;
+            }
+            partIndexes.add(i);
+            sentBytes += partSize;
+        }
+        // Wait for all parts in flight so that the next attempt does not overlap with them.
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                mPartETags[partIndexes.get(i)] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            int uploadedParts = 0;
+            for (PartETag partETag : mPartETags) {
+                if (partETag != null) {
+                    uploadedParts++;
+                }
+            }
+            LOG.warn("multipart upload {} of file {} to s3://{}/{} failed, keeping {} of {} " +
+                     "parts for a retry", uploadId, mFile, bucket, key, uploadedParts,
+                     mPartETags.length, failure);
+            throw failure;
+        }
+        synchronized (mLock) {
+            if (mAborted) {
+                throw new IllegalStateException("multipart upload of file " + mFile +
+                                                " has been aborted");
+            }
+        }
+        CompleteMultipartUploadResult result = mClient.completeMultipartUpload(
+            new CompleteMultipartUploadRequest(bucket, key, uploadId, Arrays.asList(mPartETags)));
+        long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+        StatsUtil.addMetric("secor.s3.upload.bytes_per_second",
+                            (int) Math.min(Integer.MAX_VALUE, sentBytes * 1000L / elapsedMillis));
+        LOG.info("uploaded {} bytes of file {} in {} parts to s3://{}/{} in {} ms", mLength,
+                 mFile, mPartETags.length, bucket, key, elapsedMillis);
+        return result;
+    }
+
+    /**
+     * Abort the upload, dropping all uploaded parts.  An attempt in progress aborts the upload
+     * once it ends.
+     */
+    public void abort() {
+        String uploadId;
+        synchronized (mLock) {
+            if (mAborted) {
+                return;
+            }
+            mAborted = true;
+            if (mRunning) {
+                return;
+            }
+            uploadId = mUploadId;
+        }
+        if (uploadId != null) {
+            abortUpload(uploadId);
+        }
+    }
+
+    private void abortUpload(String uploadId) {
+        LOG.info("aborting multipart upload {} of file {}", uploadId, mFile);
+        StatsUtil.incr("secor.s3.upload.aborted");
+        try {
+            mClient.abortMultipartUpload(new AbortMultipartUploadRequest(
+                mInitiateRequest.getBucketName(), mInitiateRequest.getKey(), uploadId));
+        } catch (Exception e) {
+            LOG.error("failed to abort multipart upload {}", uploadId, e);
+        }
+    }
+}
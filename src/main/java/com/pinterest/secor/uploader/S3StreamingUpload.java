@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.SSECustomerKey;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.pinterest.secor.util.StatsUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Uploads a local file to S3 as a multipart upload while the file is being written.
+ *
+ * Every time a full part worth of bytes has been flushed to the file, that part is uploaded in
+ * the background.  Sealing the upload once the file is closed sends the remaining bytes as the
+ * last part.  The object only becomes visible when the upload is completed, which is left to the
+ * caller so that it can be done under the same conditions as a regular upload: the sealed upload
+ * is handed over to a multipart upload of the file, which sends the parts that are missing and
+ * completes it.
+ *
+ * Files are assumed to be append-only.  Failures do not affect writing: a failed part stops the
+ * streaming of further parts, and the parts that failed or were never sent are sent by the
+ * multipart upload.  If the upload could not be initiated, the caller uploads the whole file.
+ */
+public class S3StreamingUpload {
+    private static final Logger LOG = LoggerFactory.getLogger(S3StreamingUpload.class);
+
+    private final AmazonS3 mClient;
+    private final InitiateMultipartUploadRequest mInitiateRequest;
+    private final SSECustomerKey mCustomerKey;
+    private final File mFile;
+    private final long mPartSize;
+    private final ExecutorService mPartExecutor;
+
+    // Id of the upload, initiated on the part executor along with the first part.
+    private Future<String> mUploadId;
+    private long mSubmittedBytes;
+    private final List<Future<PartETag>> mParts = new ArrayList<Future<PartETag>>();
+    private boolean mSealed;
+    private boolean mAborted;
+    private volatile boolean mFailed;
+
+    /**
+     * @param client S3 client.
+     * @param initiateRequest Request initiating the upload, including any encryption settings.
+     * @param customerKey Customer-provided encryption key that has to be passed with every part,
+     *     or null.
+     * @param file File being written.
+     * @param partSize Size of all but the last part.
+     * @param partExecutor Pool running part uploads.
+     */
+    public S3StreamingUpload(AmazonS3 client, InitiateMultipartUploadRequest initiateRequest,
+                             SSECustomerKey customerKey, File file, long partSize,
+                             ExecutorService partExecutor) {
+        mClient = client;
+        mInitiateRequest = initiateRequest;
+        mCustomerKey = customerKey;
+        mFile = file;
+        mPartSize = partSize;
+        mPartExecutor = partExecutor;
+    }
+
+    public long getPartSize() {
+        return mPartSize;
+    }
+
+    public synchronized long getSubmittedBytes() {
+        return mSubmittedBytes;
+    }
+
+    /**
+     * Upload all full parts of the file that have not been uploaded yet.
+     */
+    public synchronized void uploadParts() {
+        uploadParts(false);
+    }
+
+    /**
+     * Upload the remaining bytes of a file that will not change anymore.
+     */
+    public synchronized void seal() {
+        uploadParts(true);
+        mSealed = true;
+    }
+
+    /**
+     * @return true if the sealed file has been streamed, at least in part, and the upload can be
+     *     handed over to a multipart upload.
+     */
+    public synchronized boolean isCompletable() {
+        return mSealed && !mAborted && mUploadId != null;
+    }
+
+    private void uploadParts(boolean last) {
+        if (mFailed || mSealed) {
+            return;
+        }
+        try {
+            long length = mFile.length();
+            while (length - mSubmittedBytes >= mPartSize ||
+                   (last && mUploadId != null && length > mSubmittedBytes)) {
+                long partSize = Math.min(mPartSize, length - mSubmittedBytes);
+                submitPart(mSubmittedBytes, partSize, last && mSubmittedBytes + partSize == length);
+                mSubmittedBytes += partSize;
+            }
+        } catch (Exception e) {
+            LOG.warn("streaming upload of file {} failed", mFile, e);
+            mFailed = true;
+        }
+    }
+
+    private void submitPart(long offset, final long partSize, boolean lastPart) {
+        if (mUploadId == null) {
+            // Submitted ahead of all parts, which wait for it on the pool rather than blocking
+            // the writer.
+            mUploadId = mPartExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    try {
+                        String uploadId =
+                            mClient.initiateMultipartUpload(mInitiateRequest).getUploadId();
+                        LOG.debug("started streaming upload {} of file {} to s3://{}/{}",
+                                  uploadId, mFile, mInitiateRequest.getBucketName(),
+                                  mInitiateRequest.getKey());
+                        return uploadId;
+                    } catch (Exception e) {
+                        mFailed = true;
+                        throw e;
+                    }
+                }
+            });
+        }
+        final Future<String> uploadId = mUploadId;
+        final UploadPartRequest request = new UploadPartRequest()
+            .withBucketName(mInitiateRequest.getBucketName())
+            .withKey(mInitiateRequest.getKey())
+            .withPartNumber(mParts.size() + 1)
+            .withFile(mFile)
+            .withFileOffset(offset)
+            .withPartSize(partSize)
+            .withLastPart(lastPart);
+        if (mCustomerKey != null) {
+            request.withSSECustomerKey(mCustomerKey);
+        }
+        mParts.add(mPartExecutor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                try {
+                    request.setUploadId(getUploadId(uploadId));
+                    PartETag partETag = mClient.uploadPart(request).getPartETag();
+                    StatsUtil.incr("secor.s3.upload.parts");
+                    StatsUtil.incr("secor.s3.upload.bytes", partSize);
+                    return partETag;
+                } catch (Exception e) {
+                    mFailed = true;
+                    throw e;
+                }
+            }
+        }));
+    }
+
+    private static String getUploadId(Future<String> uploadId) throws Exception {
+        try {
+            return uploadId.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for the streamed parts and hand the upload over to a multipart upload of the file.
+     * Calling the multipart upload sends the parts that failed or were never sent and completes
+     * the upload.
+     * @param partConcurrency Max number of parts of the file uploaded concurrently.
+     * @return Multipart upload resuming this upload.
+     * @throws Exception if the upload could not be initiated or no longer matches the file.
+     */
+    public S3MultipartUpload toMultipartUpload(int partConcurrency) throws Exception {
+        List<Future<PartETag>> parts;
+        Future<String> uploadIdFuture;
+        long submittedBytes;
+        synchronized (this) {
+            if (!isCompletable()) {
+                throw new IllegalStateException("streaming upload of file " + mFile +
+                                                " cannot be completed");
+            }
+            parts = new ArrayList<Future<PartETag>>(mParts);
+            uploadIdFuture = mUploadId;
+            submittedBytes = mSubmittedBytes;
+        }
+        String uploadId = getUploadId(uploadIdFuture);
+        long length = mFile.length();
+        // Only full parts line up with the parts of a file that has grown since it was sealed.
+        if (length < submittedBytes ||
+                (length != submittedBytes && submittedBytes % mPartSize != 0)) {
+            abort();
+            throw new IOException("file " + mFile + " has " + length + " bytes but " +
+                                  submittedBytes + " were streamed");
+        }
+        List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+        for (Future<PartETag> part : parts) {
+            try {
+                partETags.add(part.get());
+            } catch (ExecutionException e) {
+                // Sent again by the multipart upload.
+                partETags.add(null);
+            }
+        }
+        return new S3MultipartUpload(mClient, mInitiateRequest, mCustomerKey, mFile, mPartSize,
+                                     partConcurrency, mPartExecutor, uploadId, partETags);
+    }
+
+    /**
+     * Abort the upload, dropping all uploaded parts.  The upload may still be initiating, so
+     * the abort itself runs on the part executor.
+     */
+    public void abort() {
+        final Future<String> uploadIdFuture;
+        synchronized (this) {
+            mFailed = true;
+            mAborted = true;
+            uploadIdFuture = mUploadId;
+        }
+        if (uploadIdFuture == null) {
+            return;
+        }
+        Runnable abort = new Runnable() {
+            @Override
+            public void run() {
+                String uploadId;
+                try {
+                    uploadId = getUploadId(uploadIdFuture);
+                } catch (Exception e) {
+                    // Never initiated, there is nothing to abort.
+                    return;
+                }
+                LOG.info("aborting streaming upload {} of file {}", uploadId, mFile);
+                StatsUtil.incr("secor.s3.upload.aborted");
+                try {
+                    mClient.abortMultipartUpload(new AbortMultipartUploadRequest(
+                        mInitiateRequest.getBucketName(), mInitiateRequest.getKey(), uploadId));
+                } catch (Exception e) {
+                    LOG.error("failed to abort streaming upload {}", uploadId, e);
+                }
+            }
+        };
+        if (uploadIdFuture.isDone()) {
+            abort.run();
+            return;
+        }
+        try {
+            mPartExecutor.execute(abort);
+        } catch (RejectedExecutionException e) {
+            abort.run();
+        }
+    }
+}
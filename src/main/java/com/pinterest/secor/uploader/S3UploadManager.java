@@ -16,12 +16,19 @@
  */
 package com.pinterest.secor.uploader;
 
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
 import com.amazonaws.services.s3.model.SSECustomerKey;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.pinterest.secor.common.*;
+import com.pinterest.secor.io.FileWriter;
 import com.pinterest.secor.util.FileUtil;
+import com.pinterest.secor.util.StatsUtil;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
@@ -41,6 +48,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.pinterest.secor.common.LogFilePath;
 import com.pinterest.secor.common.SecorConfig;
@@ -62,6 +73,26 @@ import com.pinterest.secor.util.FileUtil;
  * If set to <code>customer</code>, the <code>aws.sse.customer.key</code>
  * property must be set to the base64 encoded customer key to use.
  * </p>
+ * <p>
+ * If <code>aws.s3.multipart.enabled</code> is set, files larger than
+ * <code>aws.s3.multipart.part.size.bytes</code> are uploaded as multipart
+ * uploads with up to <code>aws.s3.multipart.part.concurrency</code> parts
+ * in flight per file.  Multipart uploads run on the shared upload scheduler
+ * and parts of all files share a pool of <code>aws.s3.max.connections</code>
+ * threads.  A failed multipart upload keeps its uploaded parts, so that
+ * retries of the file only send the missing ones.  It is aborted once the
+ * uploader gives up on the file or the file is deleted.
+ * </p>
+ * <p>
+ * The upload managers of all consumer threads share a single S3 client, so
+ * that <code>aws.s3.max.connections</code> bounds the connections of the
+ * whole process, including those of the TransferManager.
+ * </p>
+ * <p>
+ * If <code>aws.s3.streaming.upload.enabled</code> is set, parts are uploaded
+ * while files are being written so that uploading a closed file only sends
+ * its last part.
+ * </p>
  *
  * @author Liam Stewart (liam.stewart@gmail.com)
  */
@@ -70,33 +101,63 @@ public class S3UploadManager extends UploadManager {
     private static final String KMS = "KMS";
     private static final String S3 = "S3";
     private static final String CUSTOMER = "customer";
+    // S3 rejects parts smaller than this, except for the last one.
+    private static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+
+    // Shared by the upload managers of all consumer threads, see initClient.
+    private static AmazonS3 sClient;
+    private static TransferManager sManager;
+    private static ExecutorService sPartExecutor;
 
     private final String s3Path;
 
     private TransferManager mManager;
+    private AmazonS3 mClient;
+    // Uploads of files being written, keyed by local path.
+    private final ConcurrentHashMap<LogFilePath, S3StreamingUpload> mStreamingUploads =
+        new ConcurrentHashMap<LogFilePath, S3StreamingUpload>();
+    // Multipart uploads of closed files that have not completed yet, keyed by local path.
+    private final ConcurrentHashMap<LogFilePath, S3MultipartUpload> mMultipartUploads =
+        new ConcurrentHashMap<LogFilePath, S3MultipartUpload>();
 
     public S3UploadManager(SecorConfig config) {
         super(config);
 
-        final String accessKey = mConfig.getAwsAccessKey();
-        final String secretKey = mConfig.getAwsSecretKey();
-        final String endpoint = mConfig.getAwsEndpoint();
-        final String region = mConfig.getAwsRegion();
-        final String awsRole = mConfig.getAwsRole();
-
         s3Path = mConfig.getS3Path();
 
+        initClient(config);
+        mClient = sClient;
+        mManager = sManager;
+    }
+
+    /**
+     * Create the S3 client, its TransferManager and the pool running parts of multipart uploads,
+     * all sized by aws.s3.max.connections.  All consumer threads use the same configuration, so
+     * these are created once and shared.
+     */
+    private static synchronized void initClient(SecorConfig config) {
+        if (sClient != null) {
+            return;
+        }
+        final String accessKey = config.getAwsAccessKey();
+        final String secretKey = config.getAwsSecretKey();
+        final String endpoint = config.getAwsEndpoint();
+        final String region = config.getAwsRegion();
+        final String awsRole = config.getAwsRole();
+        final int maxConnections = Math.max(1, config.getAwsS3MaxConnections());
+
         AmazonS3 client;
         AWSCredentialsProvider provider;
 
         ClientConfiguration clientConfiguration = new ClientConfiguration();
-        boolean isHttpProxyEnabled = mConfig.getAwsProxyEnabled();
+        clientConfiguration.setMaxConnections(maxConnections);
+        boolean isHttpProxyEnabled = config.getAwsProxyEnabled();
         
         //proxy settings
         if(isHttpProxyEnabled){
         	LOG.info("Http Proxy Enabled for S3UploadManager");
-        	String httpProxyHost = mConfig.getAwsProxyHttpHost();
-        	int httpProxyPort = mConfig.getAwsProxyHttpPort();
+        	String httpProxyHost = config.getAwsProxyHttpHost();
+        	int httpProxyPort = config.getAwsProxyHttpPort();
         	clientConfiguration.setProxyHost(httpProxyHost);
         	clientConfiguration.setProxyPort(httpProxyPort);        	
         }
@@ -123,31 +184,116 @@ public class S3UploadManager extends UploadManager {
         } else if (!region.isEmpty()) {
             client.setRegion(Region.getRegion(Regions.fromName(region)));
         }
+        if (config.getAwsClientPathStyleAccess()) {
+            client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        }
 
-        mManager = new TransferManager(client);
+        sClient = client;
+        sManager = new TransferManager(client);
+        sPartExecutor = Executors.newFixedThreadPool(maxConnections);
     }
 
-    public Handle<?> upload(LogFilePath localPath) throws Exception {
+    private String getS3Key(LogFilePath localPath) {
         String s3Bucket = mConfig.getS3Bucket();
         String curS3Path = s3Path;
-        String s3Key;
-
-        File localFile = new File(localPath.getLogFilePath());
 
         if (FileUtil.s3PathPrefixIsAltered(localPath.withPrefix(curS3Path).getLogFilePath(), mConfig)) {
             curS3Path = FileUtil.getS3AlternativePathPrefix(mConfig);
-            LOG.info("Will upload file {} to alternative s3 path s3://{}/{}", localFile, s3Bucket, curS3Path);
+            LOG.info("Will upload file {} to alternative s3 path s3://{}/{}", localPath.getLogFilePath(), s3Bucket, curS3Path);
         }
 
         if (mConfig.getS3MD5HashPrefix()) {
             // add MD5 hash to the prefix to have proper partitioning of the secor logs on s3
             String md5Hash = FileUtil.getMd5Hash(localPath.getTopic(), localPath.getPartitions());
-            s3Key = localPath.withPrefix(md5Hash + "/" + curS3Path).getLogFilePath();
+            return localPath.withPrefix(md5Hash + "/" + curS3Path).getLogFilePath();
         }
         else {
-            s3Key = localPath.withPrefix(curS3Path).getLogFilePath();
+            return localPath.withPrefix(curS3Path).getLogFilePath();
+        }
+    }
+
+    private long getPartSize() {
+        return Math.max(MIN_PART_SIZE, mConfig.getAwsS3MultipartPartSizeBytes());
+    }
+
+    @Override
+    public FileWriter decorateWriter(LogFilePath localPath, FileWriter writer) throws Exception {
+        if (!mConfig.getAwsS3StreamingUploadEnabled()) {
+            return writer;
+        }
+        String s3Bucket = mConfig.getS3Bucket();
+        String s3Key = getS3Key(localPath);
+        InitiateMultipartUploadRequest initiateRequest =
+            new InitiateMultipartUploadRequest(s3Bucket, s3Key);
+        SSECustomerKey customerKey = enableEncryption(initiateRequest);
+        S3StreamingUpload upload = new S3StreamingUpload(mClient, initiateRequest, customerKey,
+            new File(localPath.getLogFilePath()), getPartSize(), sPartExecutor);
+        S3StreamingUpload previous = mStreamingUploads.put(localPath, upload);
+        if (previous != null) {
+            previous.abort();
+        }
+        return new StreamingUploadFileWriter(writer, upload);
+    }
+
+    @Override
+    public void discard(LogFilePath localPath) {
+        S3StreamingUpload upload = mStreamingUploads.remove(localPath);
+        if (upload != null) {
+            upload.abort();
+        }
+        S3MultipartUpload multipartUpload = mMultipartUploads.remove(localPath);
+        if (multipartUpload != null) {
+            multipartUpload.abort();
         }
+    }
+
+    @Override
+    public void abandon(LogFilePath localPath) {
+        discard(localPath);
+    }
 
+    public Handle<?> upload(LogFilePath localPath) throws Exception {
+        String s3Bucket = mConfig.getS3Bucket();
+        String s3Key = getS3Key(localPath);
+
+        File localFile = new File(localPath.getLogFilePath());
+
+        // Retry of a failed multipart upload.
+        S3MultipartUpload multipartUpload = mMultipartUploads.get(localPath);
+        if (multipartUpload != null) {
+            return uploadMultipart(localPath, multipartUpload);
+        }
+
+        final S3StreamingUpload streamingUpload = mStreamingUploads.remove(localPath);
+        if (streamingUpload != null) {
+            if (streamingUpload.isCompletable()) {
+                return completeStreamingUpload(localPath, localFile, s3Bucket, s3Key,
+                                               streamingUpload);
+            }
+            streamingUpload.abort();
+        }
+
+        long partSize = getPartSize();
+        if (mConfig.getAwsS3MultipartEnabled() && localFile.length() > partSize) {
+            multipartUpload = createMultipartUpload(localFile, s3Bucket, s3Key, partSize);
+            mMultipartUploads.put(localPath, multipartUpload);
+            return uploadMultipart(localPath, multipartUpload);
+        }
+
+        Upload upload = mManager.upload(createPutRequest(localFile, s3Bucket, s3Key));
+        upload.addProgressListener(new ProgressListener() {
+            @Override
+            public void progressChanged(ProgressEvent progressEvent) {
+                if (progressEvent.getBytesTransferred() > 0) {
+                    StatsUtil.incr("secor.s3.upload.bytes",
+                                   progressEvent.getBytesTransferred());
+                }
+            }
+        });
+        return new S3UploadHandle(upload);
+    }
+
+    private PutObjectRequest createPutRequest(File localFile, String s3Bucket, String s3Key) {
         // make upload request, taking into account configured options for encryption
         PutObjectRequest uploadRequest = new PutObjectRequest(s3Bucket, s3Key, localFile);
         if (!mConfig.getAwsSseType().isEmpty()) {
@@ -167,9 +313,98 @@ public class S3UploadManager extends UploadManager {
         } else {
             LOG.info("uploading file {} to s3://{}/{} with no encryption", localFile, s3Bucket, s3Key);
         }
+        return uploadRequest;
+    }
 
-        Upload upload = mManager.upload(uploadRequest);
-        return new S3UploadHandle(upload);
+    private Handle<?> completeStreamingUpload(final LogFilePath localPath, final File localFile,
+                                              final String s3Bucket, final String s3Key,
+                                              final S3StreamingUpload streamingUpload)
+            throws Exception {
+        LOG.info("completing streaming upload of file {} to s3://{}/{}", localFile, s3Bucket,
+                 s3Key);
+        return new FutureHandle<Object>(schedule(localPath, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                S3MultipartUpload multipartUpload;
+                try {
+                    multipartUpload = streamingUpload.toMultipartUpload(getPartConcurrency());
+                } catch (Exception e) {
+                    LOG.warn("streaming upload of file {} failed, uploading the whole file",
+                             localFile, e);
+                    StatsUtil.incr("secor.s3.upload.streaming_fallbacks");
+                    // A single put is limited to 5 GB.
+                    long partSize = getPartSize();
+                    if (localFile.length() <= partSize) {
+                        return mClient.putObject(createPutRequest(localFile, s3Bucket, s3Key));
+                    }
+                    multipartUpload = createMultipartUpload(localFile, s3Bucket, s3Key,
+                                                            partSize);
+                }
+                // Kept until it completes so that a retry resumes it.
+                mMultipartUploads.put(localPath, multipartUpload);
+                return callMultipartUpload(localPath, multipartUpload);
+            }
+        }));
+    }
+
+    private Handle<?> uploadMultipart(final LogFilePath localPath,
+                                      final S3MultipartUpload multipartUpload) throws Exception {
+        return new FutureHandle<CompleteMultipartUploadResult>(schedule(localPath,
+            new Callable<CompleteMultipartUploadResult>() {
+                @Override
+                public CompleteMultipartUploadResult call() throws Exception {
+                    return callMultipartUpload(localPath, multipartUpload);
+                }
+            }));
+    }
+
+    private CompleteMultipartUploadResult callMultipartUpload(
+            LogFilePath localPath, S3MultipartUpload multipartUpload) throws Exception {
+        CompleteMultipartUploadResult result = multipartUpload.call();
+        mMultipartUploads.remove(localPath, multipartUpload);
+        return result;
+    }
+
+    private int getPartConcurrency() {
+        return Math.max(1, mConfig.getAwsS3MultipartPartConcurrency());
+    }
+
+    private S3MultipartUpload createMultipartUpload(File localFile, String s3Bucket, String s3Key,
+                                                    long partSize) {
+        InitiateMultipartUploadRequest initiateRequest =
+            new InitiateMultipartUploadRequest(s3Bucket, s3Key);
+        SSECustomerKey customerKey = enableEncryption(initiateRequest);
+        LOG.info("uploading file {} to s3://{}/{} in parts of {} bytes{}", localFile, s3Bucket,
+                 s3Key, partSize, mConfig.getAwsSseType().isEmpty() ? "" :
+                 " with " + mConfig.getAwsSseType() + " encryption");
+        return new S3MultipartUpload(mClient, initiateRequest, customerKey, localFile, partSize,
+            getPartConcurrency(), sPartExecutor);
+    }
+
+    /**
+     * Apply the configured encryption to a multipart upload.
+     * @return Customer key that has to be passed with every part, or null.
+     */
+    private SSECustomerKey enableEncryption(InitiateMultipartUploadRequest initiateRequest) {
+        SSECustomerKey customerKey = null;
+        if (!mConfig.getAwsSseType().isEmpty()) {
+            if (S3.equals(mConfig.getAwsSseType())) {
+                ObjectMetadata objectMetadata = new ObjectMetadata();
+                objectMetadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+                initiateRequest.setObjectMetadata(objectMetadata);
+            } else if (KMS.equals(mConfig.getAwsSseType())) {
+                String keyId = mConfig.getAwsSseKmsKey();
+                initiateRequest.withSSEAwsKeyManagementParams(keyId.isEmpty() ?
+                    new SSEAwsKeyManagementParams() : new SSEAwsKeyManagementParams(keyId));
+            } else if (CUSTOMER.equals(mConfig.getAwsSseType())) {
+                customerKey = new SSECustomerKey(mConfig.getAwsSseCustomerKey());
+                initiateRequest.withSSECustomerKey(customerKey);
+            } else {
+                // bad option
+                throw new IllegalArgumentException(mConfig.getAwsSseType() + "is not a suitable type for AWS SSE encryption");
+            }
+        }
+        return customerKey;
     }
 
     private void enableCustomerEncryption(PutObjectRequest uploadRequest) {
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import com.pinterest.secor.io.FileWriter;
+import com.pinterest.secor.io.KeyValue;
+
+import java.io.IOException;
+
+/**
+ * File writer decorator uploading parts of the file as it grows.
+ *
+ * The length reported by the underlying writer is used as a cheap hint of when another part may
+ * have reached the disk.  Only then is the actual file length checked.
+ */
+public class StreamingUploadFileWriter implements FileWriter {
+    // Distance between file length checks while buffered bytes have not reached the disk yet.
+    private static final long CHECK_INTERVAL_BYTES = 1024L * 1024L;
+
+    private final FileWriter mWriter;
+    private final S3StreamingUpload mUpload;
+    private long mNextCheckLength;
+
+    public StreamingUploadFileWriter(FileWriter writer, S3StreamingUpload upload) {
+        mWriter = writer;
+        mUpload = upload;
+        mNextCheckLength = upload.getPartSize();
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return mWriter.getLength();
+    }
+
+    @Override
+    public void write(KeyValue keyValue) throws IOException {
+        mWriter.write(keyValue);
+        long length = mWriter.getLength();
+        if (length >= mNextCheckLength) {
+            mUpload.uploadParts();
+            mNextCheckLength = Math.max(mUpload.getSubmittedBytes() + mUpload.getPartSize(),
+                                        length + CHECK_INTERVAL_BYTES);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+        mUpload.seal();
+    }
+}
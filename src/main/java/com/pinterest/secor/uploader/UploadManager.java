@@ -17,6 +17,12 @@
 package com.pinterest.secor.uploader;
 
 import com.pinterest.secor.common.*;
+import com.pinterest.secor.io.FileWriter;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Manages uploads.
@@ -31,4 +37,45 @@ public abstract class UploadManager {
     }
 
     public abstract Handle<?> upload(LogFilePath localPath) throws Exception;
+
+    /**
+     * Called when a writer of a local file is created.  Upload managers that upload files while
+     * they are being written return a decorated writer.
+     * @param localPath Path of the local file.
+     * @param writer Writer of the file.
+     * @return Writer to use for the file.
+     */
+    public FileWriter decorateWriter(LogFilePath localPath, FileWriter writer) throws Exception {
+        return writer;
+    }
+
+    /**
+     * Called when a local file is deleted, whether it has been uploaded or not.
+     * @param localPath Path of the deleted file.
+     */
+    public void discard(LogFilePath localPath) {
+    }
+
+    /**
+     * Called when the uploader gives up on uploading a local file after retrying it.  Upload
+     * managers keeping the progress of failed uploads for retries drop it.
+     * @param localPath Path of the file that failed to upload.
+     */
+    public void abandon(LogFilePath localPath) {
+    }
+
+    /**
+     * Run an upload of a local file on the scheduler shared by all upload managers.  Blocks while
+     * the scheduler queue is full.
+     */
+    protected <T> Future<T> schedule(LogFilePath localPath, Callable<T> upload)
+            throws InterruptedException {
+        long bytes = new File(localPath.getLogFilePath()).length();
+        return UploadScheduler.getInstance(mConfig).submit(localPath.getTopic(), bytes, upload);
+    }
+
+    protected Future<?> schedule(LogFilePath localPath, Runnable upload)
+            throws InterruptedException {
+        return schedule(localPath, Executors.callable(upload));
+    }
 }
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.util.StatsUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Upload retry policy retries failed uploads with exponential backoff and trips a circuit
+ * breaker after a number of consecutive failures.
+ *
+ * While the breaker is open, callers are expected to postpone uploads instead of failing.  Once
+ * the reset timeout has passed the breaker lets uploads through again, and a single further
+ * failure opens it again.
+ *
+ * Instances are thread-safe.
+ */
+public class UploadRetryPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadRetryPolicy.class);
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final int mBreakerFailures;
+    private final long mBreakerResetMillis;
+    private final Random mRandom = new Random();
+
+    private int mConsecutiveFailures;
+    private long mOpenUntilMillis;
+
+    /**
+     * @param maxAttempts Max number of attempts per upload, including the first one.
+     * @param initialBackoffMillis Backoff before the first retry.
+     * @param maxBackoffMillis Upper bound of the backoff.
+     * @param breakerFailures Number of consecutive failures opening the circuit breaker, or 0 to
+     *     disable the breaker.
+     * @param breakerResetMillis Time the breaker stays open.
+     */
+    public UploadRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+                             int breakerFailures, long breakerResetMillis) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mBreakerFailures = breakerFailures;
+        mBreakerResetMillis = breakerResetMillis;
+    }
+
+    public UploadRetryPolicy(SecorConfig config) {
+        this(config.getUploadRetryMaxAttempts(), config.getUploadRetryInitialBackoffMs(),
+             config.getUploadRetryMaxBackoffMs(), config.getUploadCircuitBreakerFailures(),
+             config.getUploadCircuitBreakerResetSeconds() * 1000L);
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public boolean isCircuitBreakerEnabled() {
+        return mBreakerFailures > 0;
+    }
+
+    /**
+     * Get the time to wait before retrying.
+     * @param retry Number of the retry, starting at 1.
+     * @return Exponential backoff capped at the max backoff, with up to half of it jittered away.
+     */
+    public long getBackoffMillis(int retry) {
+        long backoff = mInitialBackoffMillis;
+        for (int i = 1; i < retry && backoff < mMaxBackoffMillis; ++i) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, mMaxBackoffMillis);
+        synchronized (mRandom) {
+            return backoff / 2 + (long) (mRandom.nextDouble() * (backoff - backoff / 2));
+        }
+    }
+
+    /**
+     * @return false if the circuit breaker is open and uploads should be postponed.
+     */
+    public synchronized boolean allowRequest() {
+        if (!isCircuitBreakerEnabled() || mConsecutiveFailures < mBreakerFailures) {
+            return true;
+        }
+        if (currentTimeMillis() < mOpenUntilMillis) {
+            return false;
+        }
+        // Half open: let uploads through, the next failure opens the breaker again.
+        mConsecutiveFailures = mBreakerFailures - 1;
+        LOG.info("upload circuit breaker half open");
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+        mConsecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (isCircuitBreakerEnabled() && mConsecutiveFailures == mBreakerFailures) {
+            mOpenUntilMillis = currentTimeMillis() + mBreakerResetMillis;
+            LOG.warn("upload circuit breaker open for {} ms after {} consecutive failures",
+                     mBreakerResetMillis, mConsecutiveFailures);
+            StatsUtil.incr("secor.upload.circuit_breaker_opened");
+        }
+    }
+
+    /**
+     * Retry an operation whose first attempt failed.
+     * @param description Description of the operation for logging.
+     * @param operation Operation to retry.
+     * @param failure Failure of the first attempt.
+     * @return Result of the first successful retry.
+     * @throws Exception Failure of the last attempt if all attempts failed.
+     */
+    public <T> T retry(String description, Callable<T> operation, Exception failure)
+            throws Exception {
+        recordFailure();
+        for (int attempt = 2; attempt <= mMaxAttempts; ++attempt) {
+            long backoffMillis = getBackoffMillis(attempt - 1);
+            LOG.warn("attempt {} of {} failed, retrying in {} ms", attempt - 1, description,
+                     backoffMillis, failure);
+            StatsUtil.incr("secor.upload.retries");
+            sleep(backoffMillis);
+            try {
+                T result = operation.call();
+                recordSuccess();
+                return result;
+            } catch (Exception e) {
+                recordFailure();
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    // Overridden in tests.
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.util.StatsUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Upload scheduler runs the uploads of all upload managers in the JVM on a fixed number of
+ * threads.
+ *
+ * Pending uploads are queued per topic and topics take turns, so a topic with many files due
+ * does not starve the others.  The total number of pending uploads is bounded; submitting an
+ * upload to a full queue blocks the caller until a slot frees up.  Queue depth and the number of
+ * bytes being uploaded are exported as the secor.upload.queue_depth and
+ * secor.upload.in_flight_bytes metrics.
+ */
+public class UploadScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadScheduler.class);
+
+    private static UploadScheduler sInstance;
+
+    private final int mMaxQueued;
+    // Topics with pending uploads in the order they will be served.
+    private final LinkedHashMap<String, ArrayDeque<Task<?>>> mQueues =
+        new LinkedHashMap<String, ArrayDeque<Task<?>>>();
+    private int mQueued;
+    private long mInFlightBytes;
+
+    private static class Task<T> extends FutureTask<T> {
+        private final long mBytes;
+
+        public Task(Callable<T> callable, long bytes) {
+            super(callable);
+            mBytes = bytes;
+        }
+    }
+
+    /**
+     * Get the scheduler shared by all upload managers, creating it on first use.
+     */
+    public static synchronized UploadScheduler getInstance(SecorConfig config) {
+        if (sInstance == null) {
+            sInstance = new UploadScheduler(config.getUploadThreads(),
+                                            config.getUploadQueueSize());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param threads Number of uploads running concurrently.
+     * @param maxQueued Max number of uploads waiting for a thread.
+     */
+    public UploadScheduler(int threads, int maxQueued) {
+        mMaxQueued = Math.max(1, maxQueued);
+        LOG.info("starting upload scheduler with {} threads and queue size {}", threads,
+                 mMaxQueued);
+        for (int i = 0; i < Math.max(1, threads); ++i) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runTasks();
+                }
+            }, "secor-upload-scheduler-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Schedule an upload, blocking while the queue is full.
+     * @param topic Topic the uploaded file belongs to.
+     * @param bytes Size of the uploaded file.
+     * @param callable Upload to run.
+     * @return Future completing with the result of the upload.
+     */
+    public <T> Future<T> submit(String topic, long bytes, Callable<T> callable)
+            throws InterruptedException {
+        Task<T> task = new Task<T>(callable, bytes);
+        synchronized (this) {
+            while (mQueued >= mMaxQueued) {
+                wait();
+            }
+            ArrayDeque<Task<?>> queue = mQueues.get(topic);
+            if (queue == null) {
+                queue = new ArrayDeque<Task<?>>();
+                mQueues.put(topic, queue);
+            }
+            queue.add(task);
+            mQueued++;
+            StatsUtil.addMetric("secor.upload.queue_depth", mQueued);
+            notifyAll();
+        }
+        return task;
+    }
+
+    public synchronized int getQueued() {
+        return mQueued;
+    }
+
+    public synchronized long getInFlightBytes() {
+        return mInFlightBytes;
+    }
+
+    private synchronized Task<?> take() throws InterruptedException {
+        while (mQueues.isEmpty()) {
+            wait();
+        }
+        Iterator<Map.Entry<String, ArrayDeque<Task<?>>>> iterator = mQueues.entrySet().iterator();
+        Map.Entry<String, ArrayDeque<Task<?>>> entry = iterator.next();
+        ArrayDeque<Task<?>> queue = entry.getValue();
+        Task<?> task = queue.poll();
+        // Move the topic to the back of the line.
+        iterator.remove();
+        if (!queue.isEmpty()) {
+            mQueues.put(entry.getKey(), queue);
+        }
+        mQueued--;
+        mInFlightBytes += task.mBytes;
+        StatsUtil.addMetric("secor.upload.queue_depth", mQueued);
+        reportInFlightBytes();
+        notifyAll();
+        return task;
+    }
+
+    private synchronized void finish(Task<?> task) {
+        mInFlightBytes -= task.mBytes;
+        reportInFlightBytes();
+    }
+
+    // Must be called with the lock held.
+    private void reportInFlightBytes() {
+        StatsUtil.addMetric("secor.upload.in_flight_bytes",
+                            (int) Math.min(Integer.MAX_VALUE, mInFlightBytes));
+    }
+
+    private void runTasks() {
+        while (true) {
+            Task<?> task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                LOG.warn("upload scheduler thread interrupted", e);
+                return;
+            }
+            try {
+                // FutureTask captures failures of the upload.
+                task.run();
+            } finally {
+                finish(task);
+            }
+        }
+    }
+}
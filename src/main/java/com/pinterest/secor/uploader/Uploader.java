@@ -22,8 +22,10 @@ import com.pinterest.secor.io.FileReader;
 import com.pinterest.secor.io.FileWriter;
 import com.pinterest.secor.io.KeyValue;
 import com.pinterest.secor.util.CompressionUtil;
+import com.pinterest.secor.util.FileUtil;
 import com.pinterest.secor.util.IdUtil;
 import com.pinterest.secor.util.ReflectionUtil;
+import com.pinterest.secor.util.StatsUtil;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -31,6 +33,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Uploader applies a set of policies to determine if any of the locally stored files should be
@@ -41,11 +52,39 @@ import java.util.*;
 public class Uploader {
     private static final Logger LOG = LoggerFactory.getLogger(Uploader.class);
 
+    // Sealed files of a topic partition that are being uploaded in the background, or whose
+    // upload has been postponed.
+    private static class AsyncUpload {
+        private final Collection<LogFilePath> mPaths;
+        private final long mCommittedOffsetCount;
+        private final long mNewCommittedOffsetCount;
+        // Null while the upload waits to be retried.
+        private Future<Boolean> mFuture;
+
+        private AsyncUpload(Collection<LogFilePath> paths, long committedOffsetCount,
+                            long newCommittedOffsetCount) {
+            mPaths = paths;
+            mCommittedOffsetCount = committedOffsetCount;
+            mNewCommittedOffsetCount = newCommittedOffsetCount;
+        }
+    }
+
     private SecorConfig mConfig;
     private OffsetTracker mOffsetTracker;
     private FileRegistry mFileRegistry;
     private ZookeeperConnector mZookeeperConnector;
     private UploadManager mUploadManager;
+    private ExecutorService mExecutor;
+    private boolean mAsync;
+    private boolean mBatchCommit;
+    private boolean mCachedOffsets;
+    private boolean mLeases;
+    private UploadRetryPolicy mRetryPolicy;
+    // Topic partitions are not checked while their sealed files wait for an upload.  Iterated only
+    // by the thread applying the policy.
+    private ConcurrentHashMap<TopicPartition, AsyncUpload> mAsyncUploads;
+    // Topic partitions assigned to this consumer by the last rebalance, null until the first one.
+    private volatile Set<TopicPartition> mAssignedTopicPartitions;
 
 
     /**
@@ -71,22 +110,195 @@ public class Uploader {
         mFileRegistry = fileRegistry;
         mUploadManager = uploadManager;
         mZookeeperConnector = zookeeperConnector;
+        int parallelism = Math.max(1, mConfig.getUploadParallelism());
+        mAsync = mConfig.getUploadAsync();
+        mBatchCommit = mConfig.getUploadBatchCommit() && !mAsync;
+        mCachedOffsets = mConfig.getZookeeperOffsetCacheEnabled();
+        mLeases = mConfig.getZookeeperLeaseEnabled();
+        mAsyncUploads = new ConcurrentHashMap<TopicPartition, AsyncUpload>();
+        mRetryPolicy = createRetryPolicy();
+        if (parallelism > 1 || mAsync) {
+            mExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "secor-uploader-" + mThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
     }
 
-    private void uploadFiles(TopicPartition topicPartition) throws Exception {
-        long committedOffsetCount = mOffsetTracker.getTrueCommittedOffsetCount(topicPartition);
-        long lastSeenOffset = mOffsetTracker.getLastSeenOffset(topicPartition);
+    /**
+     * This method is intended to be overwritten to plug in a different retry policy.
+     */
+    protected UploadRetryPolicy createRetryPolicy() {
+        return new UploadRetryPolicy(mConfig);
+    }
 
+    /**
+     * Upload files and wait for the uploads to finish.  Failed uploads are retried file by file
+     * so that a transient error does not redo the uploads that already succeeded.
+     * @return false if an upload ran out of attempts while the circuit breaker is enabled.  The
+     *     files are then expected to be uploaded again later.
+     * @throws Exception if an upload ran out of attempts while the circuit breaker is disabled.
+     */
+    private boolean uploadPaths(Collection<LogFilePath> paths) throws Exception {
+        List<LogFilePath> uploadPaths = new ArrayList<LogFilePath>(paths);
+        List<Handle<?>> uploadHandles = new ArrayList<Handle<?>>();
+        List<Exception> failures = new ArrayList<Exception>();
+        for (LogFilePath path : uploadPaths) {
+            try {
+                uploadHandles.add(mUploadManager.upload(path));
+                failures.add(null);
+            } catch (Exception e) {
+                uploadHandles.add(null);
+                failures.add(e);
+            }
+        }
+        boolean uploaded = true;
+        for (int i = 0; i < uploadPaths.size(); ++i) {
+            final LogFilePath path = uploadPaths.get(i);
+            Exception failure = failures.get(i);
+            if (failure == null) {
+                try {
+                    uploadHandles.get(i).get();
+                    mRetryPolicy.recordSuccess();
+                    continue;
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+            if (!uploaded) {
+                // All files are uploaded again later, only wait for the started uploads.
+                mUploadManager.abandon(path);
+                continue;
+            }
+            try {
+                mRetryPolicy.retry("upload of " + path.getLogFilePath(), new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return mUploadManager.upload(path).get();
+                    }
+                }, failure);
+            } catch (Exception e) {
+                mUploadManager.abandon(path);
+                if (!mRetryPolicy.isCircuitBreakerEnabled()) {
+                    throw e;
+                }
+                LOG.error("upload of {} failed after {} attempts, postponing upload",
+                          path.getLogFilePath(), mRetryPolicy.getMaxAttempts(), e);
+                StatsUtil.incr("secor.upload.postponed");
+                uploaded = false;
+            }
+        }
+        return uploaded;
+    }
+
+    private String getLockPath(TopicPartition topicPartition) {
         String stripped = StringUtils.strip(mConfig.getZookeeperPath(), "/");
-        final String lockPath = Joiner.on("/").skipNulls().join(
+        return Joiner.on("/").skipNulls().join(
             "",
             stripped.isEmpty() ? null : stripped,
             "secor",
             "locks",
             topicPartition.getTopic(),
             topicPartition.getPartition());
+    }
+
+    private String getLeasePath(TopicPartition topicPartition) {
+        String stripped = StringUtils.strip(mConfig.getZookeeperPath(), "/");
+        return Joiner.on("/").skipNulls().join(
+            "",
+            stripped.isEmpty() ? null : stripped,
+            "secor",
+            "leases",
+            topicPartition.getTopic(),
+            topicPartition.getPartition());
+    }
+
+    /**
+     * Get exclusive access to a topic partition for the duration of an upload.  With leases this
+     * is usually a local check, otherwise a distributed lock is taken.
+     * @return false if the lease of the topic partition is held by another consumer.
+     */
+    private boolean lockTopicPartition(TopicPartition topicPartition) throws Exception {
+        if (mLeases) {
+            if (!mZookeeperConnector.tryAcquireLease(getLeasePath(topicPartition))) {
+                LOG.info("lease of topic {} partition {} is held by another consumer, " +
+                         "postponing upload", topicPartition.getTopic(),
+                         topicPartition.getPartition());
+                return false;
+            }
+            return true;
+        }
+        mZookeeperConnector.lock(getLockPath(topicPartition));
+        return true;
+    }
+
+    private void unlockTopicPartition(TopicPartition topicPartition) throws Exception {
+        // Leases are kept for subsequent uploads of assigned topic partitions.
+        if (!mLeases) {
+            mZookeeperConnector.unlock(getLockPath(topicPartition));
+        } else if (!isAssigned(topicPartition)) {
+            releaseLease(topicPartition);
+        }
+    }
+
+    private boolean isAssigned(TopicPartition topicPartition) {
+        Set<TopicPartition> assignedTopicPartitions = mAssignedTopicPartitions;
+        return assignedTopicPartitions == null || assignedTopicPartitions.contains(topicPartition);
+    }
+
+    /**
+     * Record the topic partitions assigned to this consumer.  Called on every rebalance, leases of
+     * topic partitions that are no longer assigned are released by the next policy run.
+     *
+     * @param topicPartitions Topic partitions consumed by this consumer
+     */
+    public void setAssignedTopicPartitions(Collection<TopicPartition> topicPartitions) {
+        mAssignedTopicPartitions = new HashSet<TopicPartition>(topicPartitions);
+    }
+
+    /**
+     * Release leases of topic partitions that a rebalance assigned to other consumers, so that
+     * their new owners do not have to wait for the leases to go idle.  Leases covering uploads
+     * still running in the background are released once these uploads finish.
+     */
+    private void releaseRevokedLeases() throws Exception {
+        Set<TopicPartition> assignedTopicPartitions = mAssignedTopicPartitions;
+        if (assignedTopicPartitions == null) {
+            return;
+        }
+        Set<String> keptLeasePaths = new HashSet<String>();
+        for (TopicPartition topicPartition : assignedTopicPartitions) {
+            keptLeasePaths.add(getLeasePath(topicPartition));
+        }
+        for (Map.Entry<TopicPartition, AsyncUpload> entry : mAsyncUploads.entrySet()) {
+            Future<Boolean> future = entry.getValue().mFuture;
+            if (future != null && !future.isDone()) {
+                keptLeasePaths.add(getLeasePath(entry.getKey()));
+            }
+        }
+        for (String leasePath : mZookeeperConnector.getLeasePaths()) {
+            if (!keptLeasePaths.contains(leasePath)) {
+                LOG.info("releasing lease {} of a topic partition assigned to another consumer",
+                         leasePath);
+                mZookeeperConnector.releaseLease(leasePath);
+            }
+        }
+    }
 
-        mZookeeperConnector.lock(lockPath);
+    private void uploadFiles(TopicPartition topicPartition) throws Exception {
+        long committedOffsetCount = mOffsetTracker.getTrueCommittedOffsetCount(topicPartition);
+        long lastSeenOffset = mOffsetTracker.getLastSeenOffset(topicPartition);
+
+        if (!lockTopicPartition(topicPartition)) {
+            return;
+        }
         try {
             // Check if the committed offset has changed.
             long zookeeperCommittedOffsetCount = mZookeeperConnector.getCommittedOffsetCount(
@@ -95,23 +307,251 @@ public class Uploader {
                 LOG.info("uploading topic {} partition {}", topicPartition.getTopic(), topicPartition.getPartition());
                 // Deleting writers closes their streams flushing all pending data to the disk.
                 mFileRegistry.deleteWriters(topicPartition);
-                Collection<LogFilePath> paths = mFileRegistry.getPaths(topicPartition);
-                List<Handle<?>> uploadHandles = new ArrayList<Handle<?>>();
-                for (LogFilePath path : paths) {
-                    uploadHandles.add(mUploadManager.upload(path));
-                }
-                for (Handle<?> uploadHandle : uploadHandles) {
-                    uploadHandle.get();
+                if (!uploadPaths(mFileRegistry.getPaths(topicPartition))) {
+                    postponeUpload(topicPartition, lastSeenOffset + 1);
+                    return;
                 }
                 mFileRegistry.deleteTopicPartition(topicPartition);
                 mZookeeperConnector.setCommittedOffsetCount(topicPartition, lastSeenOffset + 1);
                 mOffsetTracker.setCommittedOffsetCount(topicPartition, lastSeenOffset + 1);
             }
         } finally {
-            mZookeeperConnector.unlock(lockPath);
+            unlockTopicPartition(topicPartition);
         }
     }
 
+    /**
+     * Upload files of many topic partitions and commit their offsets in a single zookeeper
+     * transaction.  Locks are taken in a global order so that consumers with overlapping batches
+     * cannot deadlock.
+     */
+    private void uploadFiles(List<TopicPartition> topicPartitions) throws Exception {
+        if (topicPartitions.isEmpty()) {
+            return;
+        }
+        List<TopicPartition> sortedTopicPartitions =
+            new ArrayList<TopicPartition>(topicPartitions);
+        Collections.sort(sortedTopicPartitions, new Comparator<TopicPartition>() {
+            @Override
+            public int compare(TopicPartition a, TopicPartition b) {
+                int result = a.getTopic().compareTo(b.getTopic());
+                return result != 0 ? result : a.getPartition() - b.getPartition();
+            }
+        });
+        List<TopicPartition> lockedTopicPartitions =
+            new ArrayList<TopicPartition>(sortedTopicPartitions.size());
+        try {
+            Map<TopicPartition, Long> committedOffsetCounts =
+                new LinkedHashMap<TopicPartition, Long>();
+            List<LogFilePath> paths = new ArrayList<LogFilePath>();
+            for (TopicPartition topicPartition : sortedTopicPartitions) {
+                long committedOffsetCount =
+                    mOffsetTracker.getTrueCommittedOffsetCount(topicPartition);
+                if (!lockTopicPartition(topicPartition)) {
+                    continue;
+                }
+                lockedTopicPartitions.add(topicPartition);
+                // Check if the committed offset has changed.
+                if (mZookeeperConnector.getCommittedOffsetCount(topicPartition) ==
+                        committedOffsetCount) {
+                    // Deleting writers closes their streams flushing all pending data to the disk.
+                    mFileRegistry.deleteWriters(topicPartition);
+                    paths.addAll(mFileRegistry.getPaths(topicPartition));
+                    committedOffsetCounts.put(topicPartition,
+                        mOffsetTracker.getLastSeenOffset(topicPartition) + 1);
+                }
+            }
+            LOG.info("uploading {} files of {} topic partitions", paths.size(),
+                     committedOffsetCounts.size());
+            if (!uploadPaths(paths)) {
+                for (Map.Entry<TopicPartition, Long> entry : committedOffsetCounts.entrySet()) {
+                    postponeUpload(entry.getKey(), entry.getValue());
+                }
+                return;
+            }
+            // Local files are only deleted once their offsets are committed.
+            Set<TopicPartition> committed =
+                mZookeeperConnector.setCommittedOffsetCounts(committedOffsetCounts);
+            for (Map.Entry<TopicPartition, Long> entry : committedOffsetCounts.entrySet()) {
+                TopicPartition topicPartition = entry.getKey();
+                if (committed.contains(topicPartition)) {
+                    mFileRegistry.deleteTopicPartition(topicPartition);
+                    mOffsetTracker.setCommittedOffsetCount(topicPartition, entry.getValue());
+                } else {
+                    long newOffsetCount =
+                        mZookeeperConnector.getCommittedOffsetCount(topicPartition);
+                    long oldOffsetCount = mOffsetTracker.setCommittedOffsetCount(topicPartition,
+                        newOffsetCount);
+                    if (oldOffsetCount != newOffsetCount) {
+                        discardCommittedFiles(topicPartition, oldOffsetCount, newOffsetCount);
+                    }
+                }
+            }
+        } finally {
+            for (int i = lockedTopicPartitions.size() - 1; i >= 0; --i) {
+                unlockTopicPartition(lockedTopicPartitions.get(i));
+            }
+        }
+    }
+
+    /**
+     * Seal files of a topic partition and upload them in the background.  New messages go to new
+     * files named after the offset following the last seen one, which is committed locally right
+     * away and in zookeeper once the sealed files have been uploaded.
+     */
+    private void uploadFilesAsync(final TopicPartition topicPartition) throws Exception {
+        // Taking a lease is cheap, make sure the files can be uploaded before sealing them.
+        if (mLeases && !lockTopicPartition(topicPartition)) {
+            return;
+        }
+        LOG.info("uploading topic {} partition {} in the background", topicPartition.getTopic(),
+                 topicPartition.getPartition());
+        AsyncUpload upload = sealTopicPartition(topicPartition,
+            mOffsetTracker.getLastSeenOffset(topicPartition) + 1);
+        submitAsyncUpload(topicPartition, upload);
+        mAsyncUploads.put(topicPartition, upload);
+    }
+
+    /**
+     * Seal the files of a topic partition and commit the new offset count locally, so that new
+     * messages go to new files while the sealed files wait for their upload.
+     */
+    private AsyncUpload sealTopicPartition(TopicPartition topicPartition,
+                                           long newCommittedOffsetCount) throws Exception {
+        long committedOffsetCount = mOffsetTracker.getTrueCommittedOffsetCount(topicPartition);
+        // Sealing closes the writers flushing all pending data to the disk.
+        Collection<LogFilePath> paths = mFileRegistry.sealTopicPartition(topicPartition);
+        mOffsetTracker.setCommittedOffsetCount(topicPartition, newCommittedOffsetCount);
+        return new AsyncUpload(paths, committedOffsetCount, newCommittedOffsetCount);
+    }
+
+    /**
+     * Set aside the files of a topic partition whose upload failed.  Their upload is retried by
+     * subsequent policy runs once the circuit breaker lets uploads through.
+     */
+    private void postponeUpload(TopicPartition topicPartition, long newCommittedOffsetCount)
+            throws Exception {
+        LOG.warn("postponing upload of topic {} partition {}", topicPartition.getTopic(),
+                 topicPartition.getPartition());
+        mAsyncUploads.put(topicPartition,
+                          sealTopicPartition(topicPartition, newCommittedOffsetCount));
+    }
+
+    private void submitAsyncUpload(final TopicPartition topicPartition,
+                                   final AsyncUpload upload) {
+        Callable<Boolean> callable = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return uploadSealedFiles(topicPartition, upload.mPaths,
+                                         upload.mCommittedOffsetCount,
+                                         upload.mNewCommittedOffsetCount);
+            }
+        };
+        if (mAsync) {
+            upload.mFuture = mExecutor.submit(callable);
+        } else {
+            // Retries of postponed synchronous uploads run on the thread applying the policy.
+            FutureTask<Boolean> task = new FutureTask<Boolean>(callable);
+            task.run();
+            upload.mFuture = task;
+        }
+    }
+
+    private boolean uploadSealedFiles(TopicPartition topicPartition, Collection<LogFilePath> paths,
+                                      long committedOffsetCount, long newCommittedOffsetCount)
+            throws Exception {
+        if (!lockTopicPartition(topicPartition)) {
+            // The lease was lost since the files were sealed.
+            return false;
+        }
+        try {
+            // Check if the committed offset has changed since the files were sealed.
+            long zookeeperCommittedOffsetCount = mZookeeperConnector.getCommittedOffsetCount(
+                    topicPartition);
+            if (zookeeperCommittedOffsetCount != committedOffsetCount) {
+                LOG.warn("committed offset count of topic {} partition {} changed from {} to {} " +
+                         "while its files were sealed, abandoning upload",
+                         topicPartition.getTopic(), topicPartition.getPartition(),
+                         committedOffsetCount, zookeeperCommittedOffsetCount);
+                return false;
+            }
+            if (!uploadPaths(paths)) {
+                return false;
+            }
+            mZookeeperConnector.setCommittedOffsetCount(topicPartition, newCommittedOffsetCount);
+        } finally {
+            unlockTopicPartition(topicPartition);
+        }
+        for (LogFilePath path : paths) {
+            FileUtil.delete(path.getLogFilePath());
+            FileUtil.delete(path.getLogFileCrcPath());
+        }
+        return true;
+    }
+
+    private void collectAsyncUploads(boolean wait) throws Exception {
+        Iterator<Map.Entry<TopicPartition, AsyncUpload>> iterator =
+            mAsyncUploads.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TopicPartition, AsyncUpload> entry = iterator.next();
+            TopicPartition topicPartition = entry.getKey();
+            AsyncUpload upload = entry.getValue();
+            if (upload.mFuture == null) {
+                // Retry postponed uploads, unless just waiting for uploads to end.
+                if (wait || !mRetryPolicy.allowRequest()) {
+                    continue;
+                }
+                submitAsyncUpload(topicPartition, upload);
+            }
+            if (!wait && !upload.mFuture.isDone()) {
+                continue;
+            }
+            boolean uploaded;
+            try {
+                uploaded = upload.mFuture.get();
+            } catch (ExecutionException e) {
+                iterator.remove();
+                // Fail the same way a synchronous upload would.
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+            if (uploaded) {
+                iterator.remove();
+                continue;
+            }
+            long zookeeperCommittedOffsetCount = mZookeeperConnector.getCommittedOffsetCount(
+                    topicPartition);
+            if (zookeeperCommittedOffsetCount == upload.mCommittedOffsetCount) {
+                // The upload failed, or the lease is held by another consumer which has not
+                // committed anything yet.  Keep the files sealed and retry later, undoing the local
+                // commit would name new files like the sealed ones.
+                upload.mFuture = null;
+                continue;
+            }
+            iterator.remove();
+            // Someone else committed an offset in the meantime.  Undo the local commit, take the
+            // sealed files back, and trim or delete them as if they had never been sealed.
+            mOffsetTracker.resetCommittedOffsetCount(topicPartition,
+                                                     upload.mCommittedOffsetCount);
+            for (LogFilePath path : upload.mPaths) {
+                mFileRegistry.addPath(path);
+            }
+            long oldOffsetCount = mOffsetTracker.setCommittedOffsetCount(topicPartition,
+                    zookeeperCommittedOffsetCount);
+            discardCommittedFiles(topicPartition, oldOffsetCount, zookeeperCommittedOffsetCount);
+        }
+    }
+
+    /**
+     * Wait for all background uploads to finish.
+     * @throws Exception if any background upload failed.
+     */
+    public void waitForUploads() throws Exception {
+        collectAsyncUploads(true);
+    }
+
     /**
      * This method is intended to be overwritten in tests.
      * @throws Exception
@@ -182,40 +622,91 @@ public class Uploader {
     }
 
     private void checkTopicPartition(TopicPartition topicPartition) throws Exception {
+        checkTopicPartition(topicPartition, null);
+    }
+
+    private void releaseLease(TopicPartition topicPartition) throws Exception {
+        if (mLeases) {
+            mZookeeperConnector.releaseLease(getLeasePath(topicPartition));
+        }
+    }
+
+    /**
+     * @param uploadBatch If not null, topic partitions due for upload are added to it instead of
+     *     being uploaded right away.
+     */
+    private void checkTopicPartition(TopicPartition topicPartition,
+                                     List<TopicPartition> uploadBatch) throws Exception {
         final long size = mFileRegistry.getSize(topicPartition);
         final long modificationAgeSec = mFileRegistry.getModificationAgeSec(topicPartition);
         LOG.debug("size: " + size + " modificationAge: " + modificationAgeSec);
         if (size >= mConfig.getMaxFileSizeBytes() ||
                 modificationAgeSec >= mConfig.getMaxFileAgeSeconds()) {
-            long newOffsetCount = mZookeeperConnector.getCommittedOffsetCount(topicPartition);
+            // The cached offset lags behind zookeeper until its watch event is delivered, so this
+            // run may postpone an upload or trim files against an older offset, which keeps all
+            // newer messages.  Uploads re-read the offset under the lock, and the next policy run
+            // sees the refreshed value and corrects the tracked offset.
+            long newOffsetCount = mCachedOffsets ?
+                mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition) :
+                mZookeeperConnector.getCommittedOffsetCount(topicPartition);
             long oldOffsetCount = mOffsetTracker.setCommittedOffsetCount(topicPartition,
                     newOffsetCount);
-            long lastSeenOffset = mOffsetTracker.getLastSeenOffset(topicPartition);
             if (oldOffsetCount == newOffsetCount) {
+                if (!mRetryPolicy.allowRequest()) {
+                    // Keep writing to the current files until uploads are let through again.
+                    LOG.warn("upload circuit breaker open, postponing upload of topic {} partition {}",
+                             topicPartition.getTopic(), topicPartition.getPartition());
+                    return;
+                }
                 LOG.debug("Uploading for: " + topicPartition);
-                uploadFiles(topicPartition);
-            } else if (newOffsetCount > lastSeenOffset) {  // && oldOffset < newOffset
-                LOG.debug("last seen offset {} is lower than committed offset count {}. Deleting files in topic {} partition {}",
-                        lastSeenOffset, newOffsetCount,topicPartition.getTopic(), topicPartition.getPartition());
-                // There was a rebalancing event and someone committed an offset beyond that of the
-                // current message.  We need to delete the local file.
-                mFileRegistry.deleteTopicPartition(topicPartition);
-            } else {  // oldOffsetCount < newOffsetCount <= lastSeenOffset
-                LOG.debug("previous committed offset count {} is lower than committed offset {} is lower than or equal to last seen offset {}. " +
-                                "Trimming files in topic {} partition {}",
-                        oldOffsetCount, newOffsetCount, lastSeenOffset, topicPartition.getTopic(), topicPartition.getPartition());
-                // There was a rebalancing event and someone committed an offset lower than that
-                // of the current message.  We need to trim local files.
-                trimFiles(topicPartition, newOffsetCount);
+                if (mAsync) {
+                    uploadFilesAsync(topicPartition);
+                } else if (uploadBatch != null) {
+                    uploadBatch.add(topicPartition);
+                } else {
+                    uploadFiles(topicPartition);
+                }
+            } else {
+                discardCommittedFiles(topicPartition, oldOffsetCount, newOffsetCount);
             }
         }
     }
 
+    /**
+     * Delete or trim local files of a topic partition after someone else committed its offsets.
+     */
+    private void discardCommittedFiles(TopicPartition topicPartition, long oldOffsetCount,
+                                       long newOffsetCount) throws Exception {
+        long lastSeenOffset = mOffsetTracker.getLastSeenOffset(topicPartition);
+        if (newOffsetCount > lastSeenOffset) {  // && oldOffset < newOffset
+            LOG.debug("last seen offset {} is lower than committed offset count {}. Deleting files in topic {} partition {}",
+                    lastSeenOffset, newOffsetCount,topicPartition.getTopic(), topicPartition.getPartition());
+            // There was a rebalancing event and someone committed an offset beyond that of the
+            // current message.  We need to delete the local file.
+            mFileRegistry.deleteTopicPartition(topicPartition);
+        } else {  // oldOffsetCount < newOffsetCount <= lastSeenOffset
+            LOG.debug("previous committed offset count {} is lower than committed offset {} is lower than or equal to last seen offset {}. " +
+                            "Trimming files in topic {} partition {}",
+                    oldOffsetCount, newOffsetCount, lastSeenOffset, topicPartition.getTopic(), topicPartition.getPartition());
+            // There was a rebalancing event and someone committed an offset lower than that
+            // of the current message.  We need to trim local files.
+            trimFiles(topicPartition, newOffsetCount);
+        }
+        // Someone else committed offsets of the topic partition, it has likely been reassigned.
+        releaseLease(topicPartition);
+    }
+
     /**
      * Apply the Uploader policy for pushing partition files to the underlying storage.
      *
      * For each of the partitions of the file registry, apply the policy for flushing
-     * them to the underlying storage.
+     * them to the underlying storage.  Up to secor.upload.parallelism topic partitions are
+     * processed concurrently.  If secor.upload.async is set, uploads are started in the background
+     * instead and their results collected by subsequent calls.  Otherwise, if
+     * secor.upload.batch.commit is set, all topic partitions due for upload are uploaded together
+     * and their offsets committed in a single zookeeper transaction.  If an upload runs out of
+     * attempts while the upload circuit breaker is enabled, its files are set aside and retried by
+     * subsequent calls once the breaker lets uploads through.
      *
      * This method could be subclassed to provide an alternate policy. The custom uploader
      * class name would need to be specified in the secor.upload.class.
@@ -223,9 +714,64 @@ public class Uploader {
      * @throws Exception if any error occurs while appying the policy
      */
     public void applyPolicy() throws Exception {
-        Collection<TopicPartition> topicPartitions = mFileRegistry.getTopicPartitions();
-        for (TopicPartition topicPartition : topicPartitions) {
-            checkTopicPartition(topicPartition);
+        if (mLeases) {
+            releaseRevokedLeases();
+            mZookeeperConnector.releaseLeasesIdleSince(System.currentTimeMillis() -
+                mConfig.getZookeeperLeaseIdleSeconds() * 1000L);
+        }
+        collectAsyncUploads(false);
+        Collection<TopicPartition> topicPartitions = new ArrayList<TopicPartition>();
+        for (TopicPartition topicPartition : mFileRegistry.getTopicPartitions()) {
+            if (!mAsyncUploads.containsKey(topicPartition)) {
+                topicPartitions.add(topicPartition);
+            }
+        }
+        if (mAsync) {
+            // Uploads run in the background, checking topic partitions is cheap.
+            for (TopicPartition topicPartition : topicPartitions) {
+                checkTopicPartition(topicPartition);
+            }
+            return;
+        }
+        if (mBatchCommit) {
+            List<TopicPartition> uploadBatch = new ArrayList<TopicPartition>();
+            for (TopicPartition topicPartition : topicPartitions) {
+                checkTopicPartition(topicPartition, uploadBatch);
+            }
+            uploadFiles(uploadBatch);
+            return;
+        }
+        if (mExecutor == null || topicPartitions.size() <= 1) {
+            for (TopicPartition topicPartition : topicPartitions) {
+                checkTopicPartition(topicPartition);
+            }
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(topicPartitions.size());
+        for (final TopicPartition topicPartition : topicPartitions) {
+            futures.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    checkTopicPartition(topicPartition);
+                    return null;
+                }
+            }));
+        }
+        // Wait for all topic partitions so that no upload is left running behind the caller's
+        // back, then surface the first failure.
+        Exception failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                LOG.error("failed to apply upload policy", e.getCause());
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 }
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * File listing cache answers existence checks of sibling paths from a single non-recursive
+ * listing of their parent directory.
+ *
+ * On object stores a non-recursive listing is a delimiter listing, so only the immediate
+ * children of the parent are returned and files further down are never enumerated.  Listings
+ * are never refreshed, a cache is meant to serve a single pass over the file system.  Instances
+ * are thread-safe and concurrent checks under the same directory share its listing.
+ */
+public class FileListingCache {
+    private final ConcurrentHashMap<String, FutureTask<Set<String>>> mListings =
+        new ConcurrentHashMap<String, FutureTask<Set<String>>>();
+
+    private Set<String> list(final String dir) throws IOException {
+        FutureTask<Set<String>> listing = mListings.get(dir);
+        if (listing == null) {
+            FutureTask<Set<String>> newListing = new FutureTask<Set<String>>(
+                new Callable<Set<String>>() {
+                    @Override
+                    public Set<String> call() throws IOException {
+                        Set<String> children = new HashSet<String>();
+                        try {
+                            children.addAll(Arrays.asList(FileUtil.list(dir)));
+                        } catch (FileNotFoundException e) {
+                            // A missing directory has no children.
+                        }
+                        return children;
+                    }
+                });
+            listing = mListings.putIfAbsent(dir, newListing);
+            if (listing == null) {
+                listing = newListing;
+                listing.run();
+            }
+        }
+        try {
+            return listing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while listing " + dir);
+        } catch (ExecutionException e) {
+            // Let the next check list the directory again.
+            mListings.remove(dir, listing);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("failed to list " + dir, e.getCause());
+        }
+    }
+
+    /**
+     * Check if a file or a directory exists.  The parent directory of the path is listed on its
+     * first use.
+     * @param path File or directory to look for.
+     */
+    public boolean exists(String path) throws IOException {
+        String normalizedPath = FileUtil.normalize(path);
+        int slash = normalizedPath.lastIndexOf('/');
+        // Paths directly under a root or a bucket are checked on their own.
+        if (slash <= 0 || normalizedPath.charAt(slash - 1) == '/') {
+            return FileUtil.exists(path);
+        }
+        return list(normalizedPath.substring(0, slash)).contains(normalizedPath);
+    }
+}
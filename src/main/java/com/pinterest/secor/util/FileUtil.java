@@ -18,13 +18,27 @@ package com.pinterest.secor.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.text.SimpleDateFormat;
 import java.util.regex.Matcher;
@@ -34,7 +48,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.s3a.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,9 +68,41 @@ public class FileUtil {
     private static final char[] m_digits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a',
         'b', 'c', 'd', 'e', 'f'};
     private static final Pattern datePattern = Pattern.compile(".*dt=(\\d\\d\\d\\d-\\d\\d-\\d\\d).*");
+    private static final int DEFAULT_LISTING_THREADS = 16;
+
+    private static int sListingThreads = DEFAULT_LISTING_THREADS;
+    private static Set<String> sFlatListingSchemes = Collections.emptySet();
+    private static ThreadPoolExecutor sListingExecutor;
+    // File systems by scheme and authority.  FileSystem.get resolves the current user on every
+    // call, which is slow compared to a map lookup.
+    private static final ConcurrentHashMap<String, FileSystem> sFileSystems =
+        new ConcurrentHashMap<String, FileSystem>();
+
+    /**
+     * Visitor of the paths found by a recursive listing.  It is called from many threads at
+     * once.
+     */
+    public interface FileVisitor {
+        /**
+         * @param path Path in the form returned by {@link #list(String)}.
+         * @param status Status of the file or directory.
+         */
+        void visit(String path, FileStatus status) throws IOException;
+    }
 
     public static void configure(SecorConfig config) {
         if (config != null) {
+            synchronized (FileUtil.class) {
+                sListingThreads = Math.max(1, config.getFileListingThreads());
+                if (sListingExecutor != null) {
+                    resizeListingExecutor(sListingThreads);
+                }
+                Set<String> flatListingSchemes = new HashSet<String>();
+                if (config.getFileListingFlatSchemes() != null) {
+                    flatListingSchemes.addAll(Arrays.asList(config.getFileListingFlatSchemes()));
+                }
+                sFlatListingSchemes = flatListingSchemes;
+            }
             if (config.getCloudService().equals("Swift")) {
                 mConf.set("fs.swift.impl", "org.apache.hadoop.fs.swift.snative.SwiftNativeFileSystem");
                 mConf.set("fs.swift.service.GENERICPROJECT.auth.url", config.getSwiftAuthUrl());
@@ -80,11 +128,35 @@ public class FileUtil {
                     mConf.set("fs.s3n.awsSecretAccessKey", config.getAwsSecretKey());
                 }
             }
+            sFileSystems.clear();
         }
     }
 
     public static FileSystem getFileSystem(String path) throws IOException {
-        return FileSystem.get(URI.create(path), mConf);
+        URI uri = URI.create(path);
+        String key = uri.getScheme() + "://" + uri.getAuthority();
+        FileSystem fs = sFileSystems.get(key);
+        if (fs == null) {
+            fs = FileSystem.get(uri, mConf);
+            sFileSystems.put(key, fs);
+        }
+        return fs;
+    }
+
+    /**
+     * @return the local file a path points to, or null if the path is not on the local file
+     *     system.
+     */
+    private static File getLocalFile(String path) {
+        URI uri = new Path(path).toUri();
+        String scheme = uri.getScheme();
+        if (scheme == null) {
+            scheme = FileSystem.getDefaultUri(mConf).getScheme();
+        }
+        if (!"file".equals(scheme)) {
+            return null;
+        }
+        return new File(uri.getPath());
     }
 
     public static boolean s3PathPrefixIsAltered(String logFileName, SecorConfig config)
@@ -145,53 +217,224 @@ public class FileUtil {
         return prefix;
     }
 
+    private static boolean isCloudPath(String path) {
+        return path.startsWith("s3://") || path.startsWith("s3n://") || path.startsWith("s3a://") ||
+                path.startsWith("swift://") || path.startsWith("gs://");
+    }
+
+    private static String toString(Path fsPath, boolean cloudPath) {
+        if (cloudPath) {
+            return fsPath.toUri().toString();
+        }
+        return fsPath.toUri().getPath();
+    }
+
+    /**
+     * Bring a path to the form returned by the listing methods.
+     */
+    public static String normalize(String path) {
+        return toString(new Path(path), isCloudPath(path));
+    }
+
     public static String[] list(String path) throws IOException {
         FileSystem fs = getFileSystem(path);
         Path fsPath = new Path(path);
         ArrayList<String> paths = new ArrayList<String>();
         FileStatus[] statuses = fs.listStatus(fsPath);
         if (statuses != null) {
+            boolean cloudPath = isCloudPath(path);
             for (FileStatus status : statuses) {
-                Path statusPath = status.getPath();
-                if (path.startsWith("s3://") || path.startsWith("s3n://") || path.startsWith("s3a://") ||
-                        path.startsWith("swift://") || path.startsWith("gs://")) {
-                    paths.add(statusPath.toUri().toString());
-                } else {
-                    paths.add(statusPath.toUri().getPath());
-                }
+                paths.add(toString(status.getPath(), cloudPath));
             }
         }
         return paths.toArray(new String[] {});
     }
 
-    public static String[] listRecursively(String path) throws IOException {
-        ArrayList<String> paths = new ArrayList<String>();
-        String[] directPaths = list(path);
-        for (String directPath : directPaths) {
-            if (directPath.equals(path)) {
-                assert directPaths.length == 1: Integer.toString(directPaths.length) + " == 1";
-                paths.add(directPath);
-            } else {
-                String[] recursivePaths = listRecursively(directPath);
-                paths.addAll(Arrays.asList(recursivePaths));
+    // Must be called with the class lock held.
+    private static void resizeListingExecutor(int threads) {
+        // The maximum may never drop below the core size, so the order depends on the direction.
+        if (threads > sListingExecutor.getMaximumPoolSize()) {
+            sListingExecutor.setMaximumPoolSize(threads);
+            sListingExecutor.setCorePoolSize(threads);
+        } else {
+            sListingExecutor.setCorePoolSize(threads);
+            sListingExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
+    private static synchronized ExecutorService getListingExecutor() {
+        if (sListingExecutor == null) {
+            sListingExecutor = new ThreadPoolExecutor(sListingThreads, sListingThreads, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "secor-file-listing-" + mThreadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return sListingExecutor;
+    }
+
+    /**
+     * Walk a directory tree, listing its directories in parallel.
+     */
+    private static class TreeWalker {
+        private final FileSystem mFs;
+        private final boolean mCloudPath;
+        private final FileVisitor mVisitor;
+        private final ExecutorService mExecutor;
+        private final AtomicInteger mPending = new AtomicInteger();
+        private final Object mLock = new Object();
+        private IOException mFailure;
+
+        public TreeWalker(FileSystem fs, boolean cloudPath, FileVisitor visitor) {
+            mFs = fs;
+            mCloudPath = cloudPath;
+            mVisitor = visitor;
+            mExecutor = getListingExecutor();
+        }
+
+        public void walk(Path root) throws IOException {
+            submit(root);
+            synchronized (mLock) {
+                while (mPending.get() > 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while listing " + root);
+                    }
+                }
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+            }
+        }
+
+        private boolean failed() {
+            synchronized (mLock) {
+                return mFailure != null;
+            }
+        }
+
+        private void fail(IOException e) {
+            synchronized (mLock) {
+                if (mFailure == null) {
+                    mFailure = e;
+                }
+            }
+        }
+
+        private void submit(final Path dir) {
+            mPending.incrementAndGet();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!failed()) {
+                            listDir(dir);
+                        }
+                    } catch (IOException e) {
+                        fail(e);
+                    } catch (RuntimeException e) {
+                        fail(new IOException("failed to list " + dir, e));
+                    } finally {
+                        if (mPending.decrementAndGet() == 0) {
+                            synchronized (mLock) {
+                                mLock.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        private void listDir(Path dir) throws IOException {
+            FileStatus[] statuses = mFs.listStatus(dir);
+            if (statuses == null) {
+                return;
+            }
+            for (FileStatus status : statuses) {
+                mVisitor.visit(FileUtil.toString(status.getPath(), mCloudPath), status);
+                if (status.isDirectory() && !status.getPath().equals(dir)) {
+                    submit(status.getPath());
+                }
             }
         }
-        return paths.toArray(new String[] {});
+    }
+
+    /**
+     * Recursively visit all files and directories under a path.  Directories are listed in
+     * parallel.  File systems configured in secor.file.listing.flat.schemes are listed with a
+     * single flat recursive listing instead, which only visits files.
+     * @param path Directory to walk.  If it is a file, only the file itself is visited.
+     * @param visitor Visitor of the found paths.  It is called from many threads at once.
+     */
+    public static void walk(String path, FileVisitor visitor) throws IOException {
+        FileSystem fs = getFileSystem(path);
+        Path fsPath = new Path(path);
+        boolean cloudPath = isCloudPath(path);
+        if (sFlatListingSchemes.contains(fs.getUri().getScheme())) {
+            RemoteIterator<LocatedFileStatus> iterator = fs.listFiles(fsPath, true);
+            while (iterator.hasNext()) {
+                LocatedFileStatus status = iterator.next();
+                visitor.visit(toString(status.getPath(), cloudPath), status);
+            }
+        } else {
+            new TreeWalker(fs, cloudPath, visitor).walk(fsPath);
+        }
+    }
+
+    public static String[] listRecursively(String path) throws IOException {
+        final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+        walk(path, new FileVisitor() {
+            @Override
+            public void visit(String path, FileStatus status) {
+                if (!status.isDirectory()) {
+                    paths.add(path);
+                }
+            }
+        });
+        String[] result = paths.toArray(new String[paths.size()]);
+        Arrays.sort(result);
+        return result;
     }
 
     public static boolean exists(String path) throws IOException {
+        File localFile = getLocalFile(path);
+        if (localFile != null) {
+            return localFile.exists();
+        }
         FileSystem fs = getFileSystem(path);
         Path fsPath = new Path(path);
         return fs.exists(fsPath);
     }
 
+    /**
+     * Delete a file or a directory recursively.  Missing paths are ignored.
+     */
     public static void delete(String path) throws IOException {
-        if (exists(path)) {
-            Path fsPath = new Path(path);
-            boolean success = getFileSystem(path).delete(fsPath, true);  // recursive
-            if (!success) {
-                throw new IOException("Failed to delete " + path);
+        File localFile = getLocalFile(path);
+        if (localFile != null) {
+            try {
+                Files.deleteIfExists(localFile.toPath());
+            } catch (DirectoryNotEmptyException e) {
+                if (!org.apache.hadoop.fs.FileUtil.fullyDelete(localFile) && localFile.exists()) {
+                    throw new IOException("Failed to delete " + path);
+                }
             }
+            return;
+        }
+        Path fsPath = new Path(path);
+        FileSystem fs = getFileSystem(path);
+        // Delete returns false for missing paths, only then is it worth checking existence.
+        if (!fs.delete(fsPath, true) && fs.exists(fsPath)) {  // recursive
+            throw new IOException("Failed to delete " + path);
         }
     }
 
@@ -216,25 +459,19 @@ public class FileUtil {
         FileSystem fs = getFileSystem(path);
         Path fsPath = new Path(path);
         FileStatus status = fs.getFileStatus(fsPath);
-        long modificationTime = status.getModificationTime();
-        FileStatus[] statuses = fs.listStatus(fsPath);
-        if (statuses != null) {
-            for (FileStatus fileStatus : statuses) {
-                Path statusPath = fileStatus.getPath();
-                String stringPath;
-                if (path.startsWith("s3://") || path.startsWith("s3n://") || path.startsWith("s3a://") ||
-                        path.startsWith("swift://") || path.startsWith("gs://")) {
-                    stringPath = statusPath.toUri().toString();
-                } else {
-                    stringPath = statusPath.toUri().getPath();
+        final long[] modificationTime = {status.getModificationTime()};
+        if (status.isDirectory()) {
+            walk(path, new FileVisitor() {
+                @Override
+                public void visit(String path, FileStatus status) {
+                    synchronized (modificationTime) {
+                        modificationTime[0] = Math.max(modificationTime[0],
+                                                       status.getModificationTime());
+                    }
                 }
-                if (!stringPath.equals(path)) {
-                    modificationTime = Math.max(modificationTime,
-                            getModificationTimeMsRecursive(stringPath));
-                }
-            }
+            });
         }
-        return modificationTime;
+        return modificationTime[0];
     }
     
     /** Generate MD5 hash of topic and partitions. And extract first 4 characters of the MD5 hash.
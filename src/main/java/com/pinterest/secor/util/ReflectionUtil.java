@@ -23,6 +23,7 @@ import com.pinterest.secor.common.SecorConfig;
 import com.pinterest.secor.io.FileReader;
 import com.pinterest.secor.io.FileReaderWriterFactory;
 import com.pinterest.secor.io.FileWriter;
+import com.pinterest.secor.parser.HiveMetastoreClient;
 import com.pinterest.secor.parser.MessageParser;
 import com.pinterest.secor.transformer.MessageTransformer;
 import com.pinterest.secor.uploader.UploadManager;
@@ -194,4 +195,28 @@ public class ReflectionUtil {
         return (MessageTransformer) clazz.getConstructor(SecorConfig.class)
                 .newInstance(config);
     }
+
+    /**
+     * Create a HiveMetastoreClient from its fully qualified class name. The class passed in by
+     * name must be assignable to HiveMetastoreClient and have 1-parameter constructor accepting
+     * a SecorConfig.
+     *
+     * See the secor.hive.metastore.client.class config option.
+     *
+     * @param className The class name of an implementation of HiveMetastoreClient
+     * @param config The SecorCondig to initialize the HiveMetastoreClient with
+     * @return a HiveMetastoreClient instance with the runtime type of the class passed by name
+     * @throws Exception
+     */
+    public static HiveMetastoreClient createHiveMetastoreClient(String className,
+                                                                SecorConfig config)
+            throws Exception {
+        Class<?> clazz = Class.forName(className);
+        if (!HiveMetastoreClient.class.isAssignableFrom(clazz)) {
+            throw new IllegalArgumentException(String.format(
+                    "The class '%s' is not assignable to '%s'.", className,
+                    HiveMetastoreClient.class.getName()));
+        }
+        return (HiveMetastoreClient) clazz.getConstructor(SecorConfig.class).newInstance(config);
+    }
 }
@@ -40,4 +40,21 @@ public class StatsUtil {
       Stats.incr(name);
     }
 
+    public static void incr(String name, int delta) {
+      Stats.incr(name, delta);
+    }
+
+    // Counters hold longs but are only incremented by ints.
+    public static void incr(String name, long delta) {
+      while (delta > Integer.MAX_VALUE) {
+        Stats.incr(name, Integer.MAX_VALUE);
+        delta -= Integer.MAX_VALUE;
+      }
+      Stats.incr(name, (int) delta);
+    }
+
+    public static void addMetric(String name, int value) {
+      Stats.addMetric(name, value);
+    }
+
 }
@@ -33,6 +33,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * Message writer appends Kafka messages to local log files.
@@ -42,6 +45,45 @@ import java.io.IOException;
 public class MessageWriter {
     private static final Logger LOG = LoggerFactory.getLogger(MessageWriter.class);
 
+    // Identifies the file a message goes to within the current committed offset.
+    private static class WriterKey {
+        private int mTopicPartitionId;
+        private String[] mPartitions;
+        private int mHashCode;
+
+        private void set(int topicPartitionId, String[] partitions) {
+            mTopicPartitionId = topicPartitionId;
+            mPartitions = partitions;
+            mHashCode = 31 * topicPartitionId + Arrays.hashCode(partitions);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WriterKey)) return false;
+            WriterKey that = (WriterKey) o;
+            return mTopicPartitionId == that.mTopicPartitionId &&
+                   Arrays.equals(mPartitions, that.mPartitions);
+        }
+    }
+
+    private static class CachedWriter {
+        private final long mOffset;
+        private final LogFilePath mPath;
+        private final FileWriter mWriter;
+
+        private CachedWriter(long offset, LogFilePath path, FileWriter writer) {
+            mOffset = offset;
+            mPath = path;
+            mWriter = writer;
+        }
+    }
+
     private SecorConfig mConfig;
     private OffsetTracker mOffsetTracker;
     private FileRegistry mFileRegistry;
@@ -49,6 +91,15 @@ public class MessageWriter {
     private CompressionCodec mCodec;
     private String mLocalPrefix;
     private final int mGeneration;
+    // File writers consume key values synchronously so a single instance is recycled.
+    private final KeyValue mKeyValue = new KeyValue(0, null, null);
+    // Writers looked up by topic partition id and partition values so that steady state writes
+    // skip building and hashing log file paths.  Entries whose writer the file registry has
+    // deleted are dropped once the registry's writer deletion count moves.
+    private final HashMap<WriterKey, CachedWriter> mWriterCache =
+        new HashMap<WriterKey, CachedWriter>();
+    private final WriterKey mLookupKey = new WriterKey();
+    private long mWriterDeletionCount;
 
     public MessageWriter(SecorConfig config, OffsetTracker offsetTracker,
                          FileRegistry fileRegistry) throws Exception {
@@ -70,10 +121,12 @@ public class MessageWriter {
     }
 
     public void adjustOffset(Message message) throws IOException {
-        TopicPartition topicPartition = new TopicPartition(message.getTopic(),
-                                                           message.getKafkaPartition());
-        long lastSeenOffset = mOffsetTracker.getLastSeenOffset(topicPartition);
+        int topicPartitionId = mOffsetTracker.getTopicPartitionId(message.getTopic(),
+                                                                  message.getKafkaPartition());
+        long lastSeenOffset = mOffsetTracker.getLastSeenOffset(topicPartitionId);
         if (message.getOffset() != lastSeenOffset + 1) {
+            TopicPartition topicPartition =
+                mOffsetTracker.getTopicPartitionRegistry().getTopicPartition(topicPartitionId);
             StatsUtil.incr("secor.consumer_rebalance_count." + topicPartition.getTopic());
             // There was a rebalancing event since we read the last message.
             LOG.debug("offset of message {} does not follow sequentially the last seen offset {}. " +
@@ -82,18 +135,61 @@ public class MessageWriter {
 
             mFileRegistry.deleteTopicPartition(topicPartition);
         }
-        mOffsetTracker.setLastSeenOffset(topicPartition, message.getOffset());
+        mOffsetTracker.setLastSeenOffset(topicPartitionId, message.getOffset());
     }
 
     public void write(ParsedMessage message) throws Exception {
-        TopicPartition topicPartition = new TopicPartition(message.getTopic(),
-                                                           message.getKafkaPartition());
-        long offset = mOffsetTracker.getAdjustedCommittedOffsetCount(topicPartition);
-        LogFilePath path = new LogFilePath(mLocalPrefix, mGeneration, offset, message,
-        		mFileExtension);
-        FileWriter writer = mFileRegistry.getOrCreateWriter(path, mCodec);
-        writer.write(new KeyValue(message.getOffset(), message.getKafkaKey(), message.getPayload()));
-        LOG.debug("appended message {} to file {}.  File length {}",
-                  message, path, writer.getLength());
+        int topicPartitionId = mOffsetTracker.getTopicPartitionId(message.getTopic(),
+                                                                  message.getKafkaPartition());
+        long offset = mOffsetTracker.getAdjustedCommittedOffsetCount(topicPartitionId);
+        CachedWriter cachedWriter = getCachedWriter(topicPartitionId, message.getPartitions(),
+                                                    offset);
+        if (cachedWriter == null) {
+            LogFilePath path = new LogFilePath(mLocalPrefix, mGeneration, offset, message,
+                    mFileExtension);
+            FileWriter writer = mFileRegistry.getOrCreateWriter(path, mCodec);
+            cachedWriter = new CachedWriter(offset, path, writer);
+            WriterKey key = new WriterKey();
+            // Partitions are copied since callers may recycle the array.
+            key.set(topicPartitionId, message.getPartitions().clone());
+            mWriterCache.put(key, cachedWriter);
+        }
+        mKeyValue.reset(message.getOffset(), message.getKafkaKey(), message.getPayload());
+        cachedWriter.mWriter.write(mKeyValue);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("appended message {} to file {}.  File length {}",
+                      message, cachedWriter.mPath, cachedWriter.mWriter.getLength());
+        }
+    }
+
+    private CachedWriter getCachedWriter(int topicPartitionId, String[] partitions,
+                                         long offset) throws Exception {
+        long writerDeletionCount = mFileRegistry.getWriterDeletionCount();
+        if (writerDeletionCount != mWriterDeletionCount) {
+            mWriterDeletionCount = writerDeletionCount;
+            evictDeletedWriters();
+        }
+        mLookupKey.set(topicPartitionId, partitions);
+        CachedWriter cachedWriter = mWriterCache.get(mLookupKey);
+        mLookupKey.mPartitions = null;
+        // Files are named after the committed offset so a moved offset means a different file.
+        if (cachedWriter != null && cachedWriter.mOffset != offset) {
+            return null;
+        }
+        return cachedWriter;
+    }
+
+    /**
+     * Drop cached writers that are no longer registered.  Writers of other topic partitions stay
+     * cached so that deletions in one topic partition do not slow down writes to the others.
+     */
+    private void evictDeletedWriters() throws Exception {
+        Iterator<CachedWriter> iterator = mWriterCache.values().iterator();
+        while (iterator.hasNext()) {
+            CachedWriter cachedWriter = iterator.next();
+            if (mFileRegistry.getWriter(cachedWriter.mPath) != cachedWriter.mWriter) {
+                iterator.remove();
+            }
+        }
     }
 }
@@ -196,6 +196,20 @@ public class FileRegistryTest extends TestCase {
         assertTrue(mRegistry.getTopicPartitions().isEmpty());
     }
 
+    public void testWriterDeletionCount() throws Exception {
+        createWriter();
+        assertEquals(0, mRegistry.getWriterDeletionCount());
+
+        PowerMockito.mockStatic(FileUtil.class);
+
+        mRegistry.deleteWriter(mLogFilePath);
+        assertEquals(1, mRegistry.getWriterDeletionCount());
+
+        // Deleting a path without a writer does not change the count.
+        mRegistry.deleteWriter(mLogFilePath);
+        assertEquals(1, mRegistry.getWriterDeletionCount());
+    }
+
     public void testDeleteTopicPartition() throws Exception {
         createWriter();
 
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.common;
+
+import com.pinterest.secor.message.Message;
+
+import junit.framework.TestCase;
+
+import kafka.api.FetchRequest;
+import kafka.cluster.Broker;
+import kafka.common.ErrorMapping;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.PartitionMetadata;
+import kafka.javaapi.TopicMetadata;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.TopicMetadataResponse;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * KafkaClientTest tests batched message lookups against mocked brokers.
+ */
+public class KafkaClientTest extends TestCase {
+    private static final String TOPIC = "some_topic";
+    private static final int NUM_PARTITIONS = 3;
+
+    private SecorConfig mConfig;
+    private ZookeeperConnector mZookeeperConnector;
+    private SimpleConsumer mSeedConsumer;
+    private SimpleConsumer mLeaderConsumer;
+    private List<TopicPartition> mTopicPartitions;
+    private KafkaClient mKafkaClient;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        PropertiesConfiguration properties = new PropertiesConfiguration();
+        properties.setProperty("kafka.seed.broker.host", "seed");
+        properties.setProperty("kafka.seed.broker.port", "9092");
+        properties.setProperty("secor.max.message.size.bytes", "100");
+        // Two partitions per fetch request.
+        properties.setProperty("secor.kafka.client.fetch.max.bytes", "200");
+        properties.setProperty("secor.kafka.client.threads", "1");
+        mConfig = new SecorConfig(properties);
+
+        mTopicPartitions = new ArrayList<TopicPartition>();
+        List<PartitionMetadata> partitionsMetadata = new ArrayList<PartitionMetadata>();
+        for (int partition = 0; partition < NUM_PARTITIONS; ++partition) {
+            mTopicPartitions.add(new TopicPartition(TOPIC, partition));
+            PartitionMetadata partitionMetadata = Mockito.mock(PartitionMetadata.class);
+            Mockito.when(partitionMetadata.partitionId()).thenReturn(partition);
+            Mockito.when(partitionMetadata.leader()).thenReturn(new Broker(1, "leader", 9092));
+            partitionsMetadata.add(partitionMetadata);
+        }
+        TopicMetadata topicMetadata = Mockito.mock(TopicMetadata.class);
+        Mockito.when(topicMetadata.topic()).thenReturn(TOPIC);
+        Mockito.when(topicMetadata.partitionsMetadata()).thenReturn(partitionsMetadata);
+        TopicMetadataResponse metadataResponse = Mockito.mock(TopicMetadataResponse.class);
+        Mockito.when(metadataResponse.topicsMetadata()).thenReturn(
+            Collections.singletonList(topicMetadata));
+        mSeedConsumer = Mockito.mock(SimpleConsumer.class);
+        Mockito.when(mSeedConsumer.send(Mockito.any(TopicMetadataRequest.class))).thenReturn(
+            metadataResponse);
+
+        mLeaderConsumer = Mockito.mock(SimpleConsumer.class);
+        mZookeeperConnector = Mockito.mock(ZookeeperConnector.class);
+        for (TopicPartition topicPartition : mTopicPartitions) {
+            Mockito.when(mZookeeperConnector.getCommittedOffsetCount(topicPartition))
+                .thenReturn(1L);
+        }
+        mKafkaClient = new KafkaClient(mConfig, mZookeeperConnector) {
+            @Override
+            protected SimpleConsumer createConsumer(String host, int port, String clientName) {
+                return host.equals("seed") ? mSeedConsumer : mLeaderConsumer;
+            }
+        };
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mKafkaClient.close();
+        super.tearDown();
+    }
+
+    private static ByteBufferMessageSet createMessageSet(String... payloads) {
+        List<kafka.message.Message> messages = new ArrayList<kafka.message.Message>();
+        for (String payload : payloads) {
+            messages.add(new kafka.message.Message(payload.getBytes()));
+        }
+        return new ByteBufferMessageSet(messages);
+    }
+
+    private static FetchResponse createFetchResponse() {
+        FetchResponse response = Mockito.mock(FetchResponse.class);
+        Mockito.when(response.messageSet(Mockito.anyString(), Mockito.anyInt())).thenReturn(
+            createMessageSet("payload"));
+        return response;
+    }
+
+    public void testFetchesPartitionsInChunks() throws Exception {
+        FetchResponse response = createFetchResponse();
+        Mockito.when(mLeaderConsumer.fetch(Mockito.any(FetchRequest.class))).thenReturn(
+            response);
+
+        Map<TopicPartition, Message> messages =
+            mKafkaClient.getCommittedMessages(mTopicPartitions);
+
+        assertEquals(NUM_PARTITIONS, messages.size());
+        assertEquals("payload", new String(messages.get(mTopicPartitions.get(0)).getPayload()));
+        ArgumentCaptor<FetchRequest> requests = ArgumentCaptor.forClass(FetchRequest.class);
+        Mockito.verify(mLeaderConsumer, Mockito.times(2)).fetch(requests.capture());
+        int fetchedPartitions = 0;
+        for (FetchRequest request : requests.getAllValues()) {
+            assertTrue(request.requestInfo().size() <= 2);
+            fetchedPartitions += request.requestInfo().size();
+        }
+        assertEquals(NUM_PARTITIONS, fetchedPartitions);
+    }
+
+    public void testCachesLeaders() throws Exception {
+        FetchResponse response = createFetchResponse();
+        Mockito.when(mLeaderConsumer.fetch(Mockito.any(FetchRequest.class))).thenReturn(
+            response);
+
+        assertEquals(NUM_PARTITIONS, mKafkaClient.getCommittedMessages(mTopicPartitions).size());
+        assertEquals(NUM_PARTITIONS, mKafkaClient.getCommittedMessages(mTopicPartitions).size());
+
+        Mockito.verify(mSeedConsumer, Mockito.times(1)).send(
+            Mockito.any(TopicMetadataRequest.class));
+    }
+
+    public void testRetriesAfterLeadershipChange() throws Exception {
+        FetchResponse notLeaderResponse = createFetchResponse();
+        Mockito.when(notLeaderResponse.errorCode(Mockito.anyString(), Mockito.anyInt()))
+            .thenReturn(ErrorMapping.NotLeaderForPartitionCode());
+        FetchResponse response = createFetchResponse();
+        Mockito.when(mLeaderConsumer.fetch(Mockito.any(FetchRequest.class))).thenReturn(
+            notLeaderResponse, response);
+
+        assertEquals(NUM_PARTITIONS, mKafkaClient.getCommittedMessages(mTopicPartitions).size());
+
+        // The stale leader is dropped from the cache and looked up again.
+        Mockito.verify(mSeedConsumer, Mockito.times(2)).send(
+            Mockito.any(TopicMetadataRequest.class));
+    }
+
+    public void testSkipsEmptyMessageSets() throws Exception {
+        FetchResponse response = createFetchResponse();
+        // E.g. the committed message has been removed by retention.
+        Mockito.when(response.messageSet(TOPIC, 2)).thenReturn(createMessageSet());
+        Mockito.when(mLeaderConsumer.fetch(Mockito.any(FetchRequest.class))).thenReturn(
+            response);
+
+        Map<TopicPartition, Message> messages =
+            mKafkaClient.getCommittedMessages(mTopicPartitions);
+
+        assertEquals(Arrays.asList(true, true, false), Arrays.asList(
+            messages.containsKey(mTopicPartitions.get(0)),
+            messages.containsKey(mTopicPartitions.get(1)),
+            messages.containsKey(mTopicPartitions.get(2))));
+    }
+}
@@ -68,6 +68,28 @@ public class LogFilePathTest extends TestCase {
         assertEquals(LAST_COMMITTED_OFFSET, logFilePath.getOffset());
     }
 
+    public void testConstructFromPathWithExtension() throws Exception {
+        LogFilePath logFilePath = new LogFilePath("/some_parent_dir", PATH + ".gz");
+
+        assertEquals(PATH + ".gz", logFilePath.getLogFilePath());
+        assertEquals(".gz", logFilePath.getExtension());
+        assertTrue(Arrays.equals(PARTITIONS, logFilePath.getPartitions()));
+        assertEquals(LAST_COMMITTED_OFFSET, logFilePath.getOffset());
+        assertEquals(CRC_PATH, logFilePath.getLogFileCrcPath());
+    }
+
+    public void testConstructFromPathWithSinglePartition() throws Exception {
+        LogFilePath logFilePath = new LogFilePath("s3n://bucket/prefix",
+                "s3n://bucket/prefix/some_topic/dt=2014-01-01/1_23_00000000000000012345.lzo");
+
+        assertEquals("some_topic", logFilePath.getTopic());
+        assertTrue(Arrays.equals(new String[]{"dt=2014-01-01"}, logFilePath.getPartitions()));
+        assertEquals(1, logFilePath.getGeneration());
+        assertEquals(23, logFilePath.getKafkaPartition());
+        assertEquals(12345, logFilePath.getOffset());
+        assertEquals(".lzo", logFilePath.getExtension());
+    }
+
     public void testGetters() throws Exception {
         assertEquals(TOPIC, mLogFilePath.getTopic());
         assertTrue(Arrays.equals(PARTITIONS, mLogFilePath.getPartitions()));
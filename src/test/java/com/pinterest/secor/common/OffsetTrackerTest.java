@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.common;
+
+import junit.framework.TestCase;
+
+/**
+ * OffsetTrackerTest tests offset bookkeeping and topic partition interning.
+ */
+public class OffsetTrackerTest extends TestCase {
+    private OffsetTracker mOffsetTracker;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mOffsetTracker = new OffsetTracker();
+    }
+
+    public void testTopicPartitionIds() throws Exception {
+        TopicPartitionRegistry registry = mOffsetTracker.getTopicPartitionRegistry();
+        int id0 = registry.getId("some_topic", 3);
+        int id1 = registry.getId("other_topic", 0);
+        int id2 = registry.getId("some_topic", 0);
+        assertEquals(0, id0);
+        assertEquals(1, id1);
+        assertEquals(2, id2);
+        assertEquals(id0, registry.getId(new TopicPartition("some_topic", 3)));
+        assertEquals(new TopicPartition("some_topic", 0), registry.getTopicPartition(id2));
+        assertEquals(3, registry.size());
+    }
+
+    public void testDefaults() throws Exception {
+        TopicPartition topicPartition = new TopicPartition("some_topic", 0);
+        assertEquals(-2L, mOffsetTracker.getLastSeenOffset(topicPartition));
+        assertEquals(-1L, mOffsetTracker.getTrueCommittedOffsetCount(topicPartition));
+        assertEquals(-1L, mOffsetTracker.getAdjustedCommittedOffsetCount(topicPartition));
+    }
+
+    public void testLastSeenOffset() throws Exception {
+        TopicPartition topicPartition = new TopicPartition("some_topic", 0);
+        assertEquals(-2L, mOffsetTracker.setLastSeenOffset(topicPartition, 10L));
+        assertEquals(10L, mOffsetTracker.setLastSeenOffset(topicPartition, 11L));
+        assertEquals(11L, mOffsetTracker.getLastSeenOffset(topicPartition));
+        // The first seen offset stands in for a missing committed offset.
+        assertEquals(10L, mOffsetTracker.getAdjustedCommittedOffsetCount(topicPartition));
+    }
+
+    public void testCommittedOffsetCount() throws Exception {
+        TopicPartition topicPartition = new TopicPartition("some_topic", 0);
+        mOffsetTracker.setLastSeenOffset(topicPartition, 10L);
+        assertEquals(-1L, mOffsetTracker.setCommittedOffsetCount(topicPartition, 12L));
+        assertEquals(12L, mOffsetTracker.setCommittedOffsetCount(topicPartition, 20L));
+        assertEquals(20L, mOffsetTracker.getTrueCommittedOffsetCount(topicPartition));
+        assertEquals(20L, mOffsetTracker.getAdjustedCommittedOffsetCount(topicPartition));
+    }
+
+    public void testManyTopicPartitions() throws Exception {
+        for (int partition = 0; partition < 1000; ++partition) {
+            int id = mOffsetTracker.getTopicPartitionId("some_topic", partition);
+            mOffsetTracker.setLastSeenOffset(id, partition);
+            mOffsetTracker.setCommittedOffsetCount(id, partition + 1);
+        }
+        for (int partition = 0; partition < 1000; ++partition) {
+            TopicPartition topicPartition = new TopicPartition("some_topic", partition);
+            assertEquals(partition, mOffsetTracker.getLastSeenOffset(topicPartition));
+            assertEquals(partition + 1,
+                mOffsetTracker.getTrueCommittedOffsetCount(topicPartition));
+        }
+    }
+
+    public void testConcurrentWritesWhileGrowing() throws Exception {
+        final int numTopicPartitions = 10000;
+        final TopicPartitionRegistry registry = mOffsetTracker.getTopicPartitionRegistry();
+        // Ids of both topics interleave so that either thread may grow the arrays.
+        final int[] committedIds = new int[numTopicPartitions];
+        final int[] seenIds = new int[numTopicPartitions];
+        for (int partition = 0; partition < numTopicPartitions; ++partition) {
+            committedIds[partition] = registry.getId("committed_topic", partition);
+            seenIds[partition] = registry.getId("seen_topic", partition);
+        }
+        Thread committer = new Thread() {
+            @Override
+            public void run() {
+                for (int partition = 0; partition < numTopicPartitions; ++partition) {
+                    mOffsetTracker.setCommittedOffsetCount(committedIds[partition], partition + 1);
+                }
+            }
+        };
+        committer.start();
+        for (int partition = 0; partition < numTopicPartitions; ++partition) {
+            mOffsetTracker.setLastSeenOffset(seenIds[partition], partition);
+        }
+        committer.join();
+
+        for (int partition = 0; partition < numTopicPartitions; ++partition) {
+            assertEquals(partition + 1,
+                mOffsetTracker.getTrueCommittedOffsetCount(committedIds[partition]));
+            assertEquals(partition, mOffsetTracker.getLastSeenOffset(seenIds[partition]));
+        }
+    }
+}
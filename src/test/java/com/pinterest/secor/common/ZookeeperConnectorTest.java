@@ -1,14 +1,288 @@
 package com.pinterest.secor.common;
 
+import com.twitter.common.zookeeper.ZooKeeperClient;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.SetDataRequest;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ZookeeperConnectorTest {
+    private static final String LEASE_PATH = "/secor/leases/some_topic/0";
+    private static final long SESSION_ID = 1234L;
+
+    private ZooKeeper mZookeeper;
+    private ZookeeperConnector mZookeeperConnector;
 
     @Before
     public void setUp() throws Exception {
+        mZookeeper = Mockito.mock(ZooKeeper.class);
+        Mockito.when(mZookeeper.getSessionId()).thenReturn(SESSION_ID);
+        ZooKeeperClient zookeeperClient = Mockito.mock(ZooKeeperClient.class);
+        Mockito.when(zookeeperClient.get()).thenReturn(mZookeeper);
+        mZookeeperConnector = new ZookeeperConnector();
+        mZookeeperConnector.setZookeeperClient(zookeeperClient);
+    }
+
+    private void leaseNodeExists(long ephemeralOwner) throws Exception {
+        Mockito.when(mZookeeper.create(Mockito.eq(LEASE_PATH), Mockito.any(byte[].class),
+                Mockito.anyListOf(ACL.class), Mockito.eq(CreateMode.EPHEMERAL)))
+            .thenThrow(new KeeperException.NodeExistsException(LEASE_PATH));
+        Stat stat = new Stat();
+        stat.setEphemeralOwner(ephemeralOwner);
+        Mockito.when(mZookeeper.exists(LEASE_PATH, false)).thenReturn(stat);
+        Mockito.when(mZookeeper.exists(Mockito.eq(LEASE_PATH), Mockito.any(Watcher.class)))
+            .thenReturn(stat);
+    }
+
+    @Test
+    public void testAcquireLease() throws Exception {
+        Mockito.when(mZookeeper.exists(Mockito.eq(LEASE_PATH), Mockito.any(Watcher.class)))
+            .thenReturn(new Stat());
+
+        Assert.assertTrue(mZookeeperConnector.tryAcquireLease(LEASE_PATH));
+        Assert.assertEquals(Collections.singleton(LEASE_PATH),
+                            mZookeeperConnector.getLeasePaths());
+        // A held lease is renewed locally.
+        Assert.assertTrue(mZookeeperConnector.tryAcquireLease(LEASE_PATH));
+
+        Mockito.verify(mZookeeper).create(Mockito.eq("/secor"), Mockito.any(byte[].class),
+            Mockito.anyListOf(ACL.class), Mockito.eq(CreateMode.PERSISTENT));
+        Mockito.verify(mZookeeper).create(Mockito.eq("/secor/leases/some_topic"),
+            Mockito.any(byte[].class), Mockito.anyListOf(ACL.class),
+            Mockito.eq(CreateMode.PERSISTENT));
+        Mockito.verify(mZookeeper, Mockito.times(1)).create(Mockito.eq(LEASE_PATH),
+            Mockito.any(byte[].class), Mockito.anyListOf(ACL.class),
+            Mockito.eq(CreateMode.EPHEMERAL));
+        Mockito.verify(mZookeeper, Mockito.times(1)).exists(Mockito.eq(LEASE_PATH),
+            Mockito.any(Watcher.class));
+    }
+
+    @Test
+    public void testAcquireLeaseHeldByAnotherSession() throws Exception {
+        leaseNodeExists(SESSION_ID + 1);
+
+        Assert.assertFalse(mZookeeperConnector.tryAcquireLease(LEASE_PATH));
+        Assert.assertTrue(mZookeeperConnector.getLeasePaths().isEmpty());
+        Mockito.verify(mZookeeper, Mockito.never()).delete(Mockito.anyString(), Mockito.anyInt());
+    }
+
+    @Test
+    public void testAdoptLeaseOfOwnSession() throws Exception {
+        // E.g. the lease was dropped locally while disconnected but the session survived.
+        leaseNodeExists(SESSION_ID);
+
+        Assert.assertTrue(mZookeeperConnector.tryAcquireLease(LEASE_PATH));
+        Assert.assertEquals(Collections.singleton(LEASE_PATH),
+                            mZookeeperConnector.getLeasePaths());
+    }
+
+    @Test
+    public void testReleaseLease() throws Exception {
+        Mockito.when(mZookeeper.exists(Mockito.eq(LEASE_PATH), Mockito.any(Watcher.class)))
+            .thenReturn(new Stat());
+        Assert.assertTrue(mZookeeperConnector.tryAcquireLease(LEASE_PATH));
+
+        mZookeeperConnector.releaseLease(LEASE_PATH);
+        // Releasing a lease that is not held is a no-op.
+        mZookeeperConnector.releaseLease(LEASE_PATH);
+
+        Mockito.verify(mZookeeper, Mockito.times(1)).delete(LEASE_PATH, -1);
+        Assert.assertTrue(mZookeeperConnector.getLeasePaths().isEmpty());
+    }
+
+    @Test
+    public void testReleaseLeasesIdleSince() throws Exception {
+        Mockito.when(mZookeeper.exists(Mockito.eq(LEASE_PATH), Mockito.any(Watcher.class)))
+            .thenReturn(new Stat());
+        Assert.assertTrue(mZookeeperConnector.tryAcquireLease(LEASE_PATH));
+
+        mZookeeperConnector.releaseLeasesIdleSince(System.currentTimeMillis() - 60000L);
+        Mockito.verify(mZookeeper, Mockito.never()).delete(Mockito.anyString(), Mockito.anyInt());
+
+        mZookeeperConnector.releaseLeasesIdleSince(System.currentTimeMillis() + 1L);
+        Mockito.verify(mZookeeper).delete(LEASE_PATH, -1);
+        Assert.assertTrue(mZookeeperConnector.getLeasePaths().isEmpty());
+    }
+
+    private static final String OFFSET_PATH = "/consumers/secor_cg/offsets/some_topic/";
+
+    private void setOffsetConfig() {
+        PropertiesConfiguration properties = new PropertiesConfiguration();
+        properties.setProperty("kafka.zookeeper.path", "/");
+        properties.setProperty("secor.kafka.group", "secor_cg");
+        mZookeeperConnector.setConfig(new SecorConfig(properties));
+    }
+
+    private Map<TopicPartition, Long> readCommittedOffsets() throws Exception {
+        setOffsetConfig();
+        // Partition 0 has an offset node at version 3, partition 1 has none.
+        Mockito.when(mZookeeper.getData(Mockito.eq(OFFSET_PATH + "0"), Mockito.eq(false),
+                Mockito.any(Stat.class))).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) {
+                ((Stat) invocation.getArguments()[2]).setVersion(3);
+                return "11".getBytes();
+            }
+        });
+        Mockito.when(mZookeeper.getData(Mockito.eq(OFFSET_PATH + "1"), Mockito.eq(false),
+                Mockito.any(Stat.class)))
+            .thenThrow(new KeeperException.NoNodeException(OFFSET_PATH + "1"));
+        TopicPartition topicPartition0 = new TopicPartition("some_topic", 0);
+        TopicPartition topicPartition1 = new TopicPartition("some_topic", 1);
+        Assert.assertEquals(11L, mZookeeperConnector.getCommittedOffsetCount(topicPartition0));
+        Assert.assertEquals(-1L, mZookeeperConnector.getCommittedOffsetCount(topicPartition1));
+
+        Map<TopicPartition, Long> counts = new LinkedHashMap<TopicPartition, Long>();
+        counts.put(topicPartition0, 21L);
+        counts.put(topicPartition1, 5L);
+        return counts;
+    }
+
+    @Test
+    public void testSetCommittedOffsetCountsInTransaction() throws Exception {
+        Map<TopicPartition, Long> counts = readCommittedOffsets();
+        Stat stat = new Stat();
+        stat.setVersion(4);
+        Mockito.when(mZookeeper.multi(Mockito.anyListOf(Op.class))).thenReturn(
+            Arrays.<OpResult>asList(new OpResult.SetDataResult(stat),
+                                    new OpResult.CreateResult(OFFSET_PATH + "1")));
+
+        Assert.assertEquals(counts.keySet(), mZookeeperConnector.setCommittedOffsetCounts(counts));
+
+        ArgumentCaptor<List> ops = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(mZookeeper).multi(ops.capture());
+        Assert.assertEquals(2, ops.getValue().size());
+        Op setData = (Op) ops.getValue().get(0);
+        Assert.assertEquals(ZooDefs.OpCode.setData, setData.getType());
+        Assert.assertEquals(OFFSET_PATH + "0", setData.getPath());
+        SetDataRequest request = (SetDataRequest) setData.toRequestRecord();
+        Assert.assertEquals(3, request.getVersion());
+        Assert.assertEquals("21", new String(request.getData()));
+        Op create = (Op) ops.getValue().get(1);
+        Assert.assertEquals(ZooDefs.OpCode.create, create.getType());
+        Assert.assertEquals(OFFSET_PATH + "1", create.getPath());
+        Mockito.verify(mZookeeper, Mockito.never()).setData(Mockito.anyString(),
+            Mockito.any(byte[].class), Mockito.anyInt());
+    }
+
+    @Test
+    public void testCommitOneByOneKeepsVersionChecks() throws Exception {
+        Map<TopicPartition, Long> counts = readCommittedOffsets();
+        Mockito.when(mZookeeper.multi(Mockito.anyListOf(Op.class)))
+            .thenThrow(new KeeperException.BadVersionException(OFFSET_PATH + "0"));
+        // Someone else committed partition 0 since it was read.
+        Mockito.when(mZookeeper.setData(Mockito.eq(OFFSET_PATH + "0"), Mockito.any(byte[].class),
+                Mockito.eq(3))).thenThrow(new KeeperException.BadVersionException(
+                    OFFSET_PATH + "0"));
+
+        Assert.assertEquals(Collections.singleton(new TopicPartition("some_topic", 1)),
+                            mZookeeperConnector.setCommittedOffsetCounts(counts));
+
+        Mockito.verify(mZookeeper).setData(Mockito.eq(OFFSET_PATH + "0"),
+            Mockito.any(byte[].class), Mockito.eq(3));
+        Mockito.verify(mZookeeper, Mockito.never()).setData(Mockito.anyString(),
+            Mockito.any(byte[].class), Mockito.eq(-1));
+        Mockito.verify(mZookeeper).create(Mockito.eq(OFFSET_PATH + "1"),
+            Mockito.any(byte[].class), Mockito.anyListOf(ACL.class),
+            Mockito.eq(CreateMode.PERSISTENT));
+    }
+
+    private Watcher captureOffsetWatcher() throws Exception {
+        ArgumentCaptor<Watcher> watcher = ArgumentCaptor.forClass(Watcher.class);
+        Mockito.verify(mZookeeper, Mockito.atLeastOnce()).getData(Mockito.eq(OFFSET_PATH + "0"),
+            watcher.capture(), Mockito.any(Stat.class));
+        return watcher.getValue();
+    }
+
+    @Test
+    public void testCachedOffsetCountInvalidatedByWatch() throws Exception {
+        setOffsetConfig();
+        TopicPartition topicPartition = new TopicPartition("some_topic", 0);
+        Mockito.when(mZookeeper.getData(Mockito.eq(OFFSET_PATH + "0"), Mockito.any(Watcher.class),
+                Mockito.any(Stat.class))).thenReturn("11".getBytes(), "21".getBytes());
+
+        Assert.assertEquals(11L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        Assert.assertEquals(11L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        Mockito.verify(mZookeeper, Mockito.times(1)).getData(Mockito.eq(OFFSET_PATH + "0"),
+            Mockito.any(Watcher.class), Mockito.any(Stat.class));
+
+        captureOffsetWatcher().process(new WatchedEvent(Watcher.Event.EventType.NodeDataChanged,
+            Watcher.Event.KeeperState.SyncConnected, OFFSET_PATH + "0"));
+
+        Assert.assertEquals(21L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        Mockito.verify(mZookeeper, Mockito.times(2)).getData(Mockito.eq(OFFSET_PATH + "0"),
+            Mockito.any(Watcher.class), Mockito.any(Stat.class));
+    }
+
+    @Test
+    public void testCachedOffsetCountNotCachedWhenInvalidatedDuringRead() throws Exception {
+        setOffsetConfig();
+        TopicPartition topicPartition = new TopicPartition("some_topic", 0);
+        Mockito.when(mZookeeper.getData(Mockito.eq(OFFSET_PATH + "0"), Mockito.any(Watcher.class),
+                Mockito.any(Stat.class))).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) {
+                // The offset changes before the read returns.
+                ((Watcher) invocation.getArguments()[1]).process(new WatchedEvent(
+                    Watcher.Event.EventType.NodeDataChanged,
+                    Watcher.Event.KeeperState.SyncConnected, OFFSET_PATH + "0"));
+                return "11".getBytes();
+            }
+        });
+
+        Assert.assertEquals(11L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        Assert.assertEquals(11L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        Mockito.verify(mZookeeper, Mockito.times(2)).getData(Mockito.eq(OFFSET_PATH + "0"),
+            Mockito.any(Watcher.class), Mockito.any(Stat.class));
+    }
+
+    @Test
+    public void testCachedOffsetCountOfMissingNode() throws Exception {
+        setOffsetConfig();
+        TopicPartition topicPartition = new TopicPartition("some_topic", 0);
+        Mockito.when(mZookeeper.getData(Mockito.eq(OFFSET_PATH + "0"), Mockito.any(Watcher.class),
+                Mockito.any(Stat.class)))
+            .thenThrow(new KeeperException.NoNodeException(OFFSET_PATH + "0"));
+
+        Assert.assertEquals(-1L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        Assert.assertEquals(-1L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        // The node is watched for creation and the missing offset is cached until it appears.
+        Mockito.verify(mZookeeper, Mockito.times(1)).exists(Mockito.eq(OFFSET_PATH + "0"),
+            Mockito.any(Watcher.class));
+
+        // A session expiry drops the cache since watch events may have been missed.
+        captureOffsetWatcher().process(new WatchedEvent(Watcher.Event.EventType.None,
+            Watcher.Event.KeeperState.Expired, null));
+        // The node was created between the read and the watch.
+        Mockito.when(mZookeeper.exists(Mockito.eq(OFFSET_PATH + "0"), Mockito.any(Watcher.class)))
+            .thenReturn(new Stat());
+        Mockito.when(mZookeeper.getData(Mockito.eq(OFFSET_PATH + "0"), Mockito.eq(false),
+                Mockito.any(Stat.class))).thenReturn("5".getBytes());
+
+        Assert.assertEquals(5L, mZookeeperConnector.getCachedCommittedOffsetCount(topicPartition));
+        Mockito.verify(mZookeeper, Mockito.times(2)).exists(Mockito.eq(OFFSET_PATH + "0"),
+            Mockito.any(Watcher.class));
     }
 
     @Test
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.consumer;
+
+import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.message.Message;
+import com.pinterest.secor.reader.MessageReader;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ConsumerPipelineTest tests ordering and termination of the consumer pipeline.
+ */
+public class ConsumerPipelineTest extends TestCase {
+    private static final int NUM_MESSAGES = 1000;
+
+    private SecorConfig mConfig;
+    private MessageReader mMessageReader;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mConfig = Mockito.mock(SecorConfig.class);
+        Mockito.when(mConfig.getMessageParserClass()).thenReturn(
+                "com.pinterest.secor.parser.OffsetMessageParser");
+        Mockito.when(mConfig.getMessageTransformerClass()).thenReturn(
+                "com.pinterest.secor.transformer.IdentityMessageTransformer");
+        Mockito.when(mConfig.getOffsetsPerPartition()).thenReturn(100L);
+        Mockito.when(mConfig.getConsumerPipelineParserThreads()).thenReturn(4);
+        Mockito.when(mConfig.getConsumerPipelineQueueSize()).thenReturn(16);
+
+        mMessageReader = Mockito.mock(MessageReader.class);
+        Mockito.when(mMessageReader.hasNext()).thenAnswer(new Answer<Boolean>() {
+            private int mCalls = 0;
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return mCalls++ < NUM_MESSAGES;
+            }
+        });
+        Mockito.when(mMessageReader.readBatch(Mockito.anyInt(), Mockito.anyLong())).thenAnswer(
+                new Answer<List<Message>>() {
+            private long mOffset = 0;
+
+            @Override
+            public List<Message> answer(InvocationOnMock invocation) {
+                return Collections.singletonList(new Message("some_topic", (int) (mOffset % 3),
+                        mOffset++, null, new byte[0]));
+            }
+        });
+    }
+
+    public void testResultsArriveInReadOrder() throws Exception {
+        ConsumerPipeline pipeline = new ConsumerPipeline(mConfig, mMessageReader);
+        pipeline.start();
+        long expectedOffset = 0;
+        while (!pipeline.isDone()) {
+            ConsumerPipeline.ParseResult result = pipeline.poll(1000);
+            if (result == null) {
+                continue;
+            }
+            assertNull(result.getError());
+            assertEquals(expectedOffset, result.getRawMessage().getOffset());
+            assertEquals(expectedOffset, result.getParsedMessage().getOffset());
+            assertEquals("offset=" + (expectedOffset / 100) * 100,
+                    result.getParsedMessage().getPartitions()[0]);
+            expectedOffset++;
+        }
+        pipeline.shutdown();
+        assertEquals(NUM_MESSAGES, expectedOffset);
+    }
+}
@@ -15,4 +15,17 @@ public class MessageTest {
 	// NullPointerException
     }
 
+    @Test
+    public void testReset() {
+	ParsedMessage message = new ParsedMessage("testTopic", 0, 123, null, null,
+		new String[]{"a"});
+	message.reset("otherTopic", 1, 456, null, null);
+
+	assertEquals("otherTopic", message.getTopic());
+	assertEquals(1, message.getKafkaPartition());
+	assertEquals(456, message.getOffset());
+	assertEquals(0, message.getKafkaKey().length);
+	assertEquals(0, message.getPayload().length);
+    }
+
 }
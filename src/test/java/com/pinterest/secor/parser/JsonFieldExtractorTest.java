@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.parser;
+
+import junit.framework.TestCase;
+
+/**
+ * JsonFieldExtractorTest tests scanning of JSON documents for timestamp fields.
+ */
+public class JsonFieldExtractorTest extends TestCase {
+    private static int find(JsonFieldExtractor extractor, String json) throws Exception {
+        return extractor.find(json.getBytes("UTF-8"));
+    }
+
+    public void testTopLevelField() throws Exception {
+        JsonFieldExtractor extractor = new JsonFieldExtractor(new String[]{"timestamp"});
+
+        assertEquals(JsonFieldExtractor.NUMBER, find(extractor,
+                "{\"id\": [1, {\"timestamp\": 2}], \"s\": \"a\\\"}\", \"timestamp\": 1405911096}"));
+        assertEquals("1405911096", extractor.getValue());
+
+        assertEquals(JsonFieldExtractor.STRING, find(extractor,
+                "{ \"timestamp\" : \"2014-07-21T02:51:36Z\", \"x\": garbage"));
+        assertEquals("2014-07-21T02:51:36Z", extractor.getValue());
+
+        assertEquals(JsonFieldExtractor.NOT_FOUND, find(extractor, "{\"ts\": 1, \"t\": null}"));
+        assertEquals(JsonFieldExtractor.NOT_FOUND, find(extractor, "{\"timestamp\": null}"));
+    }
+
+    public void testNestedField() throws Exception {
+        JsonFieldExtractor extractor =
+            new JsonFieldExtractor(new String[]{"meta_data", "created"});
+
+        assertEquals(JsonFieldExtractor.STRING, find(extractor,
+                "{\"created\": 1, \"meta_data\": {\"x\": {\"created\": 2}, " +
+                "\"created\": \"1405911096123\"}}"));
+        assertEquals("1405911096123", extractor.getValue());
+
+        assertEquals(JsonFieldExtractor.NOT_FOUND, find(extractor,
+                "{\"meta_data\": {\"x\": 1}, \"created\": 2}"));
+    }
+
+    public void testUnsupportedInput() throws Exception {
+        JsonFieldExtractor extractor = new JsonFieldExtractor(new String[]{"timestamp"});
+
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "not json"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "[1, 2]"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"a\": 1"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"time\\u0073tamp\": 1}"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"timestamp\": \"a\\nb\"}"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"timestamp\": true}"));
+    }
+
+    public void testMalformedNumber() throws Exception {
+        JsonFieldExtractor extractor = new JsonFieldExtractor(new String[]{"timestamp"});
+
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"timestamp\": -}"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"timestamp\": 1-2}"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"timestamp\": 1.}"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"timestamp\": 1e}"));
+        assertEquals(JsonFieldExtractor.UNSUPPORTED, find(extractor, "{\"timestamp\": 01}"));
+
+        assertEquals(JsonFieldExtractor.NUMBER, find(extractor, "{\"timestamp\": -1.5E+3}"));
+        assertEquals("-1.5E+3", extractor.getValue());
+        assertEquals(JsonFieldExtractor.NUMBER, find(extractor, "{\"timestamp\": 0}"));
+        assertEquals("0", extractor.getValue());
+    }
+}
@@ -67,6 +67,24 @@ public class JsonMessageParserTest extends TestCase {
         mMessageWithNestedTimestamp = new Message("test", 0, 0, null, messageWithNestedTimestamp);
     }
 
+    @Test
+    public void testExtractPartitionsAcrossDstTransitions() throws Exception {
+        Mockito.when(mConfig.getTimeZone()).thenReturn(TimeZone.getTimeZone("America/Los_Angeles"));
+        Mockito.when(mConfig.getBoolean("partitioner.granularity.hour", false)).thenReturn(true);
+        JsonMessageParser jsonMessageParser = new JsonMessageParser(mConfig);
+
+        // 2014-03-09 and 2014-11-02 are DST transition days in America/Los_Angeles.
+        long[] transitionDayStarts = {1394323200000L, 1414886400000L};
+        for (long start : transitionDayStarts) {
+            for (long millis = start; millis < start + 24 * 3600 * 1000L; millis += 7 * 60 * 1000L) {
+                Message message = new Message("test", 0, 0, null,
+                        ("{\"timestamp\":\"" + millis + "\"}").getBytes("UTF-8"));
+                assertTrue(Arrays.equals(jsonMessageParser.generatePartitions(millis, true, false),
+                        jsonMessageParser.extractPartitions(message)));
+            }
+        }
+    }
+
     @Test
     public void testExtractTimestampMillis() throws Exception {
         JsonMessageParser jsonMessageParser = new JsonMessageParser(mConfig);
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.parser;
+
+import com.pinterest.secor.common.KafkaClient;
+import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.common.TopicPartition;
+import com.pinterest.secor.common.ZookeeperConnector;
+import com.pinterest.secor.message.Message;
+import junit.framework.TestCase;
+import org.mockito.AdditionalMatchers;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PartitionFinalizerTest tests the order in which partitions are finalized.
+ */
+public class PartitionFinalizerTest extends TestCase {
+    private static final String[] TOPICS = {"topic_a", "topic_b"};
+
+    private File mPrefix;
+    private List<String> mEvents;
+    private PartitionFinalizer mFinalizer;
+
+    private class TestPartitionFinalizer extends PartitionFinalizer {
+        public TestPartitionFinalizer(SecorConfig config, KafkaClient kafkaClient,
+                                      ZookeeperConnector zookeeperConnector,
+                                      TimestampedMessageParser messageParser,
+                                      HiveMetastoreClient hiveMetastoreClient) throws Exception {
+            super(config, kafkaClient, zookeeperConnector, messageParser, hiveMetastoreClient);
+        }
+
+        @Override
+        protected void touchSuccessFile(String successFilePath) {
+            String relativePath = successFilePath.substring(mPrefix.getPath().length() + 1);
+            mEvents.add("success " + relativePath);
+        }
+    }
+
+    private static String[] partitions(String day) {
+        return new String[]{"dt=2016-04-" + day};
+    }
+
+    private void createDir(String topic, String day, boolean finalized) throws Exception {
+        File dir = new File(mPrefix, topic + "/dt=2016-04-" + day);
+        dir.mkdirs();
+        new File(dir, "1_0_00000000000000000100").createNewFile();
+        if (finalized) {
+            new File(dir, "_SUCCESS").createNewFile();
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mPrefix = File.createTempFile("secor_finalizer", "");
+        mPrefix.delete();
+        mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+        SecorConfig config = Mockito.mock(SecorConfig.class);
+        Mockito.when(config.getCloudService()).thenReturn("S3");
+        Mockito.when(config.getS3Prefix()).thenReturn(mPrefix.getPath());
+        Mockito.when(config.getGeneration()).thenReturn(1);
+        Mockito.when(config.getFileExtension()).thenReturn("");
+        Mockito.when(config.getKafkaTopicFilter()).thenReturn(".*");
+        Mockito.when(config.getFinalizerLookbackPeriods()).thenReturn(4);
+        Mockito.when(config.getFinalizerTopicThreads()).thenReturn(2);
+        Mockito.when(config.getFinalizerIoThreads()).thenReturn(1);
+        Mockito.when(config.getHivePrefix()).thenReturn("hive_");
+
+        ZookeeperConnector zookeeperConnector = Mockito.mock(ZookeeperConnector.class);
+        Mockito.when(zookeeperConnector.getCommittedOffsetTopics()).thenReturn(
+            Arrays.asList(TOPICS));
+
+        KafkaClient kafkaClient = Mockito.mock(KafkaClient.class);
+        Map<String, Integer> numPartitions = new HashMap<String, Integer>();
+        Map<TopicPartition, Message> messages = new HashMap<TopicPartition, Message>();
+        for (String topic : TOPICS) {
+            numPartitions.put(topic, 1);
+            messages.put(new TopicPartition(topic, 0),
+                         new Message(topic, 0, 100, null, "some_payload".getBytes()));
+        }
+        Mockito.when(kafkaClient.getNumPartitions(Mockito.anyCollection())).thenReturn(
+            numPartitions);
+        Mockito.when(kafkaClient.getLastMessages(Mockito.anyList())).thenReturn(messages);
+        Mockito.when(kafkaClient.getCommittedMessages(Mockito.anyList())).thenReturn(messages);
+
+        TimestampedMessageParser messageParser = Mockito.mock(TimestampedMessageParser.class);
+        Mockito.when(messageParser.getFinalizedUptoPartitions(Mockito.anyList(),
+                Mockito.anyList())).thenReturn(partitions("23"));
+        String[] days = {"23", "22", "21", "20", "19"};
+        for (int i = 0; i + 1 < days.length; i++) {
+            Mockito.when(messageParser.getPreviousPartitions(
+                AdditionalMatchers.aryEq(partitions(days[i])))).thenReturn(
+                partitions(days[i + 1]));
+        }
+
+        HiveMetastoreClient hiveMetastoreClient = new HiveMetastoreClient() {
+            @Override
+            public void addPartitions(String table, List<String> partitions) {
+                mEvents.add("hive " + table + " " + partitions);
+            }
+        };
+
+        mFinalizer = new TestPartitionFinalizer(config, kafkaClient, zookeeperConnector,
+                                                messageParser, hiveMetastoreClient);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mFinalizer.close();
+        org.apache.hadoop.fs.FileUtil.fullyDelete(mPrefix);
+        super.tearDown();
+    }
+
+    private List<String> getEvents(String topic) {
+        List<String> events = new ArrayList<String>();
+        synchronized (mEvents) {
+            for (String event : mEvents) {
+                if (event.contains(topic)) {
+                    events.add(event);
+                }
+            }
+        }
+        return events;
+    }
+
+    public void testFinalizesOldestPartitionsFirst() throws Exception {
+        // topic_a stops at the finalized partition of day 20, topic_b has no finalized partition
+        // in the lookback window and skips the missing day 21.
+        createDir("topic_a", "20", true);
+        createDir("topic_a", "21", false);
+        createDir("topic_a", "22", false);
+        createDir("topic_b", "19", false);
+        createDir("topic_b", "20", false);
+        createDir("topic_b", "22", false);
+
+        mFinalizer.finalizePartitions();
+
+        assertEquals(Arrays.asList(
+                "hive hive_topic_a [dt='2016-04-21', dt='2016-04-22']",
+                "success topic_a/dt=2016-04-21/_SUCCESS",
+                "success topic_a/dt=2016-04-22/_SUCCESS"),
+            getEvents("topic_a"));
+        assertEquals(Arrays.asList(
+                "hive hive_topic_b [dt='2016-04-19', dt='2016-04-20', dt='2016-04-22']",
+                "success topic_b/dt=2016-04-19/_SUCCESS",
+                "success topic_b/dt=2016-04-20/_SUCCESS",
+                "success topic_b/dt=2016-04-22/_SUCCESS"),
+            getEvents("topic_b"));
+    }
+
+    public void testNothingToFinalize() throws Exception {
+        for (String topic : TOPICS) {
+            createDir(topic, "22", true);
+        }
+
+        mFinalizer.finalizePartitions();
+
+        assertTrue(mEvents.isEmpty());
+    }
+}
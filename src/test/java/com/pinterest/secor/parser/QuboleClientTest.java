@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.parser;
+
+import com.pinterest.secor.common.SecorConfig;
+import junit.framework.TestCase;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * QuboleClientTest tests building and polling of partition statements.
+ */
+public class QuboleClientTest extends TestCase {
+    private static class TestQuboleClient extends QuboleClient {
+        private final List<String> mQueries = new ArrayList<String>();
+        private final String mStatus;
+
+        public TestQuboleClient(SecorConfig config, String status) {
+            super(config);
+            mStatus = status;
+        }
+
+        @Override
+        protected int query(String query) {
+            mQueries.add(query);
+            return mQueries.size();
+        }
+
+        @Override
+        protected Map getCommand(int commandId) {
+            Map<String, Object> response = new HashMap<String, Object>();
+            response.put("status", mStatus);
+            return response;
+        }
+    }
+
+    private static SecorConfig createConfig(int partitionsPerStatement) {
+        SecorConfig config = Mockito.mock(SecorConfig.class);
+        Mockito.when(config.getHivePartitionsPerStatement()).thenReturn(partitionsPerStatement);
+        return config;
+    }
+
+    public void testAddsPartitionsInOneStatement() throws Exception {
+        TestQuboleClient client = new TestQuboleClient(createConfig(100), "done");
+
+        client.addPartitions("some_table", Arrays.asList("dt='2014-10-01'", "dt='2014-10-02'"));
+
+        assertEquals(Arrays.asList("ALTER TABLE some_table ADD IF NOT EXISTS " +
+                "PARTITION (dt='2014-10-01') PARTITION (dt='2014-10-02')"), client.mQueries);
+    }
+
+    public void testChunksPartitionsPerStatement() throws Exception {
+        TestQuboleClient client = new TestQuboleClient(createConfig(2), "done");
+
+        client.addPartitions("some_table", Arrays.asList("dt='1'", "dt='2'", "dt='3'"));
+
+        assertEquals(Arrays.asList(
+                "ALTER TABLE some_table ADD IF NOT EXISTS PARTITION (dt='1') PARTITION (dt='2')",
+                "ALTER TABLE some_table ADD IF NOT EXISTS PARTITION (dt='3')"), client.mQueries);
+    }
+
+    public void testFailedCommand() throws Exception {
+        TestQuboleClient client = new TestQuboleClient(createConfig(100), "cancelled");
+
+        try {
+            client.addPartitions("some_table", Arrays.asList("dt='1'"));
+            fail("expected cancelled command to fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("cancelled"));
+        }
+    }
+}
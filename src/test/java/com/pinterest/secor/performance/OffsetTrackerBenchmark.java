@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.performance;
+
+import com.pinterest.secor.common.OffsetTracker;
+import com.pinterest.secor.common.TopicPartition;
+
+import java.util.HashMap;
+
+/**
+ * Micro benchmark of the offset lookups performed for every consumed message (reader skip check,
+ * writer offset adjustment, and file offset lookup), comparing the id-based offset tracker with
+ * the HashMap-based tracker it replaced.
+ *
+ * Run:
+ *     $ mvn package
+ *     $ cd target
+ *     $ java -cp "secor-0.1-SNAPSHOT-tests.jar:lib/*:secor-0.1-SNAPSHOT.jar" \
+ *         com.pinterest.secor.performance.OffsetTrackerBenchmark [num_messages]
+ */
+public class OffsetTrackerBenchmark {
+    private static final int[] NUM_TOPIC_PARTITIONS = {10, 100, 1000, 10000};
+    // Messages are delivered in chunks coming from a single topic partition.
+    private static final int CHUNK_SIZE = 100;
+
+    // The implementation of OffsetTracker before it switched to primitive arrays.
+    private static class HashMapOffsetTracker {
+        private HashMap<TopicPartition, Long> mLastSeenOffset =
+            new HashMap<TopicPartition, Long>();
+        private HashMap<TopicPartition, Long> mFirstSeendOffset =
+            new HashMap<TopicPartition, Long>();
+        private HashMap<TopicPartition, Long> mCommittedOffsetCount =
+            new HashMap<TopicPartition, Long>();
+
+        public long getLastSeenOffset(TopicPartition topicPartition) {
+            Long offset = mLastSeenOffset.get(topicPartition);
+            return offset == null ? -2 : offset;
+        }
+
+        public void setLastSeenOffset(TopicPartition topicPartition, long offset) {
+            mLastSeenOffset.put(topicPartition, offset);
+            if (mFirstSeendOffset.get(topicPartition) == null) {
+                mFirstSeendOffset.put(topicPartition, offset);
+            }
+        }
+
+        public long getTrueCommittedOffsetCount(TopicPartition topicPartition) {
+            Long committedOffsetCount = mCommittedOffsetCount.get(topicPartition);
+            return committedOffsetCount == null ? -1L : committedOffsetCount;
+        }
+
+        public long getAdjustedCommittedOffsetCount(TopicPartition topicPartition) {
+            long trueCommittedOffsetCount = getTrueCommittedOffsetCount(topicPartition);
+            if (trueCommittedOffsetCount == -1L) {
+                Long firstSeenOffset = mFirstSeendOffset.get(topicPartition);
+                if (firstSeenOffset != null) {
+                    return firstSeenOffset;
+                }
+            }
+            return trueCommittedOffsetCount;
+        }
+    }
+
+    private static String[] createTopics() {
+        String[] topics = new String[10];
+        for (int i = 0; i < topics.length; ++i) {
+            topics[i] = "topic" + i;
+        }
+        return topics;
+    }
+
+    private static long runHashMap(String[] topics, int numTopicPartitions, int numMessages) {
+        HashMapOffsetTracker tracker = new HashMapOffsetTracker();
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numMessages; ++i) {
+            int topicPartition = (i / CHUNK_SIZE) % numTopicPartitions;
+            String topic = topics[topicPartition % topics.length];
+            int partition = topicPartition / topics.length;
+            checksum += tracker.getTrueCommittedOffsetCount(new TopicPartition(topic, partition));
+            TopicPartition adjusted = new TopicPartition(topic, partition);
+            checksum += tracker.getLastSeenOffset(adjusted);
+            tracker.setLastSeenOffset(adjusted, i);
+            checksum += tracker.getAdjustedCommittedOffsetCount(
+                new TopicPartition(topic, partition));
+        }
+        long elapsed = System.nanoTime() - start;
+        return checksum == 42 ? -1 : elapsed;
+    }
+
+    private static long runArrays(String[] topics, int numTopicPartitions, int numMessages) {
+        OffsetTracker tracker = new OffsetTracker();
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < numMessages; ++i) {
+            int topicPartition = (i / CHUNK_SIZE) % numTopicPartitions;
+            String topic = topics[topicPartition % topics.length];
+            int partition = topicPartition / topics.length;
+            int id = tracker.getTopicPartitionId(topic, partition);
+            checksum += tracker.getTrueCommittedOffsetCount(id);
+            id = tracker.getTopicPartitionId(topic, partition);
+            checksum += tracker.getLastSeenOffset(id);
+            // Keep offsets sequential to stay clear of the rebalance logging path.
+            tracker.setLastSeenOffset(id, tracker.getLastSeenOffset(id) + 1);
+            id = tracker.getTopicPartitionId(topic, partition);
+            checksum += tracker.getAdjustedCommittedOffsetCount(id);
+        }
+        long elapsed = System.nanoTime() - start;
+        return checksum == 42 ? -1 : elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        String[] topics = createTopics();
+        System.out.println("topic_partitions\tarrays_ns_per_msg\thash_map_ns_per_msg");
+        for (int count : NUM_TOPIC_PARTITIONS) {
+            // Warm up.
+            runArrays(topics, count, numMessages);
+            runHashMap(topics, count, numMessages);
+            long arraysNanos = runArrays(topics, count, numMessages);
+            long hashMapNanos = runHashMap(topics, count, numMessages);
+            System.out.println(count + "\t" + ((double) arraysNanos / numMessages) + "\t" +
+                               ((double) hashMapNanos / numMessages));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.performance;
+
+import com.pinterest.secor.common.TopicPartition;
+import com.pinterest.secor.reader.TopicPartitionAccessTracker;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Micro benchmark comparing the per-message cost of topic partition access tracking with the
+ * full-map sweep it replaced, for a growing number of topic partitions.
+ *
+ * Run:
+ *     $ mvn package
+ *     $ cd target
+ *     $ java -cp "secor-0.1-SNAPSHOT-tests.jar:lib/*:secor-0.1-SNAPSHOT.jar" \
+ *         com.pinterest.secor.performance.TopicPartitionAccessTrackerBenchmark [num_messages]
+ */
+public class TopicPartitionAccessTrackerBenchmark {
+    private static final int[] NUM_TOPIC_PARTITIONS = {10, 100, 1000, 10000};
+    private static final long FORGET_SECONDS = 600;
+
+    private static TopicPartition[] createTopicPartitions(int count) {
+        TopicPartition[] topicPartitions = new TopicPartition[count];
+        for (int i = 0; i < count; ++i) {
+            topicPartitions[i] = new TopicPartition("topic" + (i % 10), i / 10);
+        }
+        return topicPartitions;
+    }
+
+    private static long runTracker(TopicPartition[] topicPartitions, int numMessages) {
+        TopicPartitionAccessTracker tracker = new TopicPartitionAccessTracker(FORGET_SECONDS, 10);
+        long start = System.nanoTime();
+        for (int i = 0; i < numMessages; ++i) {
+            tracker.touch(topicPartitions[i % topicPartitions.length],
+                          System.currentTimeMillis() / 1000L);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // The algorithm used by MessageReader before the access tracker was introduced.
+    private static long runFullSweep(TopicPartition[] topicPartitions, int numMessages) {
+        HashMap<TopicPartition, Long> lastAccessTime = new HashMap<TopicPartition, Long>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numMessages; ++i) {
+            long now = System.currentTimeMillis() / 1000L;
+            lastAccessTime.put(topicPartitions[i % topicPartitions.length], now);
+            Iterator<Map.Entry<TopicPartition, Long>> iterator =
+                lastAccessTime.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().getValue() > FORGET_SECONDS) {
+                    iterator.remove();
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.println("topic_partitions\ttracker_ns_per_msg\tfull_sweep_ns_per_msg");
+        for (int count : NUM_TOPIC_PARTITIONS) {
+            TopicPartition[] topicPartitions = createTopicPartitions(count);
+            // Warm up.
+            runTracker(topicPartitions, numMessages);
+            long trackerNanos = runTracker(topicPartitions, numMessages);
+            // The full sweep is quadratic, keep its run short for large partition counts.
+            int fullSweepMessages = Math.max(1000, numMessages / count);
+            runFullSweep(topicPartitions, fullSweepMessages);
+            long fullSweepNanos = runFullSweep(topicPartitions, fullSweepMessages);
+            System.out.println(count + "\t" + (trackerNanos / numMessages) + "\t" +
+                               (fullSweepNanos / fullSweepMessages));
+        }
+    }
+}
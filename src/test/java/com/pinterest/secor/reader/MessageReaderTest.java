@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.reader;
+
+import com.pinterest.secor.common.OffsetTracker;
+import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.common.TopicPartition;
+import com.pinterest.secor.message.Message;
+import com.pinterest.secor.util.RateLimitUtil;
+
+import junit.framework.TestCase;
+
+import kafka.consumer.ConsumerIterator;
+import kafka.consumer.ConsumerTimeoutException;
+import kafka.message.MessageAndMetadata;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * MessageReaderTest tests filling read batches from a mocked Kafka iterator.
+ */
+public class MessageReaderTest extends TestCase {
+    private static final String TOPIC = "some_topic";
+    // Marks a poll of the iterator that times out.
+    private static final Object TIMEOUT = new Object();
+
+    private SecorConfig mConfig;
+    private OffsetTracker mOffsetTracker;
+    private LinkedList<Object> mEvents;
+    private ConsumerIterator<byte[], byte[]> mIterator;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        super.setUp();
+        mConfig = Mockito.mock(SecorConfig.class);
+        Mockito.when(mConfig.getConsumerTimeoutMs()).thenReturn(50);
+        Mockito.when(mConfig.getConsumerReadBatchSize()).thenReturn(10);
+        Mockito.when(mConfig.getConsumerReadBatchTimeoutMs()).thenReturn(10000L);
+        Mockito.when(mConfig.getMessagesPerSecond()).thenReturn(1000000);
+        Mockito.when(mConfig.getConsumerThreads()).thenReturn(1);
+        Mockito.when(mConfig.getTopicPartitionForgetSeconds()).thenReturn(3600);
+        Mockito.when(mConfig.getTopicPartitionSweepSeconds()).thenReturn(60);
+        RateLimitUtil.configure(mConfig);
+        mOffsetTracker = new OffsetTracker();
+
+        mEvents = new LinkedList<Object>();
+        mIterator = Mockito.mock(ConsumerIterator.class);
+        Mockito.when(mIterator.hasNext()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                if (mEvents.isEmpty() || mEvents.peek() == TIMEOUT) {
+                    mEvents.poll();
+                    throw new ConsumerTimeoutException();
+                }
+                return true;
+            }
+        });
+        Mockito.when(mIterator.next()).thenAnswer(new Answer<MessageAndMetadata<byte[], byte[]>>() {
+            @Override
+            public MessageAndMetadata<byte[], byte[]> answer(InvocationOnMock invocation) {
+                return (MessageAndMetadata<byte[], byte[]>) mEvents.poll();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addMessage(long offset) {
+        MessageAndMetadata<byte[], byte[]> message = Mockito.mock(MessageAndMetadata.class);
+        Mockito.when(message.topic()).thenReturn(TOPIC);
+        Mockito.when(message.partition()).thenReturn(0);
+        Mockito.when(message.offset()).thenReturn(offset);
+        Mockito.when(message.message()).thenReturn(new byte[0]);
+        mEvents.add(message);
+    }
+
+    private MessageReader createReader() throws Exception {
+        return new MessageReader(mConfig, mOffsetTracker, mIterator);
+    }
+
+    public void testReturnsPartialBatchWhenPollTimesOut() throws Exception {
+        addMessage(0);
+        addMessage(1);
+        mEvents.add(TIMEOUT);
+        addMessage(2);
+        MessageReader reader = createReader();
+
+        List<Message> batch = reader.readBatch(10, 10000);
+        assertEquals(2, batch.size());
+        assertEquals(1, batch.get(1).getOffset());
+
+        batch = reader.readBatch(10, 10000);
+        assertEquals(1, batch.size());
+        assertEquals(2, batch.get(0).getOffset());
+    }
+
+    public void testWaitsForFirstMessageUpToConsumerTimeout() throws Exception {
+        mEvents.add(TIMEOUT);
+        addMessage(0);
+        MessageReader reader = createReader();
+
+        assertEquals(1, reader.readBatch(10, 10000).size());
+
+        long startMillis = System.currentTimeMillis();
+        try {
+            reader.readBatch(10, 10000);
+            fail("reading without messages should time out");
+        } catch (ConsumerTimeoutException e) {
+        }
+        assertTrue(System.currentTimeMillis() - startMillis >= 50);
+    }
+
+    public void testSkipsCommittedMessages() throws Exception {
+        mOffsetTracker.setCommittedOffsetCount(new TopicPartition(TOPIC, 0), 2);
+        for (long offset = 0; offset < 4; ++offset) {
+            addMessage(offset);
+        }
+        MessageReader reader = createReader();
+
+        List<Message> batch = reader.readBatch(10, 10000);
+        assertEquals(2, batch.size());
+        assertEquals(2, batch.get(0).getOffset());
+        assertEquals(3, batch.get(1).getOffset());
+    }
+
+    public void testReusesBatchAndMessages() throws Exception {
+        Mockito.when(mConfig.getConsumerReuseMessages()).thenReturn(true);
+        addMessage(0);
+        mEvents.add(TIMEOUT);
+        addMessage(1);
+        MessageReader reader = createReader();
+
+        List<Message> batch = reader.readBatch(10, 10000);
+        Message message = batch.get(0);
+        assertEquals(0, message.getOffset());
+
+        assertSame(batch, reader.readBatch(10, 10000));
+        assertSame(message, batch.get(0));
+        assertEquals(1, message.getOffset());
+    }
+}
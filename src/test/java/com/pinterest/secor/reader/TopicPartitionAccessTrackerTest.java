@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.reader;
+
+import com.pinterest.secor.common.TopicPartition;
+
+import junit.framework.TestCase;
+
+/**
+ * TopicPartitionAccessTrackerTest tests expiry of topic partition access times.
+ */
+public class TopicPartitionAccessTrackerTest extends TestCase {
+    private static final TopicPartition TP0 = new TopicPartition("some_topic", 0);
+    private static final TopicPartition TP1 = new TopicPartition("some_topic", 1);
+    private static final TopicPartition TP2 = new TopicPartition("some_topic", 2);
+
+    public void testForgetsStaleTopicPartitionsOnSweep() throws Exception {
+        TopicPartitionAccessTracker tracker = new TopicPartitionAccessTracker(100, 1000);
+        tracker.touch(TP0, 1000);
+        tracker.touch(TP1, 1050);
+        tracker.touch(TP2, 1101);
+        // Nothing was swept since the sweep interval has not elapsed.
+        assertEquals(3, tracker.getTopicPartitions().size());
+
+        tracker.sweep(1101);
+        assertEquals(2, tracker.getTopicPartitions().size());
+        assertFalse(tracker.getTopicPartitions().contains(TP0));
+    }
+
+    public void testTouchRefreshesAccessTime() throws Exception {
+        TopicPartitionAccessTracker tracker = new TopicPartitionAccessTracker(100, 10);
+        tracker.touch(TP0, 1000);
+        tracker.touch(TP1, 1000);
+        tracker.touch(TP0, 1090);
+
+        tracker.sweep(1150);
+        assertEquals(1, tracker.getTopicPartitions().size());
+        assertTrue(tracker.getTopicPartitions().contains(TP0));
+    }
+
+    public void testTouchSweepsOncePerInterval() throws Exception {
+        TopicPartitionAccessTracker tracker = new TopicPartitionAccessTracker(5, 10);
+        tracker.touch(TP0, 1000);
+        tracker.touch(TP1, 1009);
+        // TP0 is stale but the next sweep is not due until 1010.
+        assertTrue(tracker.getTopicPartitions().contains(TP0));
+        tracker.touch(TP1, 1010);
+        assertFalse(tracker.getTopicPartitions().contains(TP0));
+        assertTrue(tracker.getTopicPartitions().contains(TP1));
+    }
+}
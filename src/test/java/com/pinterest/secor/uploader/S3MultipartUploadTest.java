@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * S3MultipartUploadTest tests splitting of a file into upload parts and resuming failed uploads.
+ */
+public class S3MultipartUploadTest extends TestCase {
+    private AmazonS3 mClient;
+    private ExecutorService mExecutor;
+    private File mFile;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mClient = Mockito.mock(AmazonS3.class);
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload_id");
+        Mockito.when(mClient.initiateMultipartUpload(
+            Mockito.any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+        mExecutor = Executors.newFixedThreadPool(2);
+        mFile = File.createTempFile("secor", ".log");
+        FileOutputStream stream = new FileOutputStream(mFile);
+        stream.write(new byte[10]);
+        stream.close();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mExecutor.shutdown();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private S3MultipartUpload createUpload() {
+        return new S3MultipartUpload(mClient,
+            new InitiateMultipartUploadRequest("some_bucket", "some_key"), null, mFile, 4, 2,
+            mExecutor);
+    }
+
+    // Fails the given number of first attempts to upload a part.
+    private void answerUploadPart(final int failedPartNumber, final int failures) {
+        final AtomicInteger attempts = new AtomicInteger();
+        Mockito.when(mClient.uploadPart(Mockito.any(UploadPartRequest.class))).thenAnswer(
+            new Answer<UploadPartResult>() {
+                @Override
+                public UploadPartResult answer(InvocationOnMock invocation) {
+                    UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                    if (request.getPartNumber() == failedPartNumber &&
+                            attempts.incrementAndGet() <= failures) {
+                        throw new AmazonClientException("part upload failed");
+                    }
+                    UploadPartResult result = new UploadPartResult();
+                    result.setPartNumber(request.getPartNumber());
+                    result.setETag("etag" + request.getPartNumber());
+                    return result;
+                }
+            });
+    }
+
+    private int countAttempts(int partNumber) {
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        Mockito.verify(mClient, Mockito.atLeastOnce()).uploadPart(parts.capture());
+        int attempts = 0;
+        for (UploadPartRequest part : parts.getAllValues()) {
+            if (part.getPartNumber() == partNumber) {
+                ++attempts;
+            }
+        }
+        return attempts;
+    }
+
+    public void testSplitsFileIntoParts() throws Exception {
+        answerUploadPart(-1, 0);
+
+        createUpload().call();
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        Mockito.verify(mClient, Mockito.times(3)).uploadPart(parts.capture());
+        long[] offsets = new long[4];
+        long[] sizes = new long[4];
+        for (UploadPartRequest part : parts.getAllValues()) {
+            assertEquals("upload_id", part.getUploadId());
+            offsets[part.getPartNumber()] = part.getFileOffset();
+            sizes[part.getPartNumber()] = part.getPartSize();
+            assertEquals(part.getPartNumber() == 3, part.isLastPart());
+        }
+        assertEquals(0, offsets[1]);
+        assertEquals(4, offsets[2]);
+        assertEquals(8, offsets[3]);
+        assertEquals(4, sizes[1]);
+        assertEquals(4, sizes[2]);
+        assertEquals(2, sizes[3]);
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+            ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(mClient).completeMultipartUpload(complete.capture());
+        List<PartETag> partETags = complete.getValue().getPartETags();
+        assertEquals(3, partETags.size());
+        for (int i = 0; i < partETags.size(); ++i) {
+            assertEquals(i + 1, partETags.get(i).getPartNumber());
+            assertEquals("etag" + (i + 1), partETags.get(i).getETag());
+        }
+        Mockito.verify(mClient, Mockito.never()).abortMultipartUpload(
+            Mockito.any(AbortMultipartUploadRequest.class));
+    }
+
+    public void testRetryResumesFailedParts() throws Exception {
+        // Both attempts of the first call fail.
+        answerUploadPart(2, 2);
+        S3MultipartUpload upload = createUpload();
+
+        try {
+            upload.call();
+            fail("upload of a failing part should fail");
+        } catch (AmazonClientException e) {
+        }
+        Mockito.verify(mClient, Mockito.never()).completeMultipartUpload(
+            Mockito.any(CompleteMultipartUploadRequest.class));
+        assertEquals(2, countAttempts(2));
+
+        upload.call();
+
+        // Only the failed part is sent again, to the same upload.
+        Mockito.verify(mClient, Mockito.times(1)).initiateMultipartUpload(
+            Mockito.any(InitiateMultipartUploadRequest.class));
+        assertEquals(1, countAttempts(1));
+        assertEquals(3, countAttempts(2));
+        assertEquals(1, countAttempts(3));
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+            ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(mClient).completeMultipartUpload(complete.capture());
+        assertEquals("upload_id", complete.getValue().getUploadId());
+        assertEquals(3, complete.getValue().getPartETags().size());
+        Mockito.verify(mClient, Mockito.never()).abortMultipartUpload(
+            Mockito.any(AbortMultipartUploadRequest.class));
+    }
+
+    public void testAbort() throws Exception {
+        answerUploadPart(2, Integer.MAX_VALUE);
+        S3MultipartUpload upload = createUpload();
+        try {
+            upload.call();
+            fail("upload of a failing part should fail");
+        } catch (AmazonClientException e) {
+        }
+
+        upload.abort();
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abort =
+            ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        Mockito.verify(mClient).abortMultipartUpload(abort.capture());
+        assertEquals("upload_id", abort.getValue().getUploadId());
+        try {
+            upload.call();
+            fail("aborted upload should not be resumed");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * S3StreamingUploadTest tests splitting of a growing file into upload parts.
+ */
+public class S3StreamingUploadTest extends TestCase {
+    private AmazonS3 mClient;
+    private ExecutorService mExecutor;
+    private File mFile;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mClient = Mockito.mock(AmazonS3.class);
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload_id");
+        Mockito.when(mClient.initiateMultipartUpload(
+            Mockito.any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+        Mockito.when(mClient.uploadPart(Mockito.any(UploadPartRequest.class))).thenAnswer(
+            new Answer<UploadPartResult>() {
+                @Override
+                public UploadPartResult answer(InvocationOnMock invocation) {
+                    UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                    UploadPartResult result = new UploadPartResult();
+                    result.setPartNumber(request.getPartNumber());
+                    result.setETag("etag" + request.getPartNumber());
+                    return result;
+                }
+            });
+        mExecutor = Executors.newSingleThreadExecutor();
+        mFile = File.createTempFile("secor", ".log");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mExecutor.shutdown();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private S3StreamingUpload createUpload() {
+        return new S3StreamingUpload(mClient,
+            new InitiateMultipartUploadRequest("some_bucket", "some_key"), null, mFile, 4,
+            mExecutor);
+    }
+
+    public void testUploadsPartsWhileFileGrows() throws Exception {
+        S3StreamingUpload upload = createUpload();
+        FileOutputStream stream = new FileOutputStream(mFile);
+        stream.write(new byte[10]);
+        stream.flush();
+        upload.uploadParts();
+        assertEquals(8, upload.getSubmittedBytes());
+        assertFalse(upload.isCompletable());
+
+        stream.write(new byte[3]);
+        stream.close();
+        upload.seal();
+        assertEquals(13, upload.getSubmittedBytes());
+        assertTrue(upload.isCompletable());
+        upload.toMultipartUpload(2).call();
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        Mockito.verify(mClient, Mockito.times(4)).uploadPart(parts.capture());
+        UploadPartRequest lastPart = parts.getAllValues().get(3);
+        assertEquals(12, lastPart.getFileOffset());
+        assertEquals(1, lastPart.getPartSize());
+        assertTrue(lastPart.isLastPart());
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+            ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(mClient).completeMultipartUpload(complete.capture());
+        assertEquals(4, complete.getValue().getPartETags().size());
+    }
+
+    public void testInitiatesUploadOffTheWritePath() throws Exception {
+        final CountDownLatch initiate = new CountDownLatch(1);
+        Mockito.when(mClient.initiateMultipartUpload(
+            Mockito.any(InitiateMultipartUploadRequest.class))).thenAnswer(
+            new Answer<InitiateMultipartUploadResult>() {
+                @Override
+                public InitiateMultipartUploadResult answer(InvocationOnMock invocation)
+                        throws Exception {
+                    initiate.await();
+                    InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+                    result.setUploadId("upload_id");
+                    return result;
+                }
+            });
+        S3StreamingUpload upload = createUpload();
+        FileOutputStream stream = new FileOutputStream(mFile);
+        stream.write(new byte[8]);
+        stream.close();
+        // Returns while the upload is still being initiated.
+        upload.uploadParts();
+        assertEquals(8, upload.getSubmittedBytes());
+
+        initiate.countDown();
+        upload.seal();
+        assertTrue(upload.isCompletable());
+        upload.toMultipartUpload(2).call();
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        Mockito.verify(mClient, Mockito.times(2)).uploadPart(parts.capture());
+        for (UploadPartRequest part : parts.getAllValues()) {
+            assertEquals("upload_id", part.getUploadId());
+        }
+    }
+
+    public void testFailedPartSentOnCompletion() throws Exception {
+        final AtomicBoolean failPart = new AtomicBoolean(true);
+        Mockito.when(mClient.uploadPart(Mockito.any(UploadPartRequest.class))).thenAnswer(
+            new Answer<UploadPartResult>() {
+                @Override
+                public UploadPartResult answer(InvocationOnMock invocation) {
+                    UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+                    if (request.getPartNumber() == 2 && failPart.getAndSet(false)) {
+                        throw new AmazonClientException("part upload failed");
+                    }
+                    UploadPartResult result = new UploadPartResult();
+                    result.setPartNumber(request.getPartNumber());
+                    result.setETag("etag" + request.getPartNumber());
+                    return result;
+                }
+            });
+        S3StreamingUpload upload = createUpload();
+        FileOutputStream stream = new FileOutputStream(mFile);
+        stream.write(new byte[8]);
+        stream.flush();
+        upload.uploadParts();
+        stream.write(new byte[3]);
+        stream.close();
+        upload.seal();
+        assertTrue(upload.isCompletable());
+
+        upload.toMultipartUpload(2).call();
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        Mockito.verify(mClient, Mockito.atLeastOnce()).uploadPart(parts.capture());
+        int[] attempts = new int[4];
+        for (UploadPartRequest part : parts.getAllValues()) {
+            assertEquals("upload_id", part.getUploadId());
+            attempts[part.getPartNumber()]++;
+        }
+        assertEquals(1, attempts[1]);
+        assertEquals(2, attempts[2]);
+        assertEquals(1, attempts[3]);
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+            ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        Mockito.verify(mClient).completeMultipartUpload(complete.capture());
+        assertEquals(3, complete.getValue().getPartETags().size());
+        Mockito.verify(mClient, Mockito.times(1)).initiateMultipartUpload(
+            Mockito.any(InitiateMultipartUploadRequest.class));
+    }
+
+    public void testSmallFileIsNotStreamed() throws Exception {
+        S3StreamingUpload upload = createUpload();
+        FileOutputStream stream = new FileOutputStream(mFile);
+        stream.write(new byte[3]);
+        stream.close();
+        upload.uploadParts();
+        upload.seal();
+
+        assertFalse(upload.isCompletable());
+        Mockito.verify(mClient, Mockito.never()).initiateMultipartUpload(
+            Mockito.any(InitiateMultipartUploadRequest.class));
+    }
+}
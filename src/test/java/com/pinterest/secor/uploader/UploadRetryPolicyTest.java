@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * UploadRetryPolicyTest tests backoff, retries, and the circuit breaker of the upload retry
+ * policy.
+ */
+public class UploadRetryPolicyTest extends TestCase {
+    private static class TestRetryPolicy extends UploadRetryPolicy {
+        private long mNow = 1000000;
+        private final List<Long> mSleeps = new ArrayList<Long>();
+
+        public TestRetryPolicy(int maxAttempts, int breakerFailures) {
+            super(maxAttempts, 100, 1000, breakerFailures, 60000);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        protected void sleep(long millis) {
+            mSleeps.add(millis);
+        }
+    }
+
+    private static Callable<String> failingOperation(final int failures) {
+        return new Callable<String>() {
+            private int mCalls;
+
+            @Override
+            public String call() throws Exception {
+                if (mCalls++ < failures) {
+                    throw new IOException("failure " + mCalls);
+                }
+                return "done";
+            }
+        };
+    }
+
+    public void testBackoffGrowsUpToMax() throws Exception {
+        TestRetryPolicy policy = new TestRetryPolicy(10, 0);
+        for (int retry = 1; retry <= 10; ++retry) {
+            long expected = Math.min(1000, 100L << (retry - 1));
+            long backoff = policy.getBackoffMillis(retry);
+            assertTrue(backoff >= expected / 2);
+            assertTrue(backoff <= expected);
+        }
+    }
+
+    public void testRetrySucceeds() throws Exception {
+        TestRetryPolicy policy = new TestRetryPolicy(3, 0);
+        assertEquals("done", policy.retry("test", failingOperation(1),
+                                          new IOException("first failure")));
+        assertEquals(2, policy.mSleeps.size());
+    }
+
+    public void testRetryGivesUp() throws Exception {
+        TestRetryPolicy policy = new TestRetryPolicy(3, 0);
+        try {
+            policy.retry("test", failingOperation(2), new IOException("first failure"));
+            fail("retry should have failed");
+        } catch (IOException e) {
+            assertEquals("failure 2", e.getMessage());
+        }
+        assertEquals(2, policy.mSleeps.size());
+    }
+
+    public void testCircuitBreaker() throws Exception {
+        TestRetryPolicy policy = new TestRetryPolicy(1, 2);
+        policy.recordFailure();
+        assertTrue(policy.allowRequest());
+        policy.recordFailure();
+        assertFalse(policy.allowRequest());
+
+        policy.mNow += 60000;
+        assertTrue(policy.allowRequest());
+        // A single failure while half open opens the breaker again.
+        policy.recordFailure();
+        assertFalse(policy.allowRequest());
+
+        policy.mNow += 60000;
+        assertTrue(policy.allowRequest());
+        policy.recordSuccess();
+        policy.recordFailure();
+        assertTrue(policy.allowRequest());
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.uploader;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UploadSchedulerTest tests topic fairness and backpressure of the upload scheduler.
+ */
+public class UploadSchedulerTest extends TestCase {
+    private static Callable<String> blockingUpload(final CountDownLatch started,
+                                                   final CountDownLatch release) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "blocker";
+            }
+        };
+    }
+
+    private static Callable<String> recordingUpload(final List<String> order, final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                order.add(name);
+                return name;
+            }
+        };
+    }
+
+    public void testTopicsTakeTurns() throws Exception {
+        UploadScheduler scheduler = new UploadScheduler(1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("blocker", 1, blockingUpload(started, release));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getInFlightBytes());
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.submit("a", 10, recordingUpload(order, "a1"));
+        scheduler.submit("a", 10, recordingUpload(order, "a2"));
+        scheduler.submit("a", 10, recordingUpload(order, "a3"));
+        Future<String> last = scheduler.submit("b", 10, recordingUpload(order, "b1"));
+        assertEquals(4, scheduler.getQueued());
+
+        release.countDown();
+        last.get(10, TimeUnit.SECONDS);
+        assertEquals("a1", order.get(0));
+        assertEquals("b1", order.get(1));
+    }
+
+    public void testSubmitBlocksWhenQueueIsFull() throws Exception {
+        final UploadScheduler scheduler = new UploadScheduler(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("topic", 1, blockingUpload(started, release));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.submit("topic", 1, recordingUpload(order, "queued"));
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.submit("topic", 1, new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return "overflow";
+                        }
+                    });
+                    submitted.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        thread.join();
+    }
+}
@@ -27,6 +27,7 @@ import junit.framework.TestCase;
 
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -35,6 +36,9 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 
 /**
@@ -155,6 +159,346 @@ public class UploaderTest extends TestCase {
         Mockito.verify(mZookeeperConnector).unlock(lockPath);
     }
 
+    public void testUploadFilesAsync() throws Exception {
+        Mockito.when(
+                mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(
+                mOffsetTracker.setCommittedOffsetCount(mTopicPartition, 11L))
+                .thenReturn(11L);
+        Mockito.when(mOffsetTracker.getLastSeenOffset(mTopicPartition))
+                .thenReturn(20L);
+        Mockito.when(
+                mOffsetTracker.getTrueCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+
+        Mockito.when(mConfig.getCloudService()).thenReturn("S3");
+        Mockito.when(mConfig.getS3Bucket()).thenReturn("some_bucket");
+        Mockito.when(mConfig.getS3Path()).thenReturn("some_s3_parent_dir");
+        Mockito.when(mConfig.getUploadAsync()).thenReturn(true);
+
+        HashSet<LogFilePath> logFilePaths = new HashSet<LogFilePath>();
+        logFilePaths.add(mLogFilePath);
+        Mockito.when(mFileRegistry.sealTopicPartition(mTopicPartition)).thenReturn(
+                logFilePaths);
+
+        PowerMockito.mockStatic(FileUtil.class);
+        Mockito.when(FileUtil.getPrefix("some_topic", mConfig)).
+                thenReturn("s3a://some_bucket/some_s3_parent_dir");
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                mUploadManager, mZookeeperConnector);
+        uploader.applyPolicy();
+
+        // The offset is committed locally right away so new files get new names.
+        Mockito.verify(mOffsetTracker).setCommittedOffsetCount(mTopicPartition, 21L);
+        uploader.waitForUploads();
+
+        final String lockPath = "/secor/locks/some_topic/0";
+        Mockito.verify(mZookeeperConnector).lock(lockPath);
+        Mockito.verify(mZookeeperConnector).setCommittedOffsetCount(
+                mTopicPartition, 21L);
+        Mockito.verify(mZookeeperConnector).unlock(lockPath);
+        Mockito.verify(mFileRegistry, Mockito.never()).deleteTopicPartition(mTopicPartition);
+    }
+
+    public void testAsyncUploadAbandonedAfterForeignCommit() throws Exception {
+        // Someone else commits beyond the last seen offset while the files are sealed.
+        Mockito.when(
+                mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L, 31L);
+        Mockito.when(
+                mOffsetTracker.setCommittedOffsetCount(mTopicPartition, 11L))
+                .thenReturn(11L);
+        Mockito.when(
+                mOffsetTracker.setCommittedOffsetCount(mTopicPartition, 31L))
+                .thenReturn(11L);
+        Mockito.when(mOffsetTracker.getLastSeenOffset(mTopicPartition))
+                .thenReturn(20L);
+        Mockito.when(
+                mOffsetTracker.getTrueCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(mConfig.getUploadAsync()).thenReturn(true);
+
+        HashSet<LogFilePath> logFilePaths = new HashSet<LogFilePath>();
+        logFilePaths.add(mLogFilePath);
+        Mockito.when(mFileRegistry.sealTopicPartition(mTopicPartition)).thenReturn(
+                logFilePaths);
+
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                mUploadManager, mZookeeperConnector);
+        uploader.applyPolicy();
+        uploader.waitForUploads();
+
+        Mockito.verify(mZookeeperConnector, Mockito.never()).setCommittedOffsetCount(
+                Mockito.any(TopicPartition.class), Mockito.anyLong());
+        // The local commit is undone and the files are deleted against the foreign commit.
+        Mockito.verify(mOffsetTracker).resetCommittedOffsetCount(mTopicPartition, 11L);
+        Mockito.verify(mFileRegistry).addPath(mLogFilePath);
+        Mockito.verify(mOffsetTracker).setCommittedOffsetCount(mTopicPartition, 31L);
+        Mockito.verify(mFileRegistry).deleteTopicPartition(mTopicPartition);
+    }
+
+    public void testAsyncUploadRetriedAfterLostLease() throws Exception {
+        Mockito.when(
+                mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(
+                mOffsetTracker.setCommittedOffsetCount(mTopicPartition, 11L))
+                .thenReturn(11L);
+        Mockito.when(mOffsetTracker.getLastSeenOffset(mTopicPartition))
+                .thenReturn(20L);
+        Mockito.when(
+                mOffsetTracker.getTrueCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(mConfig.getCloudService()).thenReturn("S3");
+        Mockito.when(mConfig.getS3Bucket()).thenReturn("some_bucket");
+        Mockito.when(mConfig.getS3Path()).thenReturn("some_s3_parent_dir");
+        Mockito.when(mConfig.getUploadAsync()).thenReturn(true);
+        Mockito.when(mConfig.getZookeeperLeaseEnabled()).thenReturn(true);
+        // The lease is lost after sealing and taken back on the next run.
+        final String leasePath = "/secor/leases/some_topic/0";
+        Mockito.when(mZookeeperConnector.tryAcquireLease(leasePath)).thenReturn(true, false, true);
+
+        HashSet<LogFilePath> logFilePaths = new HashSet<LogFilePath>();
+        logFilePaths.add(mLogFilePath);
+        Mockito.when(mFileRegistry.sealTopicPartition(mTopicPartition)).thenReturn(
+                logFilePaths);
+
+        PowerMockito.mockStatic(FileUtil.class);
+        Mockito.when(FileUtil.getPrefix("some_topic", mConfig)).
+                thenReturn("s3a://some_bucket/some_s3_parent_dir");
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                mUploadManager, mZookeeperConnector);
+        uploader.applyPolicy();
+        uploader.waitForUploads();
+
+        // Nobody committed, the files stay sealed and the local commit stands.
+        Mockito.verify(mFileRegistry, Mockito.never()).addPath(mLogFilePath);
+        Mockito.verify(mOffsetTracker, Mockito.never()).resetCommittedOffsetCount(
+                Mockito.any(TopicPartition.class), Mockito.anyLong());
+        Mockito.verify(mZookeeperConnector, Mockito.never()).setCommittedOffsetCount(
+                Mockito.any(TopicPartition.class), Mockito.anyLong());
+
+        uploader.applyPolicy();
+        uploader.waitForUploads();
+
+        Mockito.verify(mZookeeperConnector).setCommittedOffsetCount(mTopicPartition, 21L);
+        Mockito.verify(mFileRegistry).sealTopicPartition(mTopicPartition);
+        Mockito.verify(mFileRegistry, Mockito.never()).addPath(mLogFilePath);
+    }
+
+    public void testFailedUploadPostponedByCircuitBreaker() throws Exception {
+        Mockito.when(
+                mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(
+                mOffsetTracker.setCommittedOffsetCount(mTopicPartition, 11L))
+                .thenReturn(11L);
+        Mockito.when(mOffsetTracker.getLastSeenOffset(mTopicPartition))
+                .thenReturn(20L);
+        Mockito.when(
+                mOffsetTracker.getTrueCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        // A single failed attempt opens the breaker.
+        Mockito.when(mConfig.getUploadRetryMaxAttempts()).thenReturn(1);
+        Mockito.when(mConfig.getUploadCircuitBreakerFailures()).thenReturn(1);
+        Mockito.when(mConfig.getUploadCircuitBreakerResetSeconds()).thenReturn(3600L);
+
+        HashSet<LogFilePath> logFilePaths = new HashSet<LogFilePath>();
+        logFilePaths.add(mLogFilePath);
+        Mockito.when(mFileRegistry.getPaths(mTopicPartition)).thenReturn(logFilePaths);
+        Mockito.when(mFileRegistry.sealTopicPartition(mTopicPartition)).thenReturn(
+                logFilePaths);
+        UploadManager uploadManager = Mockito.mock(UploadManager.class);
+        Mockito.when(uploadManager.upload(mLogFilePath)).thenThrow(
+                new IOException("upload failed"));
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                uploadManager, mZookeeperConnector);
+
+        uploader.applyPolicy();
+
+        // The files are set aside and new messages go to new files.
+        Mockito.verify(mFileRegistry).sealTopicPartition(mTopicPartition);
+        Mockito.verify(mOffsetTracker).setCommittedOffsetCount(mTopicPartition, 21L);
+        Mockito.verify(mFileRegistry, Mockito.never()).deleteTopicPartition(mTopicPartition);
+        Mockito.verify(mZookeeperConnector, Mockito.never()).setCommittedOffsetCount(
+                Mockito.any(TopicPartition.class), Mockito.anyLong());
+        // Partial uploads are dropped once the retries are exhausted.
+        Mockito.verify(uploadManager).abandon(mLogFilePath);
+
+        // The breaker is open, the upload is not retried yet.
+        uploader.applyPolicy();
+        uploader.waitForUploads();
+
+        Mockito.verify(uploadManager).upload(mLogFilePath);
+        Mockito.verify(mFileRegistry).sealTopicPartition(mTopicPartition);
+    }
+
+    private TestUploader createBatchCommitUploader(TopicPartition otherTopicPartition)
+            throws Exception {
+        HashSet<TopicPartition> topicPartitions = new HashSet<TopicPartition>();
+        topicPartitions.add(mTopicPartition);
+        topicPartitions.add(otherTopicPartition);
+        Mockito.when(mFileRegistry.getTopicPartitions()).thenReturn(topicPartitions);
+        Mockito.when(mFileRegistry.getSize(otherTopicPartition)).thenReturn(100L);
+        for (TopicPartition topicPartition : topicPartitions) {
+            Mockito.when(mZookeeperConnector.getCommittedOffsetCount(topicPartition))
+                    .thenReturn(11L);
+            Mockito.when(mOffsetTracker.setCommittedOffsetCount(topicPartition, 11L))
+                    .thenReturn(11L);
+            Mockito.when(mOffsetTracker.getLastSeenOffset(topicPartition)).thenReturn(20L);
+            Mockito.when(mOffsetTracker.getTrueCommittedOffsetCount(topicPartition))
+                    .thenReturn(11L);
+        }
+
+        Mockito.when(mConfig.getCloudService()).thenReturn("S3");
+        Mockito.when(mConfig.getS3Bucket()).thenReturn("some_bucket");
+        Mockito.when(mConfig.getS3Path()).thenReturn("some_s3_parent_dir");
+        Mockito.when(mConfig.getUploadBatchCommit()).thenReturn(true);
+
+        HashSet<LogFilePath> logFilePaths = new HashSet<LogFilePath>();
+        logFilePaths.add(mLogFilePath);
+        Mockito.when(mFileRegistry.getPaths(mTopicPartition)).thenReturn(logFilePaths);
+        Mockito.when(mFileRegistry.getPaths(otherTopicPartition)).thenReturn(
+                new HashSet<LogFilePath>());
+
+        PowerMockito.mockStatic(FileUtil.class);
+        Mockito.when(FileUtil.getPrefix("some_topic", mConfig)).
+                thenReturn("s3a://some_bucket/some_s3_parent_dir");
+        return new TestUploader(mConfig, mOffsetTracker, mFileRegistry, mUploadManager,
+                mZookeeperConnector);
+    }
+
+    public void testUploadFilesBatchCommit() throws Exception {
+        TopicPartition otherTopicPartition = new TopicPartition("some_topic", 1);
+        TestUploader uploader = createBatchCommitUploader(otherTopicPartition);
+        HashMap<TopicPartition, Long> committedOffsetCounts = new HashMap<TopicPartition, Long>();
+        committedOffsetCounts.put(mTopicPartition, 21L);
+        committedOffsetCounts.put(otherTopicPartition, 21L);
+        Mockito.when(mZookeeperConnector.setCommittedOffsetCounts(committedOffsetCounts))
+                .thenReturn(committedOffsetCounts.keySet());
+
+        uploader.applyPolicy();
+
+        InOrder inOrder = Mockito.inOrder(mZookeeperConnector, mFileRegistry);
+        inOrder.verify(mZookeeperConnector).setCommittedOffsetCounts(committedOffsetCounts);
+        inOrder.verify(mFileRegistry).deleteTopicPartition(Mockito.any(TopicPartition.class));
+        Mockito.verify(mZookeeperConnector, Mockito.never()).setCommittedOffsetCount(
+                Mockito.any(TopicPartition.class), Mockito.anyLong());
+        for (TopicPartition topicPartition : committedOffsetCounts.keySet()) {
+            final String lockPath = "/secor/locks/some_topic/" + topicPartition.getPartition();
+            Mockito.verify(mZookeeperConnector).lock(lockPath);
+            Mockito.verify(mZookeeperConnector).unlock(lockPath);
+            Mockito.verify(mFileRegistry).deleteTopicPartition(topicPartition);
+            Mockito.verify(mOffsetTracker).setCommittedOffsetCount(topicPartition, 21L);
+        }
+    }
+
+    public void testBatchCommitKeepsFilesOfOffsetsCommittedElsewhere() throws Exception {
+        TopicPartition otherTopicPartition = new TopicPartition("some_topic", 1);
+        TestUploader uploader = createBatchCommitUploader(otherTopicPartition);
+        HashMap<TopicPartition, Long> committedOffsetCounts = new HashMap<TopicPartition, Long>();
+        committedOffsetCounts.put(mTopicPartition, 21L);
+        committedOffsetCounts.put(otherTopicPartition, 21L);
+        // Someone else committed offsets of the other topic partition past all local messages.
+        Mockito.when(mZookeeperConnector.setCommittedOffsetCounts(committedOffsetCounts))
+                .thenReturn(Collections.singleton(mTopicPartition));
+        // Read by the policy check, under the lock and after the failed commit.
+        Mockito.when(mZookeeperConnector.getCommittedOffsetCount(otherTopicPartition))
+                .thenReturn(11L, 11L, 31L);
+        Mockito.when(mOffsetTracker.setCommittedOffsetCount(otherTopicPartition, 31L))
+                .thenReturn(11L);
+
+        uploader.applyPolicy();
+
+        Mockito.verify(mFileRegistry).deleteTopicPartition(mTopicPartition);
+        Mockito.verify(mOffsetTracker).setCommittedOffsetCount(mTopicPartition, 21L);
+        Mockito.verify(mOffsetTracker, Mockito.never()).setCommittedOffsetCount(
+                otherTopicPartition, 21L);
+        Mockito.verify(mOffsetTracker).setCommittedOffsetCount(otherTopicPartition, 31L);
+        // Deleted as stale rather than as uploaded.
+        Mockito.verify(mFileRegistry, Mockito.times(1)).deleteTopicPartition(otherTopicPartition);
+    }
+
+    public void testCachedOffsetRecheckedUnderLock() throws Exception {
+        Mockito.when(
+                mZookeeperConnector.getCachedCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        // Someone else committed after the cached value was read.
+        Mockito.when(
+                mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
+                .thenReturn(15L);
+        Mockito.when(
+                mOffsetTracker.setCommittedOffsetCount(mTopicPartition, 11L))
+                .thenReturn(11L);
+        Mockito.when(mOffsetTracker.getLastSeenOffset(mTopicPartition))
+                .thenReturn(20L);
+        Mockito.when(
+                mOffsetTracker.getTrueCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(mConfig.getZookeeperOffsetCacheEnabled()).thenReturn(true);
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                mUploadManager, mZookeeperConnector);
+
+        uploader.applyPolicy();
+
+        final String lockPath = "/secor/locks/some_topic/0";
+        Mockito.verify(mZookeeperConnector).lock(lockPath);
+        Mockito.verify(mFileRegistry, Mockito.never()).deleteWriters(mTopicPartition);
+        Mockito.verify(mZookeeperConnector, Mockito.never()).setCommittedOffsetCount(
+                Mockito.any(TopicPartition.class), Mockito.anyLong());
+        Mockito.verify(mZookeeperConnector).unlock(lockPath);
+    }
+
+    public void testUploadPostponedWhileLeaseHeldElsewhere() throws Exception {
+        Mockito.when(
+                mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(
+                mOffsetTracker.setCommittedOffsetCount(mTopicPartition, 11L))
+                .thenReturn(11L);
+        Mockito.when(mOffsetTracker.getLastSeenOffset(mTopicPartition))
+                .thenReturn(20L);
+        Mockito.when(
+                mOffsetTracker.getTrueCommittedOffsetCount(mTopicPartition))
+                .thenReturn(11L);
+        Mockito.when(mConfig.getZookeeperLeaseEnabled()).thenReturn(true);
+        final String leasePath = "/secor/leases/some_topic/0";
+        Mockito.when(mZookeeperConnector.tryAcquireLease(leasePath)).thenReturn(false);
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                mUploadManager, mZookeeperConnector);
+
+        uploader.applyPolicy();
+
+        Mockito.verify(mZookeeperConnector).tryAcquireLease(leasePath);
+        Mockito.verify(mZookeeperConnector, Mockito.never()).lock(Mockito.anyString());
+        Mockito.verify(mFileRegistry, Mockito.never()).deleteWriters(mTopicPartition);
+        Mockito.verify(mZookeeperConnector, Mockito.never()).setCommittedOffsetCount(
+                Mockito.any(TopicPartition.class), Mockito.anyLong());
+    }
+
+    public void testLeasesOfReassignedTopicPartitionsReleased() throws Exception {
+        Mockito.when(mConfig.getZookeeperLeaseEnabled()).thenReturn(true);
+        Mockito.when(mFileRegistry.getTopicPartitions()).thenReturn(
+                new HashSet<TopicPartition>());
+        final String assignedLeasePath = "/secor/leases/some_topic/0";
+        final String revokedLeasePath = "/secor/leases/some_topic/1";
+        Mockito.when(mZookeeperConnector.getLeasePaths()).thenReturn(
+                new HashSet<String>(Arrays.asList(assignedLeasePath, revokedLeasePath)));
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                mUploadManager, mZookeeperConnector);
+
+        // Nothing is known to be revoked before the first rebalance.
+        uploader.applyPolicy();
+        Mockito.verify(mZookeeperConnector, Mockito.never()).releaseLease(Mockito.anyString());
+
+        uploader.setAssignedTopicPartitions(Arrays.asList(mTopicPartition));
+        uploader.applyPolicy();
+
+        Mockito.verify(mZookeeperConnector).releaseLease(revokedLeasePath);
+        Mockito.verify(mZookeeperConnector, Mockito.never()).releaseLease(assignedLeasePath);
+    }
+
     public void testDeleteTopicPartition() throws Exception {
         Mockito.when(
                 mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
@@ -170,6 +514,30 @@ public class UploaderTest extends TestCase {
         Mockito.verify(mFileRegistry).deleteTopicPartition(mTopicPartition);
     }
 
+    public void testParallelDeleteTopicPartitions() throws Exception {
+        TopicPartition otherTopicPartition = new TopicPartition("some_topic", 1);
+        HashSet<TopicPartition> topicPartitions = new HashSet<TopicPartition>();
+        topicPartitions.add(mTopicPartition);
+        topicPartitions.add(otherTopicPartition);
+        Mockito.when(mFileRegistry.getTopicPartitions()).thenReturn(topicPartitions);
+        Mockito.when(mFileRegistry.getSize(otherTopicPartition)).thenReturn(100L);
+        for (TopicPartition topicPartition : topicPartitions) {
+            Mockito.when(mZookeeperConnector.getCommittedOffsetCount(topicPartition))
+                    .thenReturn(31L);
+            Mockito.when(mOffsetTracker.setCommittedOffsetCount(topicPartition, 31L))
+                    .thenReturn(11L);
+            Mockito.when(mOffsetTracker.getLastSeenOffset(topicPartition)).thenReturn(20L);
+        }
+        Mockito.when(mConfig.getUploadParallelism()).thenReturn(2);
+        TestUploader uploader = new TestUploader(mConfig, mOffsetTracker, mFileRegistry,
+                mUploadManager, mZookeeperConnector);
+
+        uploader.applyPolicy();
+
+        Mockito.verify(mFileRegistry).deleteTopicPartition(mTopicPartition);
+        Mockito.verify(mFileRegistry).deleteTopicPartition(otherTopicPartition);
+    }
+
     public void testTrimFiles() throws Exception {
         Mockito.when(
                 mZookeeperConnector.getCommittedOffsetCount(mTopicPartition))
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class FileListingCacheTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("secor_listing", "");
+        mDir.delete();
+        createFile("hr=01/1_0_00000000000000000100");
+        createFile("hr=01/_SUCCESS");
+        createFile("hr=02/1_0_00000000000000000200");
+        new File(mDir, "hr=03").mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtil.delete(mDir.getPath());
+    }
+
+    private void createFile(String path) throws IOException {
+        File file = new File(mDir, path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+    }
+
+    @Test
+    public void testExists() throws Exception {
+        FileListingCache cache = new FileListingCache();
+        String dir = mDir.getPath();
+        Assert.assertTrue(cache.exists(dir + "/hr=01"));
+        Assert.assertTrue(cache.exists(dir + "/hr=01/_SUCCESS"));
+        Assert.assertTrue(cache.exists(dir + "/hr=02"));
+        Assert.assertFalse(cache.exists(dir + "/hr=02/_SUCCESS"));
+        Assert.assertTrue(cache.exists(dir + "/hr=03"));
+        Assert.assertFalse(cache.exists(dir + "/hr=0"));
+    }
+
+    @Test
+    public void testListingIsCached() throws Exception {
+        FileListingCache cache = new FileListingCache();
+        String dir = mDir.getPath();
+        Assert.assertFalse(cache.exists(dir + "/hr=04"));
+        createFile("hr=04/1_0_00000000000000000400");
+        Assert.assertFalse(cache.exists(dir + "/hr=04"));
+        Assert.assertTrue(new FileListingCache().exists(dir + "/hr=04"));
+    }
+
+    @Test
+    public void testMissingDir() throws Exception {
+        FileListingCache cache = new FileListingCache();
+        String dir = mDir.getPath() + "/missing";
+        Assert.assertFalse(cache.exists(dir + "/hr=01"));
+    }
+}
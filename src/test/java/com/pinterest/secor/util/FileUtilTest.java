@@ -23,6 +23,9 @@ import org.junit.Before;
 
 import com.pinterest.secor.common.SecorConfig;
 
+import java.io.File;
+import java.util.Arrays;
+
 public class FileUtilTest {
 
     private SecorConfig mSwiftConfig;
@@ -79,4 +82,48 @@ public class FileUtilTest {
         // return to the previous state
         FileUtil.configure(null);
     }
+
+    @Test
+    public void testListRecursively() throws Exception {
+        File dir = File.createTempFile("secor_list", "");
+        dir.delete();
+        try {
+            String[] expected = {
+                dir.getPath() + "/dt=2016-04-20/hr=00/1_0_00000000000000000100",
+                dir.getPath() + "/dt=2016-04-20/hr=00/_SUCCESS",
+                dir.getPath() + "/dt=2016-04-20/hr=01/1_0_00000000000000000200",
+                dir.getPath() + "/dt=2016-04-21/hr=00/1_0_00000000000000000300"
+            };
+            for (String path : expected) {
+                new File(path).getParentFile().mkdirs();
+                new File(path).createNewFile();
+            }
+            new File(dir, "dt=2016-04-22/hr=00").mkdirs();
+
+            Assert.assertEquals(Arrays.asList(expected),
+                                Arrays.asList(FileUtil.listRecursively(dir.getPath())));
+        } finally {
+            FileUtil.delete(dir.getPath());
+        }
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        File dir = File.createTempFile("secor_delete", "");
+        dir.delete();
+        File file = new File(dir, "dt=2016-04-20/1_0_00000000000000000100");
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        Assert.assertTrue(FileUtil.exists(file.getPath()));
+
+        FileUtil.delete(file.getPath());
+        Assert.assertFalse(FileUtil.exists(file.getPath()));
+        file.createNewFile();
+
+        FileUtil.delete(dir.getPath());
+        Assert.assertFalse(FileUtil.exists(dir.getPath()));
+        // Deleting a missing path is a no-op.
+        FileUtil.delete(dir.getPath());
+        FileUtil.delete("file://" + file.getPath());
+    }
 }
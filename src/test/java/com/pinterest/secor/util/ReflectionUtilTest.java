@@ -18,8 +18,11 @@ package com.pinterest.secor.util;
 
 import com.pinterest.secor.common.LogFilePath;
 import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.parser.HiveMetastoreClient;
 import com.pinterest.secor.parser.MessageParser;
+import com.pinterest.secor.parser.QuboleClient;
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Before;
 
@@ -33,6 +36,7 @@ public class ReflectionUtilTest {
         PropertiesConfiguration properties = new PropertiesConfiguration();
         properties.addProperty("message.timestamp.name","");
         properties.addProperty("message.timestamp.name.separator","");
+        properties.addProperty("qubole.api.token","");
         mSecorConfig = new SecorConfig(properties);
         mLogFilePath = new LogFilePath("/foo", "/foo/bar/baz/1_1_1");
     }
@@ -68,4 +72,16 @@ public class ReflectionUtilTest {
         ReflectionUtil.createFileWriter("java.lang.Object",
                 mLogFilePath, null, mSecorConfig);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCreateHiveMetastoreClient() throws Exception {
+        HiveMetastoreClient client = ReflectionUtil.createHiveMetastoreClient(
+                mSecorConfig.getHiveMetastoreClientClass(), mSecorConfig);
+        Assert.assertTrue(client instanceof QuboleClient);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHiveMetastoreClientNotAssignable() throws Exception {
+        ReflectionUtil.createHiveMetastoreClient("java.lang.Object", mSecorConfig);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.pinterest.secor.writer;
+
+import com.pinterest.secor.common.FileRegistry;
+import com.pinterest.secor.common.LogFilePath;
+import com.pinterest.secor.common.OffsetTracker;
+import com.pinterest.secor.common.SecorConfig;
+import com.pinterest.secor.io.FileWriter;
+import com.pinterest.secor.io.KeyValue;
+import com.pinterest.secor.message.ParsedMessage;
+import junit.framework.TestCase;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MessageWriterTest tests the writer cache of the message writer.
+ */
+public class MessageWriterTest extends TestCase {
+    private FileRegistry mFileRegistry;
+    private Map<LogFilePath, FileWriter> mWriters;
+    private MessageWriter mMessageWriter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        SecorConfig config = Mockito.mock(SecorConfig.class);
+        Mockito.when(config.getLocalPath()).thenReturn("/tmp/secor_dev/message_logs");
+        Mockito.when(config.getGeneration()).thenReturn(1);
+
+        mWriters = new HashMap<LogFilePath, FileWriter>();
+        mFileRegistry = Mockito.mock(FileRegistry.class);
+        Mockito.when(mFileRegistry.getOrCreateWriter(Mockito.any(LogFilePath.class),
+                Mockito.any(CompressionCodec.class))).thenAnswer(new Answer<FileWriter>() {
+            @Override
+            public FileWriter answer(InvocationOnMock invocation) {
+                LogFilePath path = (LogFilePath) invocation.getArguments()[0];
+                FileWriter writer = Mockito.mock(FileWriter.class);
+                mWriters.put(path, writer);
+                return writer;
+            }
+        });
+        Mockito.when(mFileRegistry.getWriter(Mockito.any(LogFilePath.class))).thenAnswer(
+            new Answer<FileWriter>() {
+                @Override
+                public FileWriter answer(InvocationOnMock invocation) {
+                    return mWriters.get(invocation.getArguments()[0]);
+                }
+            });
+
+        mMessageWriter = new MessageWriter(config, new OffsetTracker(), mFileRegistry);
+    }
+
+    private ParsedMessage createMessage(int kafkaPartition, long offset) {
+        return new ParsedMessage("some_topic", kafkaPartition, offset, null,
+                                 "some_payload".getBytes(), new String[]{"some_partition"});
+    }
+
+    private LogFilePath getPath(int kafkaPartition) {
+        for (LogFilePath path : mWriters.keySet()) {
+            if (path.getKafkaPartition() == kafkaPartition) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    public void testReusesCachedWriters() throws Exception {
+        mMessageWriter.write(createMessage(0, 1));
+        mMessageWriter.write(createMessage(0, 2));
+        mMessageWriter.write(createMessage(1, 1));
+        mMessageWriter.write(createMessage(1, 2));
+
+        Mockito.verify(mFileRegistry, Mockito.times(2)).getOrCreateWriter(
+            Mockito.any(LogFilePath.class), Mockito.any(CompressionCodec.class));
+    }
+
+    public void testDropsOnlyDeletedWriters() throws Exception {
+        mMessageWriter.write(createMessage(0, 1));
+        mMessageWriter.write(createMessage(1, 1));
+        LogFilePath deletedPath = getPath(0);
+        LogFilePath keptPath = getPath(1);
+        FileWriter keptWriter = mWriters.get(keptPath);
+
+        // Simulate the registry deleting the writer of partition 0.
+        mWriters.remove(deletedPath);
+        Mockito.when(mFileRegistry.getWriterDeletionCount()).thenReturn(1L);
+
+        mMessageWriter.write(createMessage(1, 2));
+        mMessageWriter.write(createMessage(0, 2));
+
+        Mockito.verify(mFileRegistry, Mockito.times(2)).getOrCreateWriter(
+            Mockito.eq(deletedPath), Mockito.any(CompressionCodec.class));
+        Mockito.verify(mFileRegistry, Mockito.times(1)).getOrCreateWriter(
+            Mockito.eq(keptPath), Mockito.any(CompressionCodec.class));
+        Mockito.verify(keptWriter, Mockito.times(2)).write(Mockito.any(KeyValue.class));
+    }
+}